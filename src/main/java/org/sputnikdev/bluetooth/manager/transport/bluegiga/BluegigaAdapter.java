@@ -37,6 +37,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * Bluegiga transport adapter.
@@ -203,6 +204,7 @@ class BluegigaAdapter implements Adapter, BlueGigaEventListener {
     protected BluegigaDevice createDevice(URL address) {
         logger.debug("Creating a new device: {}", address);
         BluegigaDevice device = new BluegigaDevice(bgHandler, address);
+        setRssiFilter(device);
         logger.debug("Device created: {} / {}", address, Integer.toHexString(device.hashCode()));
         return device;
     }
@@ -211,10 +213,19 @@ class BluegigaAdapter implements Adapter, BlueGigaEventListener {
         logger.debug("Creating a new device from a connection status event: {} : {}",
                 address, event.getConnection());
         BluegigaDevice device = new BluegigaDevice(bgHandler, address, event.getConnection(), event.getAddressType());
+        setRssiFilter(device);
         logger.debug("Device created: {} / {}", address, Integer.toHexString(device.hashCode()));
         return device;
     }
 
+    private void setRssiFilter(BluegigaDevice device) {
+        // each device gets its own filter as filters are stateful
+        Supplier<BluegigaRssiFilter> factory = bgHandler.getRssiFilterFactory();
+        if (factory != null) {
+            device.setRssiFilter(factory.get());
+        }
+    }
+
     protected static BluegigaAdapter create(BluegigaHandler bluegigaHandler) {
         BluegigaAdapter bluegigaAdapter = new BluegigaAdapter(bluegigaHandler);
         bluegigaAdapter.init();
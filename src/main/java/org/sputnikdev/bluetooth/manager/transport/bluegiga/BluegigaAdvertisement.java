@@ -0,0 +1,211 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * A parser of advertising data (AD structures) received in scan responses. Unlike the EirPacket from the Bluegiga
+ * library, the parser walks the raw payload in place and does not allocate anything, all found values are reported
+ * to a {@link Visitor} as ranges of the payload. UUIDs are reported as their most and least significant bits
+ * expanded the same way as the EirPacket does, i.e. 16 and 32 bit UUIDs are shifted into the most significant bits.
+ */
+final class BluegigaAdvertisement {
+
+    static final int FLAGS = 0x01;
+    static final int SVC_UUID16_INCOMPLETE = 0x02;
+    static final int SVC_UUID16_COMPLETE = 0x03;
+    static final int SVC_UUID32_INCOMPLETE = 0x04;
+    static final int SVC_UUID32_COMPLETE = 0x05;
+    static final int SVC_UUID128_INCOMPLETE = 0x06;
+    static final int SVC_UUID128_COMPLETE = 0x07;
+    static final int NAME_SHORT = 0x08;
+    static final int NAME_LONG = 0x09;
+    static final int TXPOWER = 0x0A;
+    static final int DEVICE_CLASS = 0x0D;
+    static final int SVC_DATA_UUID16 = 0x16;
+    static final int SVC_DATA_UUID32 = 0x20;
+    static final int SVC_DATA_UUID128 = 0x21;
+    static final int MANUFACTURER_SPECIFIC = 0xFF;
+
+    /**
+     * A receiver of values found in advertising data.
+     */
+    interface Visitor {
+
+        /**
+         * Called when the "flags" structure is found.
+         * @param flags all flag bits of the structure
+         */
+        void flags(int flags);
+
+        /**
+         * Called when a (short or complete) local name is found.
+         * @param complete true if the name is complete
+         * @param data payload
+         * @param offset offset of the name in the payload
+         * @param length length of the name
+         */
+        void name(boolean complete, int[] data, int offset, int length);
+
+        void txPower(int txPower);
+
+        void deviceClass(int deviceClass);
+
+        /**
+         * Called for each advertised service UUID.
+         * @param msb most significant bits of the UUID
+         * @param lsb least significant bits of the UUID
+         */
+        void serviceUUID(long msb, long lsb);
+
+        /**
+         * Called for each service data structure.
+         * @param msb most significant bits of the service UUID
+         * @param lsb least significant bits of the service UUID
+         * @param data payload
+         * @param offset offset of the service data in the payload
+         * @param length length of the service data
+         */
+        void serviceData(long msb, long lsb, int[] data, int offset, int length);
+
+        /**
+         * Called for each manufacturer specific data structure.
+         * @param id manufacturer id
+         * @param data payload
+         * @param offset offset of the manufacturer data in the payload
+         * @param length length of the manufacturer data
+         */
+        void manufacturerData(short id, int[] data, int offset, int length);
+
+    }
+
+    private BluegigaAdvertisement() { }
+
+    /**
+     * Walks the advertising data and reports all recognised structures to the visitor. Structures that are
+     * truncated are cut to the end of the payload, unknown structures are skipped.
+     * @param data advertising data
+     * @param visitor visitor
+     */
+    static void parse(int[] data, Visitor visitor) {
+        int index = 0;
+        while (index < data.length) {
+            int length = data[index] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            int end = Math.min(index + 1 + length, data.length);
+            if (index + 1 < end) {
+                parseStructure(data[index + 1] & 0xFF, data, index + 2, end, visitor);
+            }
+            index += length + 1;
+        }
+    }
+
+    private static void parseStructure(int type, int[] data, int start, int end, Visitor visitor) {
+        int length = end - start;
+        switch (type) {
+            case FLAGS:
+                int flags = 0;
+                for (int i = start; i < end; i++) {
+                    flags |= (data[i] & 0xFF) << ((i - start) * 8);
+                }
+                visitor.flags(flags);
+                break;
+            case NAME_SHORT:
+            case NAME_LONG:
+                visitor.name(type == NAME_LONG, data, start, length);
+                break;
+            case TXPOWER:
+                if (length > 0) {
+                    visitor.txPower(toInt8(data[start]));
+                }
+                break;
+            case DEVICE_CLASS:
+                if (length > 0) {
+                    visitor.deviceClass(toInt8(data[start]));
+                }
+                break;
+            case SVC_UUID16_INCOMPLETE:
+            case SVC_UUID16_COMPLETE:
+                for (int i = start; i + 2 <= end; i += 2) {
+                    visitor.serviceUUID(getShortUUID(data, i, 2), 0);
+                }
+                break;
+            case SVC_UUID32_INCOMPLETE:
+            case SVC_UUID32_COMPLETE:
+                for (int i = start; i + 4 <= end; i += 4) {
+                    visitor.serviceUUID(getShortUUID(data, i, 4), 0);
+                }
+                break;
+            case SVC_UUID128_INCOMPLETE:
+            case SVC_UUID128_COMPLETE:
+                for (int i = start; i + 16 <= end; i += 16) {
+                    visitor.serviceUUID(getLong(data, i + 8), getLong(data, i));
+                }
+                break;
+            case SVC_DATA_UUID16:
+                if (length >= 2) {
+                    visitor.serviceData(getShortUUID(data, start, 2), 0, data, start + 2, length - 2);
+                }
+                break;
+            case SVC_DATA_UUID32:
+                if (length >= 4) {
+                    visitor.serviceData(getShortUUID(data, start, 4), 0, data, start + 4, length - 4);
+                }
+                break;
+            case SVC_DATA_UUID128:
+                if (length >= 16) {
+                    visitor.serviceData(getLong(data, start + 8), getLong(data, start),
+                            data, start + 16, length - 16);
+                }
+                break;
+            case MANUFACTURER_SPECIFIC:
+                if (length >= 2) {
+                    short id = (short) ((data[start + 1] & 0xFF) << 8 | data[start] & 0xFF);
+                    visitor.manufacturerData(id, data, start + 2, length - 2);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int toInt8(int value) {
+        return (byte) value;
+    }
+
+    private static long getShortUUID(int[] data, int offset, int length) {
+        long msb = 0;
+        for (int i = 0; i < length; i++) {
+            msb |= (long) (data[offset + i] & 0xFF) << (32 + i * 8);
+        }
+        return msb;
+    }
+
+    private static long getLong(int[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value |= (long) (data[offset + i] & 0xFF) << (i * 8);
+        }
+        return value;
+    }
+
+}
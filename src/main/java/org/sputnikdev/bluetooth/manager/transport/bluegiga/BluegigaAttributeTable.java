@@ -0,0 +1,100 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of characteristics of a connected device indexed by their value handles and URLs.
+ * Handles are kept in a sorted array so that a characteristic is looked up by a binary search without any
+ * boxing or hashing, URLs are kept in a hash map. A new snapshot is built each time the attribute table of
+ * the device changes.
+ */
+class BluegigaAttributeTable {
+
+    static final BluegigaAttributeTable EMPTY = new BluegigaAttributeTable(new int[0],
+            new BluegigaCharacteristic[0], Collections.emptyMap());
+
+    private final int[] handles;
+    private final BluegigaCharacteristic[] characteristics;
+    private final Map<URL, BluegigaCharacteristic> urls;
+
+    private BluegigaAttributeTable(int[] handles, BluegigaCharacteristic[] characteristics,
+                                   Map<URL, BluegigaCharacteristic> urls) {
+        this.handles = handles;
+        this.characteristics = characteristics;
+        this.urls = urls;
+    }
+
+    /**
+     * Builds a table of discovered characteristics of the given services.
+     * @param services device services
+     * @return attribute table
+     */
+    static BluegigaAttributeTable build(Collection<BluegigaService> services) {
+        BluegigaCharacteristic[] sorted = services.stream()
+                .flatMap(service -> service.getDiscoveredCharacteristics().stream())
+                .map(BluegigaCharacteristic.class::cast)
+                .sorted(Comparator.comparingInt(BluegigaCharacteristic::getCharacteristicHandle))
+                .toArray(BluegigaCharacteristic[]::new);
+        if (sorted.length == 0) {
+            return EMPTY;
+        }
+        int[] handles = new int[sorted.length];
+        Map<URL, BluegigaCharacteristic> urls = new HashMap<>(sorted.length * 2);
+        for (int i = 0; i < sorted.length; i++) {
+            handles[i] = sorted[i].getCharacteristicHandle();
+            urls.put(sorted[i].getURL().getCharacteristicURL(), sorted[i]);
+        }
+        return new BluegigaAttributeTable(handles, sorted, urls);
+    }
+
+    /**
+     * Returns a characteristic by its value handle.
+     * @param handle characteristic value handle
+     * @return characteristic or null if there is no characteristic with the given handle
+     */
+    BluegigaCharacteristic get(int handle) {
+        int index = Arrays.binarySearch(handles, handle);
+        return index >= 0 ? characteristics[index] : null;
+    }
+
+    /**
+     * Returns a characteristic by its URL.
+     * @param url characteristic URL
+     * @return characteristic or null if there is no characteristic with the given URL
+     */
+    BluegigaCharacteristic get(URL url) {
+        return urls.get(url.getCharacteristicURL());
+    }
+
+    int size() {
+        return handles.length;
+    }
+
+}
@@ -23,6 +23,7 @@ package org.sputnikdev.bluetooth.manager.transport.bluegiga;
 import com.zsmartsystems.bluetooth.bluegiga.BlueGigaEventListener;
 import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaProcedureCompletedEvent;
 import com.zsmartsystems.bluetooth.bluegiga.enumeration.BgApiResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,12 +33,14 @@ import org.sputnikdev.bluetooth.manager.transport.Characteristic;
 import org.sputnikdev.bluetooth.manager.transport.CharacteristicAccessType;
 import org.sputnikdev.bluetooth.manager.transport.Notification;
 
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -57,6 +60,8 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
     private final BluegigaHandler bgHandler;
     private Set<CharacteristicAccessType> flags = new HashSet<>();
     private Notification<byte[]> valueNotification;
+    // length of the last known value, used to split responses of the "read multiple" procedure
+    private volatile int valueLength = -1;
     private final Map<UUID, BluegigaDescriptor> descriptors = new HashMap<>();
 
     protected BluegigaCharacteristic(BluegigaHandler bgHandler, URL url,
@@ -88,16 +93,35 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
         return false;
     }
 
+    /**
+     * Reads the characteristic value. Values that are known to be longer than {@link BluegigaHandler#MAX_READ_LENGTH}
+     * (e.g. from a previous long read or from the GATT cache) are read with the "read long" procedure,
+     * any other values are read with a single read request which returns at most
+     * {@link BluegigaHandler#MAX_READ_LENGTH} bytes, use {@link #readValueLong()} to read values of unknown length.
+     * @return characteristic value
+     */
     @Override
     public byte[] readValue() {
+        if (valueLength > BluegigaHandler.MAX_READ_LENGTH) {
+            return readValueLong();
+        }
         logger.debug("Reading value: {}", url);
         BlueGigaAttributeValueEvent blueGigaAttributeValueEvent =
                 bgHandler.readCharacteristic(connectionHandle, characteristicHandle);
-        byte[] data = BluegigaUtils.fromInts(blueGigaAttributeValueEvent.getValue());
-        if (logger.isTraceEnabled()) {
-            logger.trace("Value read: {} : {}", url, DataConversionUtils.convert(data, 16));
+        int[] value = blueGigaAttributeValueEvent.getValue();
+        if (value.length >= BluegigaHandler.MAX_READ_LENGTH) {
+            logger.debug("Value might have been truncated, it can be read with the read long procedure: {}", url);
         }
-        return data;
+        return toValue(value);
+    }
+
+    /**
+     * Reads the characteristic value with the "read long" procedure, i.e. values of any length are read in full.
+     * @return characteristic value
+     */
+    public byte[] readValueLong() {
+        logger.debug("Reading long value: {}", url);
+        return toValue(bgHandler.readCharacteristicLong(connectionHandle, characteristicHandle));
     }
 
     @Override
@@ -105,13 +129,32 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
         logger.debug("Writing value: {}", url);
         int[] data = BluegigaUtils.fromBytes(bytes);
         if (flags.contains(CharacteristicAccessType.WRITE)) {
-            return bgHandler.writeCharacteristic(connectionHandle, characteristicHandle, data)
-                    .getResult() == BgApiResponse.SUCCESS;
+            BlueGigaProcedureCompletedEvent event = data.length > BluegigaHandler.MAX_WRITE_LENGTH
+                    ? bgHandler.writeCharacteristicLong(connectionHandle, characteristicHandle, data)
+                    : bgHandler.writeCharacteristic(connectionHandle, characteristicHandle, data);
+            return event.getResult() == BgApiResponse.SUCCESS;
         } else {
             return bgHandler.writeCharacteristicWithoutResponse(connectionHandle, characteristicHandle, data);
         }
     }
 
+    /**
+     * Writes a large payload (e.g. firmware or configuration) to the characteristic by streaming
+     * "write without response" packets. This is a Bluegiga specific extension of the {@link Characteristic} API,
+     * it is available to external callers through {@link BluegigaFactory#writeValueStream(URL, InputStream)}.
+     * @param input payload
+     * @return a future which is completed with the stream statistics (e.g. throughput) when the payload is written
+     */
+    public CompletableFuture<BluegigaWriteStream> writeValueStream(InputStream input) {
+        logger.debug("Writing value stream: {}", url);
+        return bgHandler.writeCharacteristicStream(connectionHandle, characteristicHandle, input);
+    }
+
+    public CompletableFuture<BluegigaWriteStream> writeValueStream(byte[] bytes) {
+        logger.debug("Writing value stream: {}", url);
+        return bgHandler.writeCharacteristicStream(connectionHandle, characteristicHandle, bytes);
+    }
+
     @Override
     public void enableValueNotifications(Notification<byte[]> notification) {
         logger.debug("Enable value notifications: {}", url);
@@ -139,6 +182,7 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
             if (attributeValueEvent.getConnection() == connectionHandle
                 && attributeValueEvent.getAttHandle() == characteristicHandle) {
                 byte[] data = BluegigaUtils.fromInts(attributeValueEvent.getValue());
+                valueLength = data.length;
                 if (logger.isTraceEnabled()) {
                     logger.trace("Notification received: {} : {}", url, DataConversionUtils.convert(data, 16));
                 }
@@ -160,6 +204,18 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
         this.flags = flags;
     }
 
+    /**
+     * Returns the length of the last known value of the characteristic.
+     * @return length of the value or -1 if the value has not been read yet
+     */
+    protected int getValueLength() {
+        return valueLength;
+    }
+
+    protected void setValueLength(int valueLength) {
+        this.valueLength = valueLength;
+    }
+
     protected int getCharacteristicHandle() {
         return characteristicHandle;
     }
@@ -203,9 +259,9 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
         }
 
         if (enabled) {
-            bgHandler.addEventListener(this);
+            bgHandler.addAttributeListener(connectionHandle, characteristicHandle, this);
         } else {
-            bgHandler.removeEventListener(this);
+            bgHandler.removeAttributeListener(connectionHandle, characteristicHandle, this);
         }
 
         if (!configuration.writeValue(config)) {
@@ -215,7 +271,7 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
 
     protected void dispose() {
         descriptors.clear();
-        bgHandler.removeEventListener(this);
+        bgHandler.removeAttributeListener(connectionHandle, characteristicHandle, this);
     }
 
     private byte[] getConfiguration() {
@@ -226,6 +282,15 @@ class BluegigaCharacteristic implements Characteristic, BlueGigaEventListener {
         return null;
     }
 
+    private byte[] toValue(int[] value) {
+        valueLength = value.length;
+        byte[] data = BluegigaUtils.fromInts(value);
+        if (logger.isTraceEnabled()) {
+            logger.trace("Value read: {} : {}", url, DataConversionUtils.convert(data, 16));
+        }
+        return data;
+    }
+
     private BluegigaDescriptor getNotificationConfigurationDescriptor() {
         return descriptors.get(CONFIGURATION_UUID);
     }
@@ -57,11 +57,23 @@ class BluegigaDescriptor implements Descriptor {
         return BluegigaUtils.fromInts(blueGigaAttributeValueEvent.getValue());
     }
 
+    /**
+     * Reads the descriptor value with the "read long" procedure, i.e. values longer than
+     * {@link BluegigaHandler#MAX_READ_LENGTH} are read in full.
+     * @return descriptor value
+     */
+    public byte[] readValueLong() {
+        logger.debug("Reading long value: {} : {}", connectionHandle, descriptorHandle);
+        return BluegigaUtils.fromInts(bgHandler.readCharacteristicLong(connectionHandle, descriptorHandle));
+    }
+
     @Override
     public boolean writeValue(byte[] bytes) {
         logger.debug("Writing value: {} : {}", connectionHandle, descriptorHandle);
         int[] data = BluegigaUtils.fromBytes(bytes);
-        BlueGigaProcedureCompletedEvent event = bgHandler.writeCharacteristic(connectionHandle, descriptorHandle, data);
+        BlueGigaProcedureCompletedEvent event = data.length > BluegigaHandler.MAX_WRITE_LENGTH
+                ? bgHandler.writeCharacteristicLong(connectionHandle, descriptorHandle, data)
+                : bgHandler.writeCharacteristic(connectionHandle, descriptorHandle, data);
         if (event.getResult() != BgApiResponse.SUCCESS) {
             logger.warn("Write operation failed for {}/{} descriptor. Response: {}.",
                     connectionHandle, descriptorHandle, event.getResult());
@@ -23,20 +23,18 @@ package org.sputnikdev.bluetooth.manager.transport.bluegiga;
 import com.zsmartsystems.bluetooth.bluegiga.BlueGigaEventListener;
 import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
-import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationFoundEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaGroupFoundEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectedEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.gap.BlueGigaScanResponseEvent;
-import com.zsmartsystems.bluetooth.bluegiga.eir.EirDataType;
-import com.zsmartsystems.bluetooth.bluegiga.eir.EirFlags;
-import com.zsmartsystems.bluetooth.bluegiga.eir.EirPacket;
 import com.zsmartsystems.bluetooth.bluegiga.enumeration.BgApiResponse;
 import com.zsmartsystems.bluetooth.bluegiga.enumeration.BluetoothAddressType;
+import com.zsmartsystems.bluetooth.bluegiga.enumeration.ScanResponseType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sputnikdev.bluetooth.DataConversionUtils;
 import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
 import org.sputnikdev.bluetooth.manager.transport.CharacteristicAccessType;
 import org.sputnikdev.bluetooth.manager.transport.Device;
 import org.sputnikdev.bluetooth.manager.transport.Notification;
@@ -49,11 +47,16 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -70,6 +73,11 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     private static final Pattern DEFAULT_UUID_REPLACEMENT =
         Pattern.compile("-0000-0000-0000-000000000000", Pattern.LITERAL);
     private static final String DEFAULT_UUID = "-0000-1000-8000-00805f9b34fb";
+    private static final String SERVICE_CHANGED_UUID = "2a05";
+    private static final String GENERIC_ATTRIBUTE_UUID = "00001801";
+    private static final String SERVICE_CHANGED_FULL_UUID = "00002a05";
+    // properties (1 byte), value handle (2 bytes) and at least a 16 bit UUID
+    private static final int DECLARATION_MIN_LENGTH = 5;
 
     private final Logger logger = LoggerFactory.getLogger(BluegigaDevice.class);
     private final URL url;
@@ -82,12 +90,20 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     private Instant lastDiscovered;
     private int bluetoothClass;
     private boolean bleEnabled;
-    private boolean servicesResolved;
+    private volatile boolean servicesResolved;
     private final Map<URL, BluegigaService> services = new ConcurrentHashMap<>();
+    // characteristics indexed by handles and URLs, rebuilt each time the attribute table changes
+    private volatile BluegigaAttributeTable attributeTable = BluegigaAttributeTable.EMPTY;
     // just a local cache, BlueGiga adapters do not support aliases
     private String alias;
     private Map<Short, byte[]> manufacturerData = new ConcurrentHashMap<>();
     private Map<String, byte[]> serviceData = new ConcurrentHashMap<>();
+    // immutable snapshots of the data above, they are rebuilt only when a value changes and shared with consumers
+    private volatile Map<Short, byte[]> manufacturerDataSnapshot = Collections.emptyMap();
+    private volatile Map<String, byte[]> serviceDataSnapshot = Collections.emptyMap();
+    private final Set<String> advertisedServices = ConcurrentHashMap.newKeySet();
+    // created on the first scan response, scan responses of a device are processed sequentially
+    private AdvertisementProcessor advertisementProcessor;
 
     // Notifications/listeners
     private Notification<Short> rssiNotification;
@@ -97,21 +113,39 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     private Notification<Map<Short, byte[]>> manufacturerDataNotification;
 
     // BG specific variables
-    private int connectionHandle = -1;
+    // connection handle and resolution state are updated by discovery workers
+    private volatile int connectionHandle = -1;
+    // handle of the "Service Changed" characteristic, its indications invalidate the GATT cache
+    private int serviceChangedHandle = -1;
+    private int serviceChangedConnection = -1;
 
     // locks
-    private ReentrantLock serviceDiscoveryLock = new ReentrantLock();
+    // discovery procedures of a device must not interleave, discoveries of different devices run concurrently
+    private final Object discoveryContext = new Object();
+    // resolved services are published and invalidated (e.g. on disconnection) atomically
+    private final Object resolutionContext = new Object();
+    // incremented each time resolved services are invalidated, discoveries started before that are stale
+    private int servicesGeneration;
+    // how long it took to resolve services last time (in milliseconds)
+    private volatile long discoveryLatency = -1;
+
+    // RSSI notification policy of this device, the policy of the handler is used if not set
+    private volatile BluegigaRssiPolicy rssiPolicy;
+    private final BluegigaRssiPolicy.Tracker rssiTracker = new BluegigaRssiPolicy.Tracker();
+    // RSSI smoothing filter, updated sequentially by scan responses, filtering is disabled if null
+    private volatile BluegigaRssiFilter rssiFilter;
+    private volatile short filteredRssi;
 
     BluegigaDevice(BluegigaHandler bgHandler, URL url) {
         this.bgHandler = bgHandler;
         this.url = url;
-        this.bgHandler.addEventListener(this);
+        this.bgHandler.addDeviceListener(url.getDeviceAddress(), this);
     }
 
     BluegigaDevice(BluegigaHandler bgHandler, URL url, int connectionHandle, BluetoothAddressType addressType) {
         this.bgHandler = bgHandler;
         this.url = url;
-        this.bgHandler.addEventListener(this);
+        this.bgHandler.addDeviceListener(url.getDeviceAddress(), this);
         this.connectionHandle = connectionHandle;
         this.addressType = addressType;
         lastDiscovered = Instant.now();
@@ -159,9 +193,7 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
             return false;
         });
         if (changed) {
-            if (servicesResolved) {
-                servicesUnresolved();
-            }
+            servicesUnresolved();
             notifyConnected(false);
         }
         return true;
@@ -188,13 +220,33 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
         logger.trace("Getting device RSSI: {} : {} (connected) : {} (rssi)", url, connected, rssi);
         if (connected) {
             rssi = getHandler().bgGetRssi(connectionHandle);
-        } else if (lastDiscovered == null || lastDiscovered.isBefore(Instant.now().minusSeconds(DISCOVERY_TIMEOUT))) {
+        } else if (isStale()) {
             logger.debug("Device has not reported RSSI for a long time: {}", url);
             return 0;
         }
         return rssi;
     }
 
+    /**
+     * Returns RSSI smoothed by the RSSI filter of the device. Unlike {@link #getRSSI()}, this method never blocks:
+     * RSSI of connected devices is not requested from the adapter, only values reported in scan responses
+     * are filtered and the last filtered value is returned.
+     * @return filtered RSSI, the last raw RSSI if the device has no filter (or the filter has not received
+     *     any values yet) or 0 if a disconnected device has not been seen for a long time
+     */
+    protected short getFilteredRSSI() {
+        return connectionHandle == -1 && isStale() ? 0 : filteredRssi;
+    }
+
+    /**
+     * Sets RSSI filter of this device.
+     * @param rssiFilter RSSI filter or null to disable filtering
+     */
+    protected void setRssiFilter(BluegigaRssiFilter rssiFilter) {
+        this.rssiFilter = rssiFilter;
+        filteredRssi = rssi;
+    }
+
     @Override
     public short getTxPower() {
         return txPower;
@@ -203,6 +255,7 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     @Override
     public void enableRSSINotifications(Notification<Short> notification) {
         logger.debug("Enable RSSI notifications: {}", url);
+        rssiTracker.reset();
         rssiNotification = notification;
     }
 
@@ -281,24 +334,11 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
                 handleDisconnectedEvent((BlueGigaDisconnectedEvent) event);
             } else if (event instanceof BlueGigaConnectionStatusEvent) {
                 handleConnectionStatusEvent((BlueGigaConnectionStatusEvent) event);
-            }
-        } catch (BluegigaProcedureException ex) {
-            logger.debug("Bluegiga procedure exception occurred while handling bluegiga event: {} : {} : {}",
-                    url, event, ex.getMessage());
-            // events can lead to some procedures (e.g. service discovery etc) that can cause disconnections
-            // no disconnection events are issued in that case
-            if (ex.getResponse() == BgApiResponse.NOT_CONNECTED) {
-                connectionHandle = -1;
-                notifyConnected(false);
+            } else if (event instanceof BlueGigaAttributeValueEvent) {
+                handleServiceChanged((BlueGigaAttributeValueEvent) event);
             }
         } catch (Exception ex) {
-            logger.warn("Unexpected exception occurred while handling bluegiga event: {} : {} : {}",
-                    url, event, ex.getMessage());
-            if (connectionHandle != -1 && !isConnected()) {
-                // looks like we have been disconnected but the disconnection event had been missed
-                connectionHandle = -1;
-                notifyConnected(false);
-            }
+            handleException(event, ex);
         }
     }
 
@@ -334,12 +374,12 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
 
     @Override
     public Map<String, byte[]> getServiceData() {
-        return new HashMap<>(serviceData);
+        return serviceDataSnapshot;
     }
 
     @Override
     public Map<Short, byte[]> getManufacturerData() {
-        return new HashMap<>(manufacturerData);
+        return manufacturerDataSnapshot;
     }
 
     @Override
@@ -385,7 +425,7 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
             disconnect();
         } catch (Exception ignore) { /* do nothing */ }
         connectionHandle = -1;
-        bgHandler.removeEventListener(this);
+        bgHandler.removeDeviceListener(url.getDeviceAddress(), this);
         disposeServices();
         // just helping GC to release resources
         rssiNotification = null;
@@ -395,6 +435,8 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
         manufacturerDataNotification = null;
         manufacturerData = null;
         serviceData = null;
+        manufacturerDataSnapshot = Collections.emptyMap();
+        serviceDataSnapshot = Collections.emptyMap();
         disposed = true;
         logger.debug("Device disposed: {}", url);
     }
@@ -406,6 +448,66 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
         return services.get(url.getServiceURL());
     }
 
+    /**
+     * Returns a characteristic by its URL. Characteristics of services which have not been discovered yet
+     * (lazy discovery) get discovered first.
+     * @param url characteristic URL
+     * @return characteristic or null if services are not resolved or the characteristic does not exist
+     */
+    protected BluegigaCharacteristic getCharacteristic(URL url) {
+        if (!servicesResolved) {
+            return null;
+        }
+        BluegigaCharacteristic characteristic = attributeTable.get(url);
+        if (characteristic == null) {
+            BluegigaService service = services.get(url.getServiceURL());
+            if (service != null && !service.isResolved()) {
+                characteristic = service.getCharacteristic(url);
+            }
+        }
+        return characteristic;
+    }
+
+    /**
+     * Returns a characteristic by its value handle.
+     * @param characteristicHandle characteristic value handle
+     * @return characteristic or null if there is no discovered characteristic with the given handle
+     */
+    protected BluegigaCharacteristic getCharacteristic(int characteristicHandle) {
+        return attributeTable.get(characteristicHandle);
+    }
+
+    /**
+     * Reads values of multiple characteristics by using as few "read multiple" requests as possible.
+     * Since values are concatenated in a "read multiple" response, only characteristics with known value lengths
+     * (which have been read or notified before) can be batched, the rest of characteristics (and characteristics
+     * which values do not fit into a response or which lengths have changed) are read one by one.
+     * @param characteristics characteristics to read
+     * @return characteristic values in the same order as the characteristics
+     */
+    protected Map<BluegigaCharacteristic, byte[]> readMultiple(List<BluegigaCharacteristic> characteristics) {
+        Map<BluegigaCharacteristic, byte[]> values = new LinkedHashMap<>();
+        List<BluegigaCharacteristic> batch = new ArrayList<>();
+        int batchLength = 0;
+        for (BluegigaCharacteristic characteristic : characteristics) {
+            values.put(characteristic, null);
+            int length = characteristic.getValueLength();
+            if (length < 0 || length >= BluegigaHandler.MAX_READ_LENGTH) {
+                continue;
+            }
+            if (batchLength + length > BluegigaHandler.MAX_READ_LENGTH) {
+                readBatch(batch, values);
+                batch.clear();
+                batchLength = 0;
+            }
+            batch.add(characteristic);
+            batchLength += length;
+        }
+        readBatch(batch, values);
+        values.replaceAll((characteristic, value) -> value != null ? value : characteristic.readValue());
+        return values;
+    }
+
     protected void establishConnection() {
         logger.debug("Trying to connect: {} : {}", url, addressType);
         try {
@@ -424,29 +526,285 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     }
 
     protected void discoverAttributes() {
-        if (!servicesResolved && connectionHandle != -1) {
-            boolean resolved = getHandler().runInSynchronizedContext(() -> {
-                if (!servicesResolved) {
-                    logger.debug("Resolving services: {}", url);
-                    try {
-                        discoverServices();
-                        List<BluegigaService> servicesTable = services.values().stream().sorted(
-                                Comparator.comparingInt(BluegigaService::getHandleStart)).collect(Collectors.toList());
-                        discoverCharacteristics(servicesTable);
-                        discoverDeclarations(servicesTable);
-                        servicesResolved = true;
-                        logger.debug("Services resolved: {}", url);
-                        return true;
-                    } catch (Exception ex) {
-                        disposeServices();
-                        logger.warn("Could not discover device attributes: {}", url, ex);
-                        throw ex;
-                    }
-                }
-                return false;
-            });
+        // if the device gets disconnected while its services are being resolved, the results are discarded;
+        // a discovery of a new connection is not scheduled while this one is running, so it is done here
+        while (!servicesResolved && connectionHandle != -1) {
+            Boolean resolved = runInDiscoveryContext(() -> servicesResolved ? null : resolveServices());
+            if (resolved == null) {
+                return;
+            }
             if (resolved) {
                 notifyServicesResolved(true);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns how long it took to resolve services (discover or restore attributes) last time.
+     * @return discovery latency in milliseconds or -1 if services have not been resolved yet
+     */
+    protected long getDiscoveryLatency() {
+        return discoveryLatency;
+    }
+
+    /**
+     * Sets RSSI notification policy of this device.
+     * @param rssiPolicy RSSI policy or null to use the default policy of the adapter
+     */
+    protected void setRssiPolicy(BluegigaRssiPolicy rssiPolicy) {
+        this.rssiPolicy = rssiPolicy;
+        rssiTracker.reset();
+    }
+
+    protected BluegigaRssiPolicy getRssiPolicy() {
+        BluegigaRssiPolicy policy = rssiPolicy;
+        if (policy == null) {
+            policy = bgHandler.getRssiPolicy();
+        }
+        return policy != null ? policy : BluegigaRssiPolicy.ALL;
+    }
+
+    private boolean resolveServices() {
+        logger.debug("Resolving services: {}", url);
+        long started = System.currentTimeMillis();
+        int connection = connectionHandle;
+        int generation;
+        synchronized (resolutionContext) {
+            generation = servicesGeneration;
+        }
+        try {
+            if (!restoreAttributes()) {
+                discoverServices();
+                if (getHandler().isLazyDiscovery()) {
+                    // characteristics get discovered the first time they are requested
+                    services.values().forEach(
+                        service -> service.setResolver(this::discoverServiceAttributes));
+                } else {
+                    List<BluegigaService> servicesTable = services.values().stream().sorted(
+                            Comparator.comparingInt(BluegigaService::getHandleStart))
+                            .collect(Collectors.toList());
+                    // only handle ranges of allowed services are discovered if an allowlist is set
+                    discoverCharacteristics(servicesTable, getHandler().getServiceAllowlist().isEmpty()
+                            ? null : getHandleRanges(servicesTable));
+                    storeAttributes();
+                }
+            }
+            subscribeServiceChanged();
+            synchronized (resolutionContext) {
+                if (generation != servicesGeneration || connection != connectionHandle) {
+                    logger.debug("Device has been disconnected while resolving services: {}", url);
+                    disposeServices();
+                    return false;
+                }
+                attributeTable = BluegigaAttributeTable.build(services.values());
+                servicesResolved = true;
+                // attribute handles can turn out to be stale (e.g. restored from the GATT cache or a template)
+                getHandler().setGattInvalidationListener(url.getDeviceAddress(), this::rediscover);
+            }
+            discoveryLatency = System.currentTimeMillis() - started;
+            getHandler().recordDiscoveryLatency(discoveryLatency);
+            logger.debug("Services resolved: {} : {} ms", url, discoveryLatency);
+            return true;
+        } catch (Exception ex) {
+            disposeServices();
+            logger.warn("Could not discover device attributes: {}", url, ex);
+            throw ex;
+        }
+    }
+
+    private <V> V runInDiscoveryContext(Supplier<V> task) {
+        if (Thread.holdsLock(discoveryContext)) {
+            // nested discovery (e.g. lazy discovery of a service while services are being resolved)
+            // reuses the discovery slot
+            return task.get();
+        }
+        synchronized (discoveryContext) {
+            return getHandler().runInDiscoveryContext(task);
+        }
+    }
+
+    private void runInDiscoveryContext(Runnable task) {
+        runInDiscoveryContext(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    private void readBatch(List<BluegigaCharacteristic> batch, Map<BluegigaCharacteristic, byte[]> values) {
+        if (batch.size() < 2) {
+            return;
+        }
+        int[] handles = batch.stream().mapToInt(BluegigaCharacteristic::getCharacteristicHandle).toArray();
+        int[] response;
+        try {
+            response = getHandler().readMultiple(connectionHandle, handles);
+        } catch (BluegigaProcedureException ex) {
+            logger.warn("Could not read multiple characteristics, reading them one by one: {} : {}",
+                    url, ex.getMessage());
+            return;
+        }
+        if (response.length != batch.stream().mapToInt(BluegigaCharacteristic::getValueLength).sum()) {
+            logger.debug("Value lengths have changed, reading characteristics one by one: {}", url);
+            return;
+        }
+        int offset = 0;
+        for (BluegigaCharacteristic characteristic : batch) {
+            int length = characteristic.getValueLength();
+            values.put(characteristic, BluegigaUtils.fromInts(Arrays.copyOfRange(response, offset, offset + length)));
+            offset += length;
+        }
+    }
+
+    private boolean restoreAttributes() {
+        BluegigaGattCache gattCache = getHandler().getGattCache();
+        List<BluegigaGattCache.ServiceEntry> entries =
+                gattCache != null ? gattCache.load(url.getDeviceAddress()) : null;
+        if (entries == null) {
+            entries = applyTemplate();
+            if (entries == null) {
+                return false;
+            }
+        }
+        logger.debug("Restoring attributes: {}", url);
+        for (BluegigaGattCache.ServiceEntry serviceEntry : entries) {
+            BluegigaService service = new BluegigaService(url.copyWith(serviceEntry.getUuid().toString(), null),
+                    serviceEntry.getHandleStart(), serviceEntry.getHandleEnd());
+            for (BluegigaGattCache.CharacteristicEntry characteristicEntry : serviceEntry.getCharacteristics()) {
+                BluegigaCharacteristic characteristic = new BluegigaCharacteristic(getHandler(),
+                        service.getURL().copyWithCharacteristic(characteristicEntry.getUuid().toString()),
+                        connectionHandle, characteristicEntry.getHandle());
+                characteristic.setFlags(CharacteristicAccessType.parse(characteristicEntry.getFlags()));
+                for (BluegigaGattCache.DescriptorEntry descriptorEntry : characteristicEntry.getDescriptors()) {
+                    characteristic.addDescriptor(new BluegigaDescriptor(getHandler(), connectionHandle,
+                            descriptorEntry.getHandle(), descriptorEntry.getUuid()));
+                }
+                service.addCharacteristic(characteristic);
+            }
+            services.put(service.getURL(), service);
+        }
+        return true;
+    }
+
+    private List<BluegigaGattCache.ServiceEntry> applyTemplate() {
+        BluegigaGattTemplates templates = getHandler().getGattTemplates();
+        BluegigaGattTemplates.Rule rule = matchTemplate(templates);
+        return rule != null ? templates.apply(url.getDeviceAddress(), rule) : null;
+    }
+
+    private BluegigaGattTemplates.Rule matchTemplate(BluegigaGattTemplates templates) {
+        if (templates == null) {
+            return null;
+        }
+        // manufacturer data is released on dispose
+        Map<Short, byte[]> data = manufacturerData;
+        return templates.match(name, data != null ? data.keySet() : Collections.emptySet(), advertisedServices);
+    }
+
+    private void storeAttributes() {
+        BluegigaGattCache gattCache = getHandler().getGattCache();
+        BluegigaGattTemplates templates = getHandler().getGattTemplates();
+        if (gattCache == null && templates == null) {
+            return;
+        }
+        List<BluegigaGattCache.ServiceEntry> entries = new ArrayList<>();
+        for (BluegigaService service : services.values()) {
+            BluegigaGattCache.ServiceEntry serviceEntry = new BluegigaGattCache.ServiceEntry(
+                    UUID.fromString(service.getURL().getServiceUUID()),
+                    service.getHandleStart(), service.getHandleEnd());
+            for (Characteristic characteristic : service.getDiscoveredCharacteristics()) {
+                BluegigaCharacteristic bluegigaCharacteristic = (BluegigaCharacteristic) characteristic;
+                BluegigaGattCache.CharacteristicEntry characteristicEntry = new BluegigaGattCache.CharacteristicEntry(
+                        UUID.fromString(characteristic.getURL().getCharacteristicUUID()),
+                        bluegigaCharacteristic.getCharacteristicHandle(),
+                        characteristic.getFlags().stream().mapToInt(CharacteristicAccessType::getBitField)
+                                .reduce(0, (left, right) -> left | right));
+                for (BluegigaDescriptor descriptor : bluegigaCharacteristic.getDescriptors()) {
+                    characteristicEntry.addDescriptor(new BluegigaGattCache.DescriptorEntry(
+                            descriptor.getUuid(), descriptor.getDescriptorHandle()));
+                }
+                serviceEntry.addCharacteristic(characteristicEntry);
+            }
+            entries.add(serviceEntry);
+        }
+        if (gattCache != null) {
+            gattCache.store(url.getDeviceAddress(), entries);
+        }
+        BluegigaGattTemplates.Rule rule = matchTemplate(templates);
+        if (rule != null) {
+            templates.release(url.getDeviceAddress());
+            templates.capture(rule, entries);
+        }
+    }
+
+    private void subscribeServiceChanged() {
+        BluegigaCharacteristic serviceChanged = services.values().stream()
+                .filter(service -> service.getURL().getServiceUUID().startsWith(GENERIC_ATTRIBUTE_UUID))
+                .map(service -> service.findCharacteristicByShortUUID(SERVICE_CHANGED_UUID))
+                .filter(Objects::nonNull).findFirst().orElse(null);
+        if (serviceChanged == null) {
+            return;
+        }
+        serviceChangedHandle = serviceChanged.getCharacteristicHandle();
+        serviceChangedConnection = connectionHandle;
+        bgHandler.addAttributeListener(serviceChangedConnection, serviceChangedHandle, this);
+        try {
+            // indications are disabled by default, they are enabled by writing 0x0002 to the configuration descriptor
+            serviceChanged.toggleNotification(true);
+        } catch (BluegigaException ex) {
+            logger.warn("Could not enable service changed indications: {} : {}", url, ex.getMessage());
+        }
+    }
+
+    private void handleServiceChanged(BlueGigaAttributeValueEvent event) {
+        if (serviceChangedHandle != -1 && event.getConnection() == serviceChangedConnection
+                && event.getAttHandle() == serviceChangedHandle) {
+            logger.warn("Service changed indication received, rediscovering attributes: {}", url);
+            getHandler().invalidateGattCache(url.getDeviceAddress());
+            rediscover();
+        }
+    }
+
+    private void rediscover() {
+        scheduleDiscovery(() -> {
+            servicesUnresolved();
+            discoverAttributes();
+        });
+    }
+
+    /**
+     * Schedules attribute discovery on the discovery worker pool of the handler, so that event dispatching
+     * is not blocked while the device is being discovered. Nothing is scheduled if a discovery of this device
+     * is already pending or running.
+     * @param discovery discovery task
+     */
+    private void scheduleDiscovery(Runnable discovery) {
+        getHandler().scheduleDiscovery(url.getDeviceAddress(), () -> {
+            try {
+                discovery.run();
+            } catch (Exception ex) {
+                handleException("attribute discovery", ex);
+            }
+        });
+    }
+
+    private void handleException(Object source, Exception ex) {
+        if (ex instanceof BluegigaProcedureException) {
+            logger.debug("Bluegiga procedure exception occurred while handling bluegiga event: {} : {} : {}",
+                    url, source, ex.getMessage());
+            // events can lead to some procedures (e.g. service discovery etc) that can cause disconnections
+            // no disconnection events are issued in that case
+            if (((BluegigaProcedureException) ex).getResponse() == BgApiResponse.NOT_CONNECTED) {
+                connectionHandle = -1;
+                notifyConnected(false);
+            }
+        } else {
+            logger.warn("Unexpected exception occurred while handling bluegiga event: {} : {} : {}",
+                    url, source, ex.getMessage());
+            if (connectionHandle != -1 && !isConnected()) {
+                // looks like we have been disconnected but the disconnection event had been missed
+                connectionHandle = -1;
+                notifyConnected(false);
             }
         }
     }
@@ -473,13 +831,7 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
                 connectionHandle = event.getConnection();
                 notifyConnected(true);
             }
-            if (serviceDiscoveryLock.tryLock()) {
-                try {
-                    discoverAttributes();
-                } finally {
-                    serviceDiscoveryLock.unlock();
-                }
-            }
+            scheduleDiscovery(this::discoverAttributes);
         }
     }
 
@@ -494,27 +846,155 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     protected void discoverServices() {
         logger.debug("Discovering services: {}", url);
         // discover services
-        getHandler().getServices(connectionHandle)
-            .stream().map(this::convert).forEach(service -> services.put(service.getURL(), service));
+        Set<String> allowlist = getHandler().getServiceAllowlist();
+        // services are built as their events are received
+        getHandler().streamServices(connectionHandle, event -> {
+            BluegigaService service = convert(event);
+            if (isServiceAllowed(service, allowlist)) {
+                services.put(service.getURL(), service);
+            }
+        });
         logger.debug("Services discovered: {}", services.size());
     }
 
-    protected void discoverCharacteristics(List<BluegigaService> servicesTable) {
+    /**
+     * Discovers characteristics and their descriptors in a single pass. Characteristics (their value handles,
+     * UUIDs and properties) are derived from characteristic declarations, then descriptors are discovered
+     * only within handle gaps between a characteristic value and the next declaration (or the service end).
+     * Characteristics are built as declaration events are received.
+     * @param servicesTable services sorted by their handles
+     * @param ranges handle ranges to discover, or null to discover the whole attribute table
+     */
+    protected void discoverCharacteristics(List<BluegigaService> servicesTable, List<int[]> ranges) {
         logger.debug("Discovering characteristics: {}", url);
-        // discover characteristics and their descriptors
-        List<BlueGigaFindInformationFoundEvent> infoEvents = getHandler().getCharacteristics(connectionHandle);
-        logger.debug("Info events received: {} : {}", url, infoEvents.size());
-        processAttributes(servicesTable, infoEvents);
+        DeclarationProcessor processor = new DeclarationProcessor(servicesTable);
+        if (ranges == null) {
+            getHandler().streamDeclarations(connectionHandle, processor);
+        } else {
+            // ranges are sorted, hence declarations are streamed in the order of their handles
+            for (int[] range : ranges) {
+                getHandler().streamDeclarations(connectionHandle, range[0], range[1], processor);
+            }
+        }
+        Map<BluegigaCharacteristic, int[]> descriptorRanges = processor.finish();
         logger.debug("Characteristics discovered: {}", url);
+        discoverDescriptors(descriptorRanges);
     }
 
-    protected void discoverDeclarations(List<BluegigaService> servicesTable) {
-        logger.debug("Discovering declarations: {}", url);
-        // discover characteristic properties (access flags)
-        List<BlueGigaAttributeValueEvent> attEvents = getHandler().getDeclarations(connectionHandle);
-        logger.debug("Attribute events received: {} : {}", url, attEvents.size());
-        processDeclarations(servicesTable, attEvents);
-        logger.debug("Declarations discovered: {}", url);
+    protected void discoverDescriptors(Map<BluegigaCharacteristic, int[]> descriptorRanges) {
+        /*
+        Info on how to match descriptors to characteristics:
+        https://www.safaribooksonline.com/library/view/getting-started-with/9781491900550/ch04.html
+
+        Once the boundaries (in terms of handles) of a target characteristic have been established,
+        the client can go on to characteristic descriptor discovery.
+
+        GATT specification says that all characteristic and their descriptors are ordered in the GATT table,
+        i.e. descriptors go after their characteristic value. This means that what's between a characteristic value
+        and the next characteristic declaration (or the end of the service) belongs to that characteristic.
+        Characteristics which values are immediately followed by another declaration do not have any descriptors.
+
+        Gaps of a service are merged into a single find information procedure (from the first gap to the last one),
+        so that the number of procedures does not grow with the number of characteristics. Attributes found
+        outside of the gaps (characteristic declarations and values, or descriptors of characteristics that are not
+        allowed) are skipped.
+         */
+        logger.debug("Discovering descriptors: {} : {}", url, descriptorRanges.size());
+        TreeMap<Integer, Map.Entry<BluegigaCharacteristic, int[]>> gaps = new TreeMap<>();
+        Map<URL, int[]> serviceRanges = new LinkedHashMap<>();
+        for (Map.Entry<BluegigaCharacteristic, int[]> entry : descriptorRanges.entrySet()) {
+            int[] range = entry.getValue();
+            gaps.put(range[0], entry);
+            serviceRanges.merge(entry.getKey().getURL().getServiceURL(), range.clone(), (merged, next) ->
+                    new int[] {Math.min(merged[0], next[0]), Math.max(merged[1], next[1])});
+        }
+        for (int[] range : serviceRanges.values()) {
+            getHandler().streamCharacteristics(connectionHandle, range[0], range[1], event -> {
+                UUID attributeUUID = event.getUuid();
+                // this is a short version of UUID, we need it to find out type of attribute
+                long shortUUID = attributeUUID.getMostSignificantBits() >> 32;
+                Map.Entry<Integer, Map.Entry<BluegigaCharacteristic, int[]>> gap =
+                        gaps.floorEntry(event.getChrHandle());
+                if (shortUUID >= 0x2800 && shortUUID <= 0x280F) {
+                    // Declarations (https://www.bluetooth.com/specifications/gatt/declarations)
+                    logger.debug("Skipping a declaration: {}", attributeUUID);
+                } else if (gap == null || event.getChrHandle() > gap.getValue().getValue()[1]) {
+                    logger.debug("Skipping an attribute outside of descriptor ranges: {} : {}",
+                            attributeUUID, event.getChrHandle());
+                } else {
+                    BluegigaCharacteristic characteristic = gap.getValue().getKey();
+                    logger.debug("Create a new descriptor: {} : {}", characteristic.getURL(), event.getChrHandle());
+                    characteristic.addDescriptor(new BluegigaDescriptor(getHandler(),
+                            connectionHandle, event.getChrHandle(), attributeUUID));
+                }
+            });
+        }
+        logger.debug("Descriptors discovered: {}", url);
+    }
+
+    /**
+     * Merges handle ranges of adjacent services.
+     * @param servicesTable services sorted by their handles
+     * @return handle ranges, each range is an array of the first and the last handles
+     */
+    private static List<int[]> getHandleRanges(List<BluegigaService> servicesTable) {
+        List<int[]> ranges = new ArrayList<>();
+        for (BluegigaService service : servicesTable) {
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && service.getHandleStart() == last[1] + 1) {
+                last[1] = service.getHandleEnd();
+            } else {
+                ranges.add(new int[] {service.getHandleStart(), service.getHandleEnd()});
+            }
+        }
+        return ranges;
+    }
+
+    private static boolean isServiceAllowed(BluegigaService service, Set<String> allowlist) {
+        // the generic attribute service is always discovered as it is required to track service changes
+        String uuid = service.getURL().getServiceUUID();
+        return allowlist.isEmpty() || allowlist.contains(uuid) || uuid.startsWith(GENERIC_ATTRIBUTE_UUID);
+    }
+
+    private boolean isCharacteristicAllowed(URL characteristicURL) {
+        Set<String> allowlist = getHandler().getCharacteristicAllowlist();
+        return allowlist.isEmpty() || allowlist.contains(characteristicURL.getCharacteristicUUID())
+                || characteristicURL.getCharacteristicUUID().startsWith(SERVICE_CHANGED_FULL_UUID);
+    }
+
+    /**
+     * Discovers characteristics and their descriptors within a service handle range (lazy discovery).
+     * @param service service to discover
+     */
+    protected void discoverServiceAttributes(BluegigaService service) {
+        runInDiscoveryContext(() -> {
+            logger.debug("Discovering service attributes: {}", service.getURL());
+            int connection = connectionHandle;
+            int generation;
+            synchronized (resolutionContext) {
+                generation = servicesGeneration;
+            }
+            if (connection == -1) {
+                throw new BluegigaException("Device is not connected: " + url);
+            }
+            List<BluegigaService> servicesTable = Collections.singletonList(service);
+            discoverCharacteristics(servicesTable, getHandleRanges(servicesTable));
+            synchronized (resolutionContext) {
+                if (generation != servicesGeneration || connection != connectionHandle) {
+                    // the service belongs to a disposed attribute table, its results must not be published
+                    service.getDiscoveredCharacteristics().forEach(
+                        characteristic -> ((BluegigaCharacteristic) characteristic).dispose());
+                    throw new BluegigaException(
+                            "Device has been disconnected while discovering service attributes: " + url);
+                }
+                attributeTable = BluegigaAttributeTable.build(services.values());
+                logger.debug("Service attributes discovered: {}", service.getURL());
+                if (services.values().stream().allMatch(other -> other == service || other.isResolved())) {
+                    // the whole attribute table has been discovered
+                    storeAttributes();
+                }
+            }
+        });
     }
 
     protected int getConnectionHandle() {
@@ -524,83 +1004,26 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     private void handleScanEvent(BlueGigaScanResponseEvent scanEvent) {
         if (url.getDeviceAddress().equals(scanEvent.getSender())) {
             logger.trace("Advertising message received: {}", url);
+            final boolean stale = isStale();
             rssi = (short) scanEvent.getRssi();
             addressType = scanEvent.getAddressType();
             lastDiscovered = Instant.now();
+            filterRSSI(rssi, stale);
             notifyRSSIChanged(rssi);
             if (scanEvent.getData() != null) {
-                Map<EirDataType, Object> eir = new EirPacket(scanEvent.getData()).getRecords();
-
-                if (eir.containsKey(EirDataType.EIR_NAME_LONG) || eir.containsKey(EirDataType.EIR_NAME_SHORT)) {
-                    name = String.valueOf(eir.getOrDefault(EirDataType.EIR_NAME_LONG,
-                            eir.getOrDefault(EirDataType.EIR_NAME_SHORT, null)));
-                }
-
-                if (eir.containsKey(EirDataType.EIR_DEVICE_CLASS)) {
-                    bluetoothClass = (int) eir.get(EirDataType.EIR_DEVICE_CLASS);
-                }
-
-                if (eir.containsKey(EirDataType.EIR_FLAGS)) {
-                    List<EirFlags> eirFlags = (List<EirFlags>) eir.get(EirDataType.EIR_FLAGS);
-                    // any flag would mean that the device is BLE enabled
-                    bleEnabled = !eirFlags.isEmpty();
-                }
-
-                if (eir.containsKey(EirDataType.EIR_TXPOWER)) {
-                    txPower = (short) (int) eir.get(EirDataType.EIR_TXPOWER);
-                }
-                if (handleServiceData(eir, EirDataType.EIR_SVC_DATA_UUID16)
-                        | handleServiceData(eir, EirDataType.EIR_SVC_DATA_UUID32)
-                        | handleServiceData(eir, EirDataType.EIR_SVC_DATA_UUID128)) {
-                    notifyServiceDataChanged();
-                }
-
-                if (eir.containsKey(EirDataType.EIR_MANUFACTURER_SPECIFIC)) {
-                    handleManufacturerData(eir);
+                if (advertisementProcessor == null) {
+                    advertisementProcessor = new AdvertisementProcessor();
                 }
+                advertisementProcessor.process(scanEvent.getPacketType(), scanEvent.getData());
             }
         }
     }
 
-    private void handleManufacturerData(Map<EirDataType, Object> eir) {
-        logger.trace("Manufacturer data changed: {}", url);
-        Map<Short, int[]> rawData =
-                (Map<Short, int[]>) eir.get(EirDataType.EIR_MANUFACTURER_SPECIFIC);
-
-        if (logger.isTraceEnabled()) {
-            logger.trace("Manufacturer data changed: {} : {}", url, rawData.entrySet().stream()
-                    .collect(Collectors.toMap(Map.Entry::getKey,
-                        entry -> DataConversionUtils.convert(BluegigaUtils.fromInts(entry.getValue()), 16))));
-        }
-
-        rawData.forEach((id, data) ->
-                manufacturerData.compute(id, (key, value) -> BluegigaUtils.fromInts(data)));
-        notifyManufacturerDataChanged();
-    }
-
-    private boolean handleServiceData(Map<EirDataType, Object> eir, EirDataType type) {
-        if (eir.containsKey(type)) {
-            Map<UUID, int[]> svcData = (Map<UUID, int[]>) eir.get(type);
-
-            if (logger.isTraceEnabled()) {
-                logger.trace("Service data changed: {} : {}", url, svcData.entrySet().stream()
-                        .collect(Collectors.toMap(entry -> getUUID(entry.getKey()),
-                            entry -> DataConversionUtils.convert(BluegigaUtils.fromInts(entry.getValue()), 16))));
-            }
-
-            svcData.forEach((uuid, data) ->
-                    serviceData.compute(getUUID(uuid), (key, value) -> BluegigaUtils.fromInts(data)));
-
-            return true;
-        }
-        return false;
-    }
-
     private void notifyServiceDataChanged() {
         Notification<Map<String, byte[]>> notification = serviceDataNotification;
         if (notification != null) {
             try {
-                notification.notify(new HashMap<>(serviceData));
+                notification.notify(serviceDataSnapshot);
             } catch (Exception ex) {
                 logger.error("Error while executing service data changed notification", ex);
             }
@@ -611,7 +1034,7 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
         Notification<Map<Short, byte[]>> notification = manufacturerDataNotification;
         if (notification != null) {
             try {
-                notification.notify(new HashMap<>(manufacturerData));
+                notification.notify(manufacturerDataSnapshot);
             } catch (Exception ex) {
                 logger.error("Error while executing manufacturer data changed notification", ex);
             }
@@ -630,18 +1053,48 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
     }
 
     private void servicesUnresolved() {
-        disposeServices();
-        if (servicesResolved) {
+        boolean resolved;
+        synchronized (resolutionContext) {
+            servicesGeneration++;
+            disposeServices();
+            resolved = servicesResolved;
+            servicesResolved = false;
+            if (resolved) {
+                bgHandler.removeGattInvalidationListener(url.getDeviceAddress());
+            }
+        }
+        if (resolved) {
             notifyServicesResolved(false);
         }
-        servicesResolved = false;
+    }
+
+    private void filterRSSI(short rssi, boolean reset) {
+        BluegigaRssiFilter filter = rssiFilter;
+        if (filter == null) {
+            filteredRssi = rssi;
+            return;
+        }
+        if (reset) {
+            // old values are irrelevant if the device has not been seen for a long time
+            filter.reset();
+        }
+        filteredRssi = filter.update(rssi);
+    }
+
+    private boolean isStale() {
+        Instant discovered = lastDiscovered;
+        return discovered == null || discovered.isBefore(Instant.now().minusSeconds(DISCOVERY_TIMEOUT));
     }
 
     private void notifyRSSIChanged(short rssi) {
         Notification<Short> notification = rssiNotification;
         if (notification != null) {
+            BluegigaRssiPolicy policy = getRssiPolicy();
+            if (!rssiTracker.offer(policy, rssi, System.currentTimeMillis())) {
+                return;
+            }
             try {
-                notification.notify(rssi);
+                notification.notify(rssiTracker.getValue());
             } catch (Exception ex) {
                 logger.error("Error while triggering RSSI notification", ex);
             }
@@ -675,77 +1128,223 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
             event.getStart(), event.getEnd());
     }
 
-    private void processAttributes(List<BluegigaService> servicesTable,
-                                   List<BlueGigaFindInformationFoundEvent> events) {
-        /*
-        Info on how to match descriptors to characteristics:
-        https://www.safaribooksonline.com/library/view/getting-started-with/9781491900550/ch04.html
-
-        Once the boundaries (in terms of handles) of a target characteristic have been established,
-        the client can go on to characteristic descriptor discovery.
+    private static String getUUID(UUID uuid) {
+        return DEFAULT_UUID_REPLACEMENT.matcher(uuid.toString()).replaceAll(Matcher.quoteReplacement(DEFAULT_UUID));
+    }
 
-        A handle is a numeric identifier of an attribute (service, characteristic or descriptor) in the GATT table.
-        Services strictly define ranges of handles that they occupy. A range of a service defines what characteristics
-        and descriptors that service consists of. All characteristics and descriptors, which belong to
-        a specific service, take place within the service handle range.
+    /**
+     * Applies advertising data to the device in place. Values (names, service and manufacturer data) are
+     * compared with the current ones and a new object is allocated only when a value has actually changed,
+     * service and manufacturer data notifications are fired only for such changes,
+     * map keys are cached so that the same UUID string or manufacturer id is reused for subsequent advertisements.
+     * Most devices repeat the same payload for a long time, so the last payload of each packet type
+     * (advertisement or scan response) is kept and identical payloads are not parsed at all.
+     * Scan responses of a device are processed sequentially.
+     */
+    private class AdvertisementProcessor implements BluegigaAdvertisement.Visitor {
+
+        private final AdvertisementKeys<String> serviceKeys = new AdvertisementKeys<>();
+        private final AdvertisementKeys<Short> manufacturerKeys = new AdvertisementKeys<>();
+        // last payloads indexed by packet types, devices usually alternate advertisements and scan responses
+        private final int[][] lastPayloads = new int[ScanResponseType.values().length][];
+        private boolean completeName;
+        private boolean serviceDataChanged;
+        private boolean manufacturerDataChanged;
+
+        void process(ScanResponseType packetType, int[] data) {
+            int index = packetType != null ? packetType.ordinal() : ScanResponseType.UNKNOWN.ordinal();
+            int[] lastPayload = lastPayloads[index];
+            if (Arrays.equals(lastPayload, data)) {
+                logger.trace("Advertising data has not changed: {}", url);
+                return;
+            }
+            completeName = false;
+            serviceDataChanged = false;
+            manufacturerDataChanged = false;
+            BluegigaAdvertisement.parse(data, this);
+            if (lastPayload == null || lastPayload.length != data.length) {
+                lastPayload = new int[data.length];
+                lastPayloads[index] = lastPayload;
+            }
+            System.arraycopy(data, 0, lastPayload, 0, data.length);
+            if (serviceDataChanged) {
+                serviceDataSnapshot = snapshot(serviceData);
+                notifyServiceDataChanged();
+            }
+            if (manufacturerDataChanged) {
+                manufacturerDataSnapshot = snapshot(manufacturerData);
+                notifyManufacturerDataChanged();
+            }
+        }
 
-        The way how to determine which descriptor belongs to which characteristic is a bit tricky. GATT specification
-        says that all characteristic and their descriptors are ordered in the GATT table,
-        i.e. normally descriptors go after their characteristic. This means that what's between two characteristics
-        belongs to the left-side characteristic etc.
+        /**
+         * Makes a snapshot to be published to consumers. Values are copied as the stored ones are used to detect
+         * changes and must not be modified by consumers.
          */
+        private <K> Map<K, byte[]> snapshot(Map<K, byte[]> values) {
+            Map<K, byte[]> snapshot = new HashMap<>(values.size() * 2);
+            values.forEach((key, value) -> snapshot.put(key, value.clone()));
+            return Collections.unmodifiableMap(snapshot);
+        }
 
-        events.sort(Comparator.comparingInt(BlueGigaFindInformationFoundEvent::getChrHandle));
+        @Override
+        public void flags(int flags) {
+            // any flag would mean that the device is BLE enabled
+            bleEnabled = flags != 0;
+        }
 
-        BluegigaCharacteristic characteristic = null;
+        @Override
+        public void name(boolean complete, int[] data, int offset, int length) {
+            if (completeName && !complete) {
+                // complete name takes precedence over the short one
+                return;
+            }
+            completeName = complete;
+            String current = name;
+            if (current == null || !equals(current, data, offset, length)) {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = (char) data[offset + i];
+                }
+                name = new String(chars);
+            }
+        }
 
-        Iterator<BluegigaService> servicesIterator = servicesTable.iterator();
-        BluegigaService bluegigaService = servicesIterator.next();
-        for (BlueGigaFindInformationFoundEvent event : events) {
-            if (event.getChrHandle() > bluegigaService.getHandleEnd()) {
-                bluegigaService = servicesIterator.next();
+        @Override
+        public void txPower(int power) {
+            txPower = (short) power;
+        }
+
+        @Override
+        public void deviceClass(int deviceClass) {
+            bluetoothClass = deviceClass;
+        }
+
+        @Override
+        public void serviceUUID(long msb, long lsb) {
+            advertisedServices.add(getServiceKey(msb, lsb));
+        }
+
+        @Override
+        public void serviceData(long msb, long lsb, int[] data, int offset, int length) {
+            String uuid = getServiceKey(msb, lsb);
+            if (!equals(serviceData.get(uuid), data, offset, length)) {
+                byte[] value = copy(data, offset, length);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Service data changed: {} : {} : {}", url, uuid,
+                            DataConversionUtils.convert(value, 16));
+                }
+                serviceData.put(uuid, value);
+                serviceDataChanged = true;
             }
-            UUID attributeUUID = event.getUuid();
-            // this is a short version of UUID, we need it to find out type of attribute
-            long shortUUID = attributeUUID.getMostSignificantBits() >> 32;
-            if (shortUUID >= 0x2800 && shortUUID <= 0x280F) {
-                // Declarations (https://www.bluetooth.com/specifications/gatt/declarations)
-                // we will skip them as we are not interested in them
-                logger.debug("Skipping a declaration: " + attributeUUID);
-            } else {
-                if (bluegigaService == null) {
-                    throw new BluegigaException("Could not find a service by characteristic handle: "
-                        + event.getChrHandle());
+        }
+
+        @Override
+        public void manufacturerData(short id, int[] data, int offset, int length) {
+            Short key = manufacturerKeys.get(id, 0);
+            if (key == null) {
+                key = manufacturerKeys.put(id, 0, id);
+            }
+            if (!equals(manufacturerData.get(key), data, offset, length)) {
+                byte[] value = copy(data, offset, length);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Manufacturer data changed: {} : {} : {}", url, key,
+                            DataConversionUtils.convert(value, 16));
                 }
-                if (shortUUID >= 0x2900 && shortUUID <= 0x290F) {
-                    // Descriptors (https://www.bluetooth.com/specifications/gatt/descriptors)
-                    if (characteristic == null) {
-                        logger.error("Came across a descriptor, but there is not any characteristic so far... "
-                                + "Characteristic should go first followed by its descriptors. {}",
-                                attributeUUID);
-                        throw new IllegalStateException("A characteristic was expected to go first");
-                    }
-                    logger.debug("Create a new descriptor: {} : {}", characteristic.getURL(), event.getChrHandle());
-                    BluegigaDescriptor descriptor = new BluegigaDescriptor(getHandler(),
-                            connectionHandle, event.getChrHandle(), attributeUUID);
-                    characteristic.addDescriptor(descriptor);
-                } else {
-                    // Characteristics
-                    URL characteristicURL = bluegigaService.getURL().copyWithCharacteristic(getUUID(event.getUuid()));
-                    logger.debug("Create a new characteristic: {}", characteristicURL);
-                    characteristic = new BluegigaCharacteristic(getHandler(), characteristicURL,
-                            connectionHandle, event.getChrHandle());
-                    bluegigaService.addCharacteristic(characteristic);
+                manufacturerData.put(key, value);
+                manufacturerDataChanged = true;
+            }
+        }
+
+        private String getServiceKey(long msb, long lsb) {
+            String key = serviceKeys.get(msb, lsb);
+            if (key == null) {
+                key = serviceKeys.put(msb, lsb, getUUID(new UUID(msb, lsb)));
+            }
+            return key;
+        }
+
+        private boolean equals(String value, int[] data, int offset, int length) {
+            if (value.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (value.charAt(i) != (char) data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean equals(byte[] value, int[] data, int offset, int length) {
+            if (value == null || value.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (value[i] != (byte) data[offset + i]) {
+                    return false;
                 }
             }
+            return true;
+        }
+
+        private byte[] copy(int[] data, int offset, int length) {
+            byte[] value = new byte[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = (byte) data[offset + i];
+            }
+            return value;
         }
     }
 
-    private static String getUUID(UUID uuid) {
-        return DEFAULT_UUID_REPLACEMENT.matcher(uuid.toString()).replaceAll(Matcher.quoteReplacement(DEFAULT_UUID));
+    /**
+     * A small cache of map keys indexed by their raw (two longs) representation. The number of distinct
+     * UUIDs or manufacturer ids a device advertises is small, so a linear search is used. Once the cache is full,
+     * keys are not cached any longer.
+     * @param <K> key type
+     */
+    private static final class AdvertisementKeys<K> {
+
+        private static final int MAX_SIZE = 32;
+
+        private long[] high = new long[4];
+        private long[] low = new long[4];
+        private Object[] keys = new Object[4];
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        K get(long hi, long lo) {
+            for (int i = 0; i < size; i++) {
+                if (high[i] == hi && low[i] == lo) {
+                    return (K) keys[i];
+                }
+            }
+            return null;
+        }
+
+        K put(long hi, long lo, K key) {
+            if (size == MAX_SIZE) {
+                return key;
+            }
+            if (size == keys.length) {
+                high = Arrays.copyOf(high, size * 2);
+                low = Arrays.copyOf(low, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            high[size] = hi;
+            low[size] = lo;
+            keys[size] = key;
+            size++;
+            return key;
+        }
     }
 
-    private void processDeclarations(List<BluegigaService> servicesTable, List<BlueGigaAttributeValueEvent> events) {
+    /**
+     * Builds characteristics from declaration events as they are streamed. Events must be streamed
+     * in the order of their handles, descriptor handle ranges are known once all events have been processed.
+     */
+    private class DeclarationProcessor implements Consumer<BlueGigaAttributeValueEvent> {
+
         /*
         It always contains a handle, a UUID, and a set of properties. These three elements describe the subsequent
         Characteristic Value Declaration. The handle naturally points to the Characteristic Value Declaration&rsquo;s
@@ -755,7 +1354,7 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
         interacted with.
         Example: 10-0E-00-37-2A
             0x2A37 is the characteristic UUID
-            000E is the declaration handle
+            000E is the characteristic value handle
             10 is the characteristic properties as per this table:
 
             Broadcast                       0x01
@@ -772,36 +1371,90 @@ class BluegigaDevice implements Device, BlueGigaEventListener {
          https://www.bluetooth.com/specifications/gatt/viewer?attributeXmlFile=org.bluetooth.attribute.gatt.characteristic_declaration.xml
          */
 
-        events.sort(Comparator.comparingInt(BlueGigaAttributeValueEvent::getAttHandle));
+        private final Map<BluegigaCharacteristic, int[]> descriptorRanges = new LinkedHashMap<>();
+        private final Iterator<BluegigaService> servicesIterator;
+        private BluegigaService bluegigaService;
+        private BluegigaCharacteristic previous;
+        private BluegigaService previousService;
+        private int lastHandle;
+
+        DeclarationProcessor(List<BluegigaService> servicesTable) {
+            servicesIterator = servicesTable.iterator();
+            bluegigaService = servicesIterator.hasNext() ? servicesIterator.next() : null;
+        }
 
-        Iterator<BluegigaService> servicesIterator = servicesTable.iterator();
-        BluegigaService bluegigaService = servicesIterator.next();
-        for (BlueGigaAttributeValueEvent event : events) {
+        @Override
+        public void accept(BlueGigaAttributeValueEvent event) {
+            if (bluegigaService == null) {
+                return;
+            }
             //  characteristic declaration
             int[] attributeValue = event.getValue();
 
-            if (event.getAttHandle() > bluegigaService.getHandleEnd()) {
+            // services that do not have any characteristics do not have any declarations
+            while (event.getAttHandle() > bluegigaService.getHandleEnd() && servicesIterator.hasNext()) {
                 bluegigaService = servicesIterator.next();
             }
+            if (event.getAttHandle() < bluegigaService.getHandleStart()
+                    || event.getAttHandle() > bluegigaService.getHandleEnd()
+                    || event.getAttHandle() <= lastHandle
+                    || attributeValue.length < DECLARATION_MIN_LENGTH) {
+                logger.debug("Skipping a declaration that does not belong to any service: {}", event.getAttHandle());
+                return;
+            }
+            lastHandle = event.getAttHandle();
+
+            // descriptors of the previous characteristic end right before this declaration (or its service end)
+            if (previous != null) {
+                addDescriptorRange(descriptorRanges, previous, previousService == bluegigaService
+                        ? event.getAttHandle() - 1 : previousService.getHandleEnd());
+            }
 
+            int valueHandle = attributeValue[1] | attributeValue[2] << 8;
             String characteristicUUID = getUUID(BluegigaUtils.deserializeUUID(
                     Arrays.copyOfRange(attributeValue, 3, attributeValue.length)));
-            BluegigaCharacteristic bluegigaCharacteristic =
-                    bluegigaService.getCharacteristic(
-                            bluegigaService.getURL().copyWithCharacteristic(characteristicUUID));
-            if (bluegigaCharacteristic != null) {
-                bluegigaCharacteristic.setFlags(CharacteristicAccessType.parse(attributeValue[0]));
+            URL characteristicURL = bluegigaService.getURL().copyWithCharacteristic(characteristicUUID);
+            if (isCharacteristicAllowed(characteristicURL)) {
+                logger.debug("Create a new characteristic: {} : {}", characteristicURL, valueHandle);
+                BluegigaCharacteristic characteristic = new BluegigaCharacteristic(getHandler(), characteristicURL,
+                        connectionHandle, valueHandle);
+                characteristic.setFlags(CharacteristicAccessType.parse(attributeValue[0]));
+                bluegigaService.addCharacteristic(characteristic);
+                previous = characteristic;
+                previousService = bluegigaService;
             } else {
-                logger.error("Could not find characteristic: {}", characteristicUUID);
+                logger.debug("Skipping a characteristic that is not allowed: {}", characteristicURL);
+                previous = null;
             }
+        }
 
+        Map<BluegigaCharacteristic, int[]> finish() {
+            if (previous != null) {
+                addDescriptorRange(descriptorRanges, previous, previousService.getHandleEnd());
+                previous = null;
+            }
+            return descriptorRanges;
+        }
+    }
+
+    private static void addDescriptorRange(Map<BluegigaCharacteristic, int[]> descriptorRanges,
+                                           BluegigaCharacteristic characteristic, int handleEnd) {
+        int handleStart = characteristic.getCharacteristicHandle() + 1;
+        if (handleStart <= handleEnd) {
+            descriptorRanges.put(characteristic, new int[] {handleStart, handleEnd});
         }
     }
 
     private void disposeServices() {
-        services.values().stream().flatMap(service -> service.getCharacteristics().stream())
+        if (serviceChangedHandle != -1) {
+            bgHandler.removeAttributeListener(serviceChangedConnection, serviceChangedHandle, this);
+            serviceChangedHandle = -1;
+            serviceChangedConnection = -1;
+        }
+        services.values().stream().flatMap(service -> service.getDiscoveredCharacteristics().stream())
                 .forEach(characteristic -> ((BluegigaCharacteristic) characteristic).dispose());
         services.clear();
+        attributeTable = BluegigaAttributeTable.EMPTY;
     }
 
 }
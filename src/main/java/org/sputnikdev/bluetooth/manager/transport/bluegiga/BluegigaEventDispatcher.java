@@ -0,0 +1,290 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaEventListener;
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.gap.BlueGigaScanResponseEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bluegiga event dispatch stage. Events received from the serial handler are put into queues and delivered
+ * to the registered listeners by a configurable number of worker threads, so that slow listeners do not hold up
+ * the serial handler. Events are partitioned between workers by device address (connection handles are resolved
+ * to addresses of connected devices), so that all events of a device are delivered in order by a single worker.
+ *
+ * <p>Queues have a fixed capacity which is allocated once when the dispatcher is started. When a queue is full,
+ * scan response events are handled according to the configured {@link OverflowPolicy}. Any other events
+ * (connection and GATT events) take the place of the oldest queued scan response event, if there is no such event,
+ * the serial handler is held up for at most {@link #OFFER_TIMEOUT} milliseconds waiting for the worker to catch up,
+ * then the event is dropped (and counted as dropped).
+ */
+class BluegigaEventDispatcher {
+
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_QUEUE_SIZE = 1024;
+    static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+    // how long the serial handler can be held up by a full queue (in milliseconds)
+    static final long OFFER_TIMEOUT = 100;
+    // connection handles are single bytes
+    private static final int MAX_CONNECTIONS = 256;
+
+    private final Logger logger = LoggerFactory.getLogger(BluegigaEventDispatcher.class);
+
+    private final List<BlueGigaEventListener> listeners = new CopyOnWriteArrayList<>();
+    private final ThreadFactory threadFactory = BluegigaUtils.daemonThreadFactory("bluegiga-dispatcher");
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private int threads = DEFAULT_THREADS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    private volatile Worker[] workers;
+    // addresses of connected devices indexed by connection handles
+    private final AtomicReferenceArray<String> connections = new AtomicReferenceArray<>(MAX_CONNECTIONS);
+    private volatile boolean disposed;
+
+    /**
+     * Defines what happens with a scan response event if the dispatch queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Hold up the serial handler until there is space in the queue, but for no longer than
+         * {@link #OFFER_TIMEOUT} milliseconds, then drop the event.
+         */
+        BLOCK,
+        /**
+         * Drop the event that is being dispatched.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest scan response event in the queue, or the event that is being dispatched
+         * if there are no scan response events in the queue.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Configures the dispatcher. Must be called before any events are dispatched.
+     * @param threads number of worker threads
+     * @param queueSize capacity of the queue of each worker
+     * @param overflowPolicy what to do with scan response events when a queue is full
+     */
+    synchronized void configure(int threads, int queueSize, OverflowPolicy overflowPolicy) {
+        if (workers != null) {
+            throw new IllegalStateException("Event dispatcher has already been started");
+        }
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Number of threads and queue size must be positive: "
+                    + threads + " / " + queueSize);
+        }
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    void addListener(BlueGigaEventListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(BlueGigaEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Puts the event into a dispatch queue. If the queue is full, the caller is blocked for at most
+     * {@link #OFFER_TIMEOUT} milliseconds (for scan response events only if the {@link OverflowPolicy#BLOCK}
+     * policy is configured).
+     * @param event an event to dispatch
+     */
+    void dispatch(BlueGigaResponse event) {
+        if (disposed || listeners.isEmpty()) {
+            return;
+        }
+        Worker[] started = start();
+        BlockingQueue<BlueGigaResponse> queue = started[partition(event, started.length)].queue;
+        boolean scanEvent = event instanceof BlueGigaScanResponseEvent;
+        boolean queued = queue.offer(event);
+        if (!queued && (!scanEvent || overflowPolicy == OverflowPolicy.DROP_OLDEST) && removeOldestScanEvent(queue)) {
+            // scan response events are disposable, the oldest one gives way to a newer one or to any other event
+            droppedEvents.incrementAndGet();
+            queued = queue.offer(event);
+        }
+        if (!queued && (!scanEvent || overflowPolicy == OverflowPolicy.BLOCK)) {
+            queued = offer(queue, event);
+        }
+        if (!queued) {
+            droppedEvents.incrementAndGet();
+            if (!scanEvent) {
+                logger.warn("Dispatch queue is full, event has been dropped: {}", event.getClass().getSimpleName());
+            }
+            return;
+        }
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /**
+     * Returns the total number of events waiting in the dispatch queues.
+     * @return number of queued events
+     */
+    int getQueueDepth() {
+        Worker[] started = workers;
+        int depth = 0;
+        if (started != null) {
+            for (Worker worker : started) {
+                depth += worker.queue.size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the maximum depth a single dispatch queue has ever reached.
+     * @return maximum queue depth
+     */
+    int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of events dropped due to queue overflows.
+     * @return number of dropped events
+     */
+    long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    void dispose() {
+        disposed = true;
+        listeners.clear();
+        Worker[] started = workers;
+        if (started != null) {
+            for (Worker worker : started) {
+                worker.thread.interrupt();
+                worker.queue.clear();
+            }
+        }
+    }
+
+    private Worker[] start() {
+        Worker[] started = workers;
+        if (started == null) {
+            synchronized (this) {
+                started = workers;
+                if (started == null) {
+                    started = new Worker[threads];
+                    for (int i = 0; i < threads; i++) {
+                        started[i] = new Worker(new ArrayBlockingQueue<>(queueSize));
+                        started[i].thread.start();
+                    }
+                    workers = started;
+                }
+            }
+        }
+        return started;
+    }
+
+    private int partition(BlueGigaResponse event, int partitions) {
+        String address = null;
+        int handle = BluegigaUtils.NO_CONNECTION;
+        if (event instanceof BlueGigaScanResponseEvent) {
+            address = ((BlueGigaScanResponseEvent) event).getSender();
+        } else {
+            handle = BluegigaUtils.getConnectionHandle(event);
+            if (handle >= 0 && handle < MAX_CONNECTIONS) {
+                if (event instanceof BlueGigaConnectionStatusEvent) {
+                    address = ((BlueGigaConnectionStatusEvent) event).getAddress();
+                    connections.set(handle, address);
+                } else {
+                    address = connections.get(handle);
+                }
+            }
+        }
+        int key = address != null ? address.hashCode() : handle;
+        return (key & Integer.MAX_VALUE) % partitions;
+    }
+
+    private static boolean offer(BlockingQueue<BlueGigaResponse> queue, BlueGigaResponse event) {
+        try {
+            return queue.offer(event, OFFER_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean removeOldestScanEvent(BlockingQueue<BlueGigaResponse> queue) {
+        Iterator<BlueGigaResponse> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() instanceof BlueGigaScanResponseEvent) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void deliver(BlueGigaResponse event) {
+        for (BlueGigaEventListener listener : listeners) {
+            try {
+                listener.bluegigaEventReceived(event);
+            } catch (Exception ex) {
+                logger.error("Error occurred in event listener: {} / {}", listener.getClass().getSimpleName(),
+                        event.getClass().getSimpleName(), ex);
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private final BlockingQueue<BlueGigaResponse> queue;
+        private final Thread thread;
+
+        private Worker(BlockingQueue<BlueGigaResponse> queue) {
+            this.queue = queue;
+            thread = threadFactory.newThread(this);
+        }
+
+        @Override
+        public void run() {
+            while (!disposed) {
+                try {
+                    deliver(queue.take());
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
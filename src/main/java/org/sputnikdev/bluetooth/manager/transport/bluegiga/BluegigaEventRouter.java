@@ -0,0 +1,165 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaEventListener;
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectedEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.gap.BlueGigaScanResponseEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Bluegiga event router. Instead of offering each event to every listener, events are routed through hash indexes
+ * by event class and key:
+ * <ul>
+ *     <li>scan response events - by sender address to device listeners</li>
+ *     <li>connection status events - by device address to device listeners</li>
+ *     <li>disconnected events - by connection handle (resolved to device address) to device listeners</li>
+ *     <li>attribute value events - by connection handle and attribute handle to attribute listeners</li>
+ * </ul>
+ * All events are also delivered to generic listeners (e.g. adapter).
+ */
+class BluegigaEventRouter implements BlueGigaEventListener {
+
+    private static final String NO_ADDRESS = "00:00:00:00:00:00";
+
+    private final Logger logger = LoggerFactory.getLogger(BluegigaEventRouter.class);
+
+    private final List<BlueGigaEventListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, List<BlueGigaEventListener>> deviceListeners = new ConcurrentHashMap<>();
+    private final Map<Integer, List<BlueGigaEventListener>> attributeListeners = new ConcurrentHashMap<>();
+    // device addresses by connection handle
+    private final Map<Integer, String> connections = new ConcurrentHashMap<>();
+
+    void addListener(BlueGigaEventListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(BlueGigaEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    void addDeviceListener(String address, BlueGigaEventListener listener) {
+        add(deviceListeners, address, listener);
+    }
+
+    void removeDeviceListener(String address, BlueGigaEventListener listener) {
+        remove(deviceListeners, address, listener);
+    }
+
+    void addAttributeListener(int connectionHandle, int attributeHandle, BlueGigaEventListener listener) {
+        add(attributeListeners, getAttributeKey(connectionHandle, attributeHandle), listener);
+    }
+
+    void removeAttributeListener(int connectionHandle, int attributeHandle, BlueGigaEventListener listener) {
+        remove(attributeListeners, getAttributeKey(connectionHandle, attributeHandle), listener);
+    }
+
+    /**
+     * Returns an address of a device connected with the given connection handle.
+     * @param connectionHandle connection handle
+     * @return device address or null if the connection is not known
+     */
+    String getAddress(int connectionHandle) {
+        return connections.get(connectionHandle);
+    }
+
+    boolean hasListeners() {
+        return !listeners.isEmpty() || !deviceListeners.isEmpty() || !attributeListeners.isEmpty();
+    }
+
+    void clear() {
+        listeners.clear();
+        deviceListeners.clear();
+        attributeListeners.clear();
+        connections.clear();
+    }
+
+    @Override
+    public void bluegigaEventReceived(BlueGigaResponse event) {
+        if (event instanceof BlueGigaScanResponseEvent) {
+            notify(deviceListeners.get(((BlueGigaScanResponseEvent) event).getSender()), event);
+        } else if (event instanceof BlueGigaAttributeValueEvent) {
+            BlueGigaAttributeValueEvent valueEvent = (BlueGigaAttributeValueEvent) event;
+            notify(attributeListeners.get(getAttributeKey(valueEvent.getConnection(), valueEvent.getAttHandle())),
+                    event);
+        } else if (event instanceof BlueGigaConnectionStatusEvent) {
+            BlueGigaConnectionStatusEvent statusEvent = (BlueGigaConnectionStatusEvent) event;
+            String address = statusEvent.getAddress();
+            if (address != null && !NO_ADDRESS.equals(address)) {
+                connections.put(statusEvent.getConnection(), address);
+                notify(deviceListeners.get(address), event);
+            }
+        } else if (event instanceof BlueGigaDisconnectedEvent) {
+            String address = connections.remove(((BlueGigaDisconnectedEvent) event).getConnection());
+            if (address != null) {
+                notify(deviceListeners.get(address), event);
+            }
+        }
+        notify(listeners, event);
+    }
+
+    private void notify(List<BlueGigaEventListener> listeners, BlueGigaResponse event) {
+        if (listeners == null) {
+            return;
+        }
+        for (BlueGigaEventListener listener : listeners) {
+            try {
+                listener.bluegigaEventReceived(event);
+            } catch (Exception ex) {
+                logger.error("Error occurred in event listener: {} / {}", listener.getClass().getSimpleName(),
+                        event.getClass().getSimpleName(), ex);
+            }
+        }
+    }
+
+    private static int getAttributeKey(int connectionHandle, int attributeHandle) {
+        return connectionHandle << 16 | attributeHandle & 0xFFFF;
+    }
+
+    private static <K> void add(Map<K, List<BlueGigaEventListener>> index, K key,
+                                BlueGigaEventListener listener) {
+        index.compute(key, (ignore, listeners) -> {
+            List<BlueGigaEventListener> result = listeners != null ? listeners : new CopyOnWriteArrayList<>();
+            if (!result.contains(listener)) {
+                result.add(listener);
+            }
+            return result;
+        });
+    }
+
+    private static <K> void remove(Map<K, List<BlueGigaEventListener>> index, K key,
+                                   BlueGigaEventListener listener) {
+        index.computeIfPresent(key, (ignore, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+}
@@ -31,12 +31,18 @@ import org.sputnikdev.bluetooth.manager.transport.BluetoothObjectFactory;
 import org.sputnikdev.bluetooth.manager.transport.Characteristic;
 import org.sputnikdev.bluetooth.manager.transport.Device;
 
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
@@ -48,6 +54,27 @@ import java.util.stream.Collectors;
 public class BluegigaFactory implements BluetoothObjectFactory {
 
     public static final String CONFIG_SERIAL_PORT_REGEX = "serialPortRegex";
+    public static final String CONFIG_DISPATCH_THREADS = "dispatchThreads";
+    public static final String CONFIG_DISPATCH_QUEUE_SIZE = "dispatchQueueSize";
+    public static final String CONFIG_DISPATCH_OVERFLOW_POLICY = "dispatchOverflowPolicy";
+    public static final String CONFIG_HEARTBEAT_IDLE_TIME = "heartbeatIdleTime";
+    public static final String CONFIG_PROCEDURE_TIMEOUT_FLOOR = "procedureTimeoutFloor";
+    public static final String CONFIG_PROCEDURE_TIMEOUT_CEILING = "procedureTimeoutCeiling";
+    public static final String CONFIG_WRITE_RETRY_ATTEMPTS = "writeRetryAttempts";
+    public static final String CONFIG_WRITE_RETRY_INITIAL_DELAY = "writeRetryInitialDelay";
+    public static final String CONFIG_WRITE_RETRY_MAX_DELAY = "writeRetryMaxDelay";
+    public static final String CONFIG_WRITE_RETRY_JITTER = "writeRetryJitter";
+    public static final String CONFIG_GATT_CACHE_DIRECTORY = "gattCacheDirectory";
+    public static final String CONFIG_GATT_TEMPLATES = "gattTemplates";
+    public static final String CONFIG_LAZY_DISCOVERY = "lazyDiscovery";
+    public static final String CONFIG_SERVICE_ALLOWLIST = "serviceAllowlist";
+    public static final String CONFIG_CHARACTERISTIC_ALLOWLIST = "characteristicAllowlist";
+    public static final String CONFIG_DISCOVERY_CONCURRENCY = "discoveryConcurrency";
+    public static final String CONFIG_DISCOVERY_QUEUE_SIZE = "discoveryQueueSize";
+    public static final String CONFIG_RSSI_MIN_DELTA = "rssiMinDelta";
+    public static final String CONFIG_RSSI_MIN_INTERVAL = "rssiMinInterval";
+    public static final String CONFIG_RSSI_SUMMARY_PERIOD = "rssiSummaryPeriod";
+    public static final String CONFIG_RSSI_FILTER = "rssiFilter";
     public static final String BLUEGIGA_PROTOCOL_NAME = "bluegiga";
     public static final String LINUX_SERIAL_PORT_NAMES_REGEX = "((/dev/ttyACM)[0-9]{1,3})";
     public static final String OSX_SERIAL_PORT_NAMES_REGEX = "(/dev/tty.(usbmodem).*)";
@@ -60,6 +87,23 @@ public class BluegigaFactory implements BluetoothObjectFactory {
 
     private Pattern regexPortPattern = Pattern.compile(CONFIG_SERIAL_PORT_DEFAULT);
     private final Map<URL, BluegigaAdapter> adapters = new ConcurrentHashMap<>();
+    private int dispatchThreads = BluegigaEventDispatcher.DEFAULT_THREADS;
+    private int dispatchQueueSize = BluegigaEventDispatcher.DEFAULT_QUEUE_SIZE;
+    private BluegigaEventDispatcher.OverflowPolicy dispatchOverflowPolicy =
+            BluegigaEventDispatcher.DEFAULT_OVERFLOW_POLICY;
+    private long heartbeatIdleTime = BluegigaLivenessTracker.DEFAULT_IDLE_TIME;
+    private long procedureTimeoutFloor = BluegigaTimeouts.DEFAULT_FLOOR;
+    private long procedureTimeoutCeiling = BluegigaHandler.DEFAULT_WAIT_TIME;
+    private BluegigaRetryPolicy writeRetryPolicy = new BluegigaRetryPolicy();
+    private BluegigaGattCache gattCache;
+    private BluegigaGattTemplates gattTemplates;
+    private boolean lazyDiscovery;
+    private Set<String> serviceAllowlist = Collections.emptySet();
+    private Set<String> characteristicAllowlist = Collections.emptySet();
+    private int discoveryConcurrency = BluegigaHandler.DEFAULT_DISCOVERY_CONCURRENCY;
+    private int discoveryQueueSize = BluegigaHandler.DEFAULT_DISCOVERY_QUEUE_SIZE;
+    private BluegigaRssiPolicy rssiPolicy = BluegigaRssiPolicy.ALL;
+    private Supplier<BluegigaRssiFilter> rssiFilterFactory;
 
     /**
      * Constructs Bluegiga factory with the default regular expression to match nothing.
@@ -125,12 +169,30 @@ public class BluegigaFactory implements BluetoothObjectFactory {
     public Characteristic getCharacteristic(URL url) {
         logger.debug("Characteristic requested: {}", url);
         BluegigaCharacteristic characteristic = Optional.ofNullable(getDevice(url.getDeviceURL()))
-                .map(device -> device.getService(url.getServiceURL()))
-                .map(service -> service.getCharacteristic(url.getCharacteristicURL())).orElse(null);
+                .map(device -> device.getCharacteristic(url.getCharacteristicURL())).orElse(null);
         logger.debug("Characteristic returned: {} / {}", url, characteristic);
         return characteristic;
     }
 
+    /**
+     * Writes a large payload (e.g. firmware or configuration) to a characteristic by streaming
+     * "write without response" packets. The {@link Characteristic} API has no means of streaming,
+     * hence this Bluegiga specific method.
+     * @param url characteristic URL
+     * @param input payload
+     * @return a future which is completed with the stream statistics (e.g. throughput) when the payload is written,
+     *     or completed exceptionally if the characteristic cannot be found
+     */
+    public CompletableFuture<BluegigaWriteStream> writeValueStream(URL url, InputStream input) {
+        BluegigaCharacteristic characteristic = (BluegigaCharacteristic) getCharacteristic(url);
+        if (characteristic == null) {
+            CompletableFuture<BluegigaWriteStream> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new BluegigaException("Characteristic not found: " + url));
+            return failed;
+        }
+        return characteristic.writeValueStream(input);
+    }
+
     @Override
     public Set<DiscoveredAdapter> getDiscoveredAdapters() {
         logger.debug("Discovered adapters requested");
@@ -165,12 +227,116 @@ public class BluegigaFactory implements BluetoothObjectFactory {
      * <ul>
      *  <li>serialPortRegex - a regular expression to be used for autodiscovery of serial ports
      *  for BlueGiga adapters</li>
+     *  <li>dispatchThreads - number of threads that deliver Bluegiga events to devices and characteristics
+     *  (default 2)</li>
+     *  <li>dispatchQueueSize - capacity of the event queue of each dispatching thread, when a queue is full,
+     *  connection and GATT events replace queued advertising events or wait (up to 100 ms) for the queue
+     *  to be drained (default 1024)</li>
+     *  <li>dispatchOverflowPolicy - what to do with advertising (scan response) events when an event queue is full:
+     *  BLOCK (wait up to 100 ms for the queue to be drained), DROP_NEWEST or DROP_OLDEST (default)</li>
+     *  <li>heartbeatIdleTime - for how long (in milliseconds) an adapter can be idle before a heartbeat is sent
+     *  to check if it is alive (default 5000)</li>
+     *  <li>procedureTimeoutFloor - minimum timeout (in milliseconds) of GATT procedures, procedure timeouts are
+     *  adjusted according to observed latencies but never go below this value (default 500)</li>
+     *  <li>procedureTimeoutCeiling - maximum timeout (in milliseconds) of GATT procedures (default 10000)</li>
+     *  <li>writeRetryAttempts - maximum number of attempts to write a characteristic if a device responds with
+     *  the APPLICATION error (default 12)</li>
+     *  <li>writeRetryInitialDelay - delay (in milliseconds) before the first retry, the delay is doubled for each
+     *  subsequent retry (default 100)</li>
+     *  <li>writeRetryMaxDelay - maximum delay (in milliseconds) between retries (default 1000)</li>
+     *  <li>writeRetryJitter - a percentage of a delay that is randomly subtracted from the delay (default 20)</li>
+     *  <li>gattCacheDirectory - a directory where discovered GATT databases are persisted so that attributes
+     *  do not get rediscovered on reconnect (optional, caching is disabled if not specified)</li>
+     *  <li>gattTemplates - a comma separated list of rules to match identical devices, attributes of a device
+     *  matching a rule are populated from a template captured from the first fully discovered device matching
+     *  the same rule. Rules are: "name:&lt;name prefix&gt;", "manufacturer:&lt;manufacturer ID&gt;" and
+     *  "service:&lt;advertised service UUID&gt;", e.g. "name:Smartlock,manufacturer:0x004c" (optional,
+     *  templates are persisted in the "templates" subdirectory of the GATT cache directory if specified)</li>
+     *  <li>lazyDiscovery - if true, only primary services are discovered when a device gets connected,
+     *  characteristics of a service are discovered the first time they are requested (default false)</li>
+     *  <li>serviceAllowlist - a comma separated list of service UUIDs (16, 32 or 128 bit) to be discovered,
+     *  characteristics are discovered only within handle ranges of the listed services (optional, all services
+     *  are discovered if not specified)</li>
+     *  <li>characteristicAllowlist - a comma separated list of characteristic UUIDs (16, 32 or 128 bit)
+     *  to be discovered (optional, all characteristics are discovered if not specified)</li>
+     *  <li>discoveryConcurrency - maximum number of devices which attributes are discovered at the same time,
+     *  discovery procedures of different devices interleave on the adapter (default 4)</li>
+     *  <li>discoveryQueueSize - maximum number of connected devices waiting for their attributes to be discovered,
+     *  discoveries run on a dedicated worker pool off the event dispatching threads (default 64)</li>
+     *  <li>rssiMinDelta - RSSI notifications of a device are fired only if RSSI has changed by at least
+     *  this number of dBm since the last notification (default 0)</li>
+     *  <li>rssiMinInterval - minimum interval between RSSI notifications of a device in milliseconds (default 0)</li>
+     *  <li>rssiSummaryPeriod - if set, RSSI of a device is averaged and notified once per this period
+     *  in milliseconds, rssiMinDelta and rssiMinInterval are ignored (default 0)</li>
+     *  <li>rssiFilter - a filter which smooths RSSI of devices, the filtered value is available alongside the raw
+     *  one: "ema:alpha", "median:size" or "kalman:processNoise:measurementNoise" (optional)</li>
      * </ul>
+     * Event dispatching, heartbeat, timeout, retry and cache settings are applied to newly created adapters.
      * @param config configuration
      */
     @Override
     public void configure(Map<String, Object> config) {
         logger.debug("Configuring factory: {}", config);
+        dispatchThreads = getInt(config, CONFIG_DISPATCH_THREADS, BluegigaEventDispatcher.DEFAULT_THREADS);
+        dispatchQueueSize = getInt(config, CONFIG_DISPATCH_QUEUE_SIZE, BluegigaEventDispatcher.DEFAULT_QUEUE_SIZE);
+        heartbeatIdleTime = getInt(config, CONFIG_HEARTBEAT_IDLE_TIME, (int) BluegigaLivenessTracker.DEFAULT_IDLE_TIME);
+        procedureTimeoutFloor = getInt(config, CONFIG_PROCEDURE_TIMEOUT_FLOOR, (int) BluegigaTimeouts.DEFAULT_FLOOR);
+        procedureTimeoutCeiling = getInt(config, CONFIG_PROCEDURE_TIMEOUT_CEILING,
+                (int) BluegigaHandler.DEFAULT_WAIT_TIME);
+        if (procedureTimeoutCeiling < procedureTimeoutFloor) {
+            throw new BluegigaException("Procedure timeout ceiling must not be less than floor: "
+                    + procedureTimeoutCeiling + " / " + procedureTimeoutFloor);
+        }
+        int writeRetryAttempts = getInt(config, CONFIG_WRITE_RETRY_ATTEMPTS, BluegigaRetryPolicy.DEFAULT_MAX_ATTEMPTS);
+        int writeRetryInitialDelay = getInt(config, CONFIG_WRITE_RETRY_INITIAL_DELAY,
+                (int) BluegigaRetryPolicy.DEFAULT_INITIAL_DELAY, 0);
+        int writeRetryMaxDelay = getInt(config, CONFIG_WRITE_RETRY_MAX_DELAY,
+                (int) BluegigaRetryPolicy.DEFAULT_MAX_DELAY, 0);
+        int writeRetryJitter = getInt(config, CONFIG_WRITE_RETRY_JITTER,
+                (int) (BluegigaRetryPolicy.DEFAULT_JITTER * 100), 0);
+        try {
+            writeRetryPolicy = new BluegigaRetryPolicy(writeRetryAttempts, writeRetryInitialDelay,
+                    writeRetryMaxDelay, writeRetryJitter / 100.0);
+        } catch (IllegalArgumentException ex) {
+            throw new BluegigaException("Write retry policy is not valid", ex);
+        }
+        Object gattCacheDirectory = config.get(CONFIG_GATT_CACHE_DIRECTORY);
+        gattCache = gattCacheDirectory != null && !gattCacheDirectory.toString().trim().isEmpty()
+                ? new BluegigaGattCache(new File(gattCacheDirectory.toString().trim())) : null;
+        lazyDiscovery = Boolean.parseBoolean(String.valueOf(config.get(CONFIG_LAZY_DISCOVERY)).trim());
+        serviceAllowlist = getUUIDs(config, CONFIG_SERVICE_ALLOWLIST);
+        characteristicAllowlist = getUUIDs(config, CONFIG_CHARACTERISTIC_ALLOWLIST);
+        discoveryConcurrency = getInt(config, CONFIG_DISCOVERY_CONCURRENCY,
+                BluegigaHandler.DEFAULT_DISCOVERY_CONCURRENCY);
+        discoveryQueueSize = getInt(config, CONFIG_DISCOVERY_QUEUE_SIZE,
+                BluegigaHandler.DEFAULT_DISCOVERY_QUEUE_SIZE);
+        rssiPolicy = new BluegigaRssiPolicy(getInt(config, CONFIG_RSSI_MIN_DELTA, 0, 0),
+                getInt(config, CONFIG_RSSI_MIN_INTERVAL, 0, 0), getInt(config, CONFIG_RSSI_SUMMARY_PERIOD, 0, 0));
+        Object rssiFilterConfig = config.get(CONFIG_RSSI_FILTER);
+        try {
+            rssiFilterFactory = rssiFilterConfig != null && !rssiFilterConfig.toString().trim().isEmpty()
+                    ? BluegigaRssiFilter.parse(rssiFilterConfig.toString()) : null;
+        } catch (IllegalArgumentException ex) {
+            throw new BluegigaException("RSSI filter is not valid: " + rssiFilterConfig, ex);
+        }
+        Object gattTemplatesConfig = config.get(CONFIG_GATT_TEMPLATES);
+        try {
+            gattTemplates = gattTemplatesConfig != null && !gattTemplatesConfig.toString().trim().isEmpty()
+                    ? new BluegigaGattTemplates(Arrays.stream(gattTemplatesConfig.toString().split(","))
+                        .map(BluegigaGattTemplates.Rule::parse).collect(Collectors.toList()), gattCache)
+                    : null;
+        } catch (IllegalArgumentException ex) {
+            throw new BluegigaException("GATT templates are not valid: " + gattTemplatesConfig, ex);
+        }
+        Object overflowPolicy = config.get(CONFIG_DISPATCH_OVERFLOW_POLICY);
+        try {
+            dispatchOverflowPolicy = overflowPolicy != null
+                    ? BluegigaEventDispatcher.OverflowPolicy.valueOf(overflowPolicy.toString().trim().toUpperCase())
+                    : BluegigaEventDispatcher.DEFAULT_OVERFLOW_POLICY;
+        } catch (IllegalArgumentException ex) {
+            throw new BluegigaException("Dispatch overflow policy is not valid: " + overflowPolicy, ex);
+        }
+
         String serialPortConfig = (String) config.get(CONFIG_SERIAL_PORT_REGEX);
         logger.debug("Regex serial port pattern: {}", serialPortConfig);
         if (serialPortConfig == null || serialPortConfig.trim().isEmpty()) {
@@ -227,6 +393,18 @@ public class BluegigaFactory implements BluetoothObjectFactory {
         try {
             logger.debug("Creating a new adapter for port: {} / {}", portName,
                     bluegigaHandler.getAdapterAddress());
+            bluegigaHandler.configureEventDispatcher(dispatchThreads, dispatchQueueSize, dispatchOverflowPolicy);
+            bluegigaHandler.setHeartbeatIdleTime(heartbeatIdleTime);
+            bluegigaHandler.setProcedureTimeouts(procedureTimeoutFloor, procedureTimeoutCeiling);
+            bluegigaHandler.setWriteRetryPolicy(writeRetryPolicy);
+            bluegigaHandler.setGattCache(gattCache);
+            bluegigaHandler.setGattTemplates(gattTemplates);
+            bluegigaHandler.setLazyDiscovery(lazyDiscovery);
+            bluegigaHandler.setDiscoveryAllowlists(serviceAllowlist, characteristicAllowlist);
+            bluegigaHandler.setDiscoveryConcurrency(discoveryConcurrency);
+            bluegigaHandler.setDiscoveryQueueSize(discoveryQueueSize);
+            bluegigaHandler.setRssiPolicy(rssiPolicy);
+            bluegigaHandler.setRssiFilterFactory(rssiFilterFactory);
             BluegigaAdapter bluegigaAdapter = BluegigaAdapter.create(bluegigaHandler);
             bluegigaHandler.addHandlerListener(exception -> {
                 logger.debug("An exception occurred in blugiga handler: {}", exception.getMessage());
@@ -324,6 +502,40 @@ public class BluegigaFactory implements BluetoothObjectFactory {
                 bluegigaDevice.isBleEnabled());
     }
 
+    private static Set<String> getUUIDs(Map<String, Object> config, String key) {
+        Object value = config.get(key);
+        if (value == null || value.toString().trim().isEmpty()) {
+            return Collections.emptySet();
+        }
+        try {
+            return Arrays.stream(value.toString().split(",")).map(BluegigaUtils::getFullUUID)
+                    .collect(Collectors.toSet());
+        } catch (IllegalArgumentException ex) {
+            throw new BluegigaException(key + " is not valid: " + value, ex);
+        }
+    }
+
+    private static int getInt(Map<String, Object> config, String key, int defaultValue) {
+        return getInt(config, key, defaultValue, 1);
+    }
+
+    private static int getInt(Map<String, Object> config, String key, int defaultValue, int minValue) {
+        Object value = config.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = value instanceof Number
+                    ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+            if (result < minValue) {
+                throw new BluegigaException(key + " must not be less than " + minValue + ": " + value);
+            }
+            return result;
+        } catch (NumberFormatException ex) {
+            throw new BluegigaException(key + " is not valid: " + value, ex);
+        }
+    }
+
     private BluegigaAdapter tryToCreateAdapter(String portName) {
         try {
             return createAdapter(portName);
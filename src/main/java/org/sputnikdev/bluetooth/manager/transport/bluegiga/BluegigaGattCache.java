@@ -0,0 +1,264 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A persistent GATT database cache. Attribute tables (services, characteristics with their access flags and
+ * descriptors) of devices are stored on disk in a compact binary format, one file per device address,
+ * so that attributes of a device can be restored on reconnect without running discovery procedures.
+ */
+class BluegigaGattCache {
+
+    private static final int MAGIC = 0x42474743; // BGGC
+    private static final int VERSION = 1;
+    private static final String FILE_EXTENSION = ".gatt";
+
+    private final Logger logger = LoggerFactory.getLogger(BluegigaGattCache.class);
+
+    private final File directory;
+
+    BluegigaGattCache(File directory) {
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Loads an attribute table of a device.
+     * @param address device address
+     * @return services of the device or null if the cache does not contain the device (or the entry is corrupted)
+     */
+    List<ServiceEntry> load(String address) {
+        File file = getFile(address);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION) {
+                throw new IOException("Unsupported format");
+            }
+            int servicesCount = input.readUnsignedShort();
+            List<ServiceEntry> services = new ArrayList<>(servicesCount);
+            for (int i = 0; i < servicesCount; i++) {
+                ServiceEntry service = new ServiceEntry(readUUID(input),
+                        input.readUnsignedShort(), input.readUnsignedShort());
+                int characteristicsCount = input.readUnsignedShort();
+                for (int j = 0; j < characteristicsCount; j++) {
+                    CharacteristicEntry characteristic = new CharacteristicEntry(readUUID(input),
+                            input.readUnsignedShort(), input.readUnsignedByte());
+                    int descriptorsCount = input.readUnsignedByte();
+                    for (int k = 0; k < descriptorsCount; k++) {
+                        characteristic.addDescriptor(
+                                new DescriptorEntry(readUUID(input), input.readUnsignedShort()));
+                    }
+                    service.addCharacteristic(characteristic);
+                }
+                services.add(service);
+            }
+            logger.debug("GATT cache entry loaded: {} : {}", address, services.size());
+            return services;
+        } catch (IOException ex) {
+            logger.warn("Could not load GATT cache entry, invalidating: {} : {}", address, ex.getMessage());
+            invalidate(address);
+            return null;
+        }
+    }
+
+    /**
+     * Stores an attribute table of a device.
+     * @param address device address
+     * @param services services of the device
+     */
+    void store(String address, List<ServiceEntry> services) {
+        File file = getFile(address);
+        try {
+            Files.createDirectories(directory.toPath());
+            File temp = new File(directory, file.getName() + ".tmp");
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeByte(VERSION);
+                output.writeShort(services.size());
+                for (ServiceEntry service : services) {
+                    writeUUID(output, service.uuid);
+                    output.writeShort(service.handleStart);
+                    output.writeShort(service.handleEnd);
+                    output.writeShort(service.characteristics.size());
+                    for (CharacteristicEntry characteristic : service.characteristics) {
+                        writeUUID(output, characteristic.uuid);
+                        output.writeShort(characteristic.handle);
+                        output.writeByte(characteristic.flags);
+                        output.writeByte(characteristic.descriptors.size());
+                        for (DescriptorEntry descriptor : characteristic.descriptors) {
+                            writeUUID(output, descriptor.uuid);
+                            output.writeShort(descriptor.handle);
+                        }
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            logger.debug("GATT cache entry stored: {} : {}", address, services.size());
+        } catch (IOException ex) {
+            logger.warn("Could not store GATT cache entry: {} : {}", address, ex.getMessage());
+        }
+    }
+
+    /**
+     * Removes an attribute table of a device from the cache.
+     * @param address device address
+     */
+    void invalidate(String address) {
+        File file = getFile(address);
+        if (file.exists()) {
+            logger.debug("Invalidating GATT cache entry: {}", address);
+            if (!file.delete()) {
+                logger.warn("Could not delete GATT cache entry: {}", file);
+            }
+        }
+    }
+
+    private File getFile(String address) {
+        return new File(directory, address.replace(":", "").toUpperCase() + FILE_EXTENSION);
+    }
+
+    private static UUID readUUID(DataInputStream input) throws IOException {
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    private static void writeUUID(DataOutputStream output, UUID uuid) throws IOException {
+        output.writeLong(uuid.getMostSignificantBits());
+        output.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * A cached service.
+     */
+    static class ServiceEntry {
+        private final UUID uuid;
+        private final int handleStart;
+        private final int handleEnd;
+        private final List<CharacteristicEntry> characteristics = new ArrayList<>();
+
+        ServiceEntry(UUID uuid, int handleStart, int handleEnd) {
+            this.uuid = uuid;
+            this.handleStart = handleStart;
+            this.handleEnd = handleEnd;
+        }
+
+        void addCharacteristic(CharacteristicEntry characteristic) {
+            characteristics.add(characteristic);
+        }
+
+        UUID getUuid() {
+            return uuid;
+        }
+
+        int getHandleStart() {
+            return handleStart;
+        }
+
+        int getHandleEnd() {
+            return handleEnd;
+        }
+
+        List<CharacteristicEntry> getCharacteristics() {
+            return Collections.unmodifiableList(characteristics);
+        }
+    }
+
+    /**
+     * A cached characteristic.
+     */
+    static class CharacteristicEntry {
+        private final UUID uuid;
+        private final int handle;
+        private final int flags;
+        private final List<DescriptorEntry> descriptors = new ArrayList<>();
+
+        CharacteristicEntry(UUID uuid, int handle, int flags) {
+            this.uuid = uuid;
+            this.handle = handle;
+            this.flags = flags;
+        }
+
+        void addDescriptor(DescriptorEntry descriptor) {
+            descriptors.add(descriptor);
+        }
+
+        UUID getUuid() {
+            return uuid;
+        }
+
+        int getHandle() {
+            return handle;
+        }
+
+        int getFlags() {
+            return flags;
+        }
+
+        List<DescriptorEntry> getDescriptors() {
+            return Collections.unmodifiableList(descriptors);
+        }
+    }
+
+    /**
+     * A cached descriptor.
+     */
+    static class DescriptorEntry {
+        private final UUID uuid;
+        private final int handle;
+
+        DescriptorEntry(UUID uuid, int handle) {
+            this.uuid = uuid;
+            this.handle = handle;
+        }
+
+        UUID getUuid() {
+            return uuid;
+        }
+
+        int getHandle() {
+            return handle;
+        }
+    }
+
+}
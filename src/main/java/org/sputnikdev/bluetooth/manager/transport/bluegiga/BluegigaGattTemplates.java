@@ -0,0 +1,255 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GATT profile templates for fleets of identical devices. A template is an attribute table captured from
+ * the first device that matches a rule (a name prefix, a manufacturer ID or an advertised service UUID),
+ * other devices matching the same rule get their attributes populated from the template without running
+ * discovery procedures. A template is dropped (and recaptured later) if it turns out to be wrong for a device.
+ */
+class BluegigaGattTemplates {
+
+    private static final String TEMPLATES_DIRECTORY = "templates";
+
+    private final Logger logger = LoggerFactory.getLogger(BluegigaGattTemplates.class);
+
+    private final List<Rule> rules;
+    private final BluegigaGattCache store;
+    private final Map<Rule, List<BluegigaGattCache.ServiceEntry>> templates = new ConcurrentHashMap<>();
+    private final Map<String, Rule> applied = new ConcurrentHashMap<>();
+
+    /**
+     * Creates templates for the given rules.
+     * @param rules matching rules, each rule defines its own template
+     * @param cache a cache to persist templates in (in its own subdirectory, apart from device entries),
+     *              templates are kept in memory only if null
+     */
+    BluegigaGattTemplates(List<Rule> rules, BluegigaGattCache cache) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.store = cache != null ? new BluegigaGattCache(new File(cache.getDirectory(), TEMPLATES_DIRECTORY)) : null;
+    }
+
+    List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Returns the first rule that matches advertised properties of a device.
+     * @param name device name (can be null)
+     * @param manufacturerIds manufacturer IDs advertised by the device
+     * @param advertisedServices service UUIDs advertised by the device
+     * @return matching rule or null
+     */
+    Rule match(String name, Set<Short> manufacturerIds, Set<String> advertisedServices) {
+        return rules.stream().filter(rule -> rule.matches(name, manufacturerIds, advertisedServices))
+                .findFirst().orElse(null);
+    }
+
+    /**
+     * Applies a template to a device.
+     * @param address device address
+     * @param rule matching rule
+     * @return template services or null if the template has not been captured yet
+     */
+    List<BluegigaGattCache.ServiceEntry> apply(String address, Rule rule) {
+        List<BluegigaGattCache.ServiceEntry> template = templates.computeIfAbsent(rule,
+            key -> store != null ? store.load(getKey(key)) : null);
+        if (template != null) {
+            logger.debug("Applying GATT template: {} : {}", address, rule);
+            applied.put(address, rule);
+        }
+        return template;
+    }
+
+    /**
+     * Captures a template from a device that has been fully discovered. Already captured templates are not
+     * overwritten.
+     * @param rule matching rule
+     * @param services discovered services
+     */
+    void capture(Rule rule, List<BluegigaGattCache.ServiceEntry> services) {
+        if (templates.putIfAbsent(rule, services) == null) {
+            logger.debug("GATT template captured: {} : {}", rule, services.size());
+            if (store != null) {
+                store.store(getKey(rule), services);
+            }
+        }
+    }
+
+    /**
+     * Drops a template that has been applied to a device, e.g. because the device responded with an error
+     * to a procedure that used an attribute handle from the template. The device is rediscovered straight away
+     * (see {@link BluegigaHandler#setGattInvalidationListener(String, Runnable)}), this and any other device
+     * then fall back to full discovery and the template gets recaptured.
+     * @param address device address
+     */
+    void invalidate(String address) {
+        Rule rule = applied.remove(address);
+        if (rule != null) {
+            logger.warn("GATT template does not match device, dropping the template: {} : {}", address, rule);
+            templates.remove(rule);
+            applied.values().removeIf(rule::equals);
+            if (store != null) {
+                store.invalidate(getKey(rule));
+            }
+        }
+    }
+
+    /**
+     * Checks whether a template has been applied to a device.
+     * @param address device address
+     * @return true if the device attributes have been populated from a template
+     */
+    boolean isApplied(String address) {
+        return applied.containsKey(address);
+    }
+
+    /**
+     * Forgets that a template has been applied to a device (e.g. the device has been fully rediscovered).
+     * @param address device address
+     */
+    void release(String address) {
+        applied.remove(address);
+    }
+
+    /**
+     * Returns a file safe key of a rule. The key is a hex encoded SHA-256 digest of the rule, so that rules that
+     * differ only in punctuation or case do not collide.
+     */
+    static String getKey(Rule rule) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(rule.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(String.format("%02X", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not supported", ex);
+        }
+    }
+
+    /**
+     * A rule to match devices to a template.
+     */
+    static final class Rule {
+
+        enum Type {
+            NAME, MANUFACTURER, SERVICE
+        }
+
+        private final Type type;
+        private final String value;
+
+        Rule(Type type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        /**
+         * Parses a rule in the following format: "type:value", where type is one of:
+         * <ul>
+         *     <li>name - device name prefix, e.g. "name:Smartlock"</li>
+         *     <li>manufacturer - manufacturer ID (decimal or hex), e.g. "manufacturer:0x004c"</li>
+         *     <li>service - advertised service UUID (16, 32 or 128 bit), e.g. "service:180f"</li>
+         * </ul>
+         * @param rule rule definition
+         * @return parsed rule
+         * @throws IllegalArgumentException if the rule is not valid
+         */
+        static Rule parse(String rule) {
+            int index = rule.indexOf(':');
+            if (index <= 0 || index == rule.length() - 1) {
+                throw new IllegalArgumentException("GATT template rule is not valid: " + rule);
+            }
+            Type type = Type.valueOf(rule.substring(0, index).trim().toUpperCase());
+            String value = rule.substring(index + 1).trim();
+            switch (type) {
+                case MANUFACTURER:
+                    return new Rule(type, String.valueOf(Integer.decode(value).shortValue()));
+                case SERVICE:
+                    return new Rule(type, BluegigaUtils.getFullUUID(value));
+                default:
+                    return new Rule(type, value);
+            }
+        }
+
+        Type getType() {
+            return type;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        boolean matches(String name, Set<Short> manufacturerIds, Set<String> advertisedServices) {
+            switch (type) {
+                case NAME:
+                    return name != null && name.startsWith(value);
+                case MANUFACTURER:
+                    return manufacturerIds.contains(Short.valueOf(value));
+                case SERVICE:
+                    return advertisedServices.contains(value);
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (object == null || getClass() != object.getClass()) {
+                return false;
+            }
+            Rule that = (Rule) object;
+            return type == that.type && value.equals(that.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return type.name().toLowerCase() + ":" + value;
+        }
+    }
+
+}
@@ -29,10 +29,14 @@ import com.zsmartsystems.bluetooth.bluegiga.BlueGigaSerialHandler;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeWriteCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeWriteResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaExecuteWriteCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaExecuteWriteResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationFoundEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaGroupFoundEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaPrepareWriteCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaPrepareWriteResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaProcedureCompletedEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByGroupTypeCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByGroupTypeResponse;
@@ -40,6 +44,13 @@ import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaRead
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByHandleResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByTypeCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByTypeResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadLongCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadLongResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadMultipleCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadMultipleResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadMultipleResponseEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaWriteCommandCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaWriteCommandResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectResponse;
@@ -83,22 +94,58 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sputnikdev.bluetooth.URL;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
 /**
  * Thread-safe version of the Bluegiga Serial Handler.
+ * Procedures (a command followed by one or more events) are executed asynchronously: each procedure is registered
+ * before its command is sent and then completed by the matching events, so that several procedures can be in flight
+ * at the same time. Procedures are grouped in lanes by connection handle, procedures of a single connection
+ * are executed in order while lanes of different connections do not block each other.
  */
 class BluegigaHandler implements BlueGigaEventListener {
 
-    private static final long DEFAULT_WAIT_TIME = 10000;
+    static final long DEFAULT_WAIT_TIME = 10000;
+    // maximum length of a value that can be read by a single read request (default ATT MTU - 1)
+    static final int MAX_READ_LENGTH = 22;
+    // maximum length of a value that can be written by a single write request (default ATT MTU - 3)
+    static final int MAX_WRITE_LENGTH = 20;
+    // maximum length of a value part that can be sent by a single prepare write request (default ATT MTU - 5)
+    static final int MAX_PREPARE_WRITE_LENGTH = 18;
+    // attribute handle range of a GATT database
+    static final int MIN_HANDLE = 0x0001;
+    static final int MAX_HANDLE = 0xFFFF;
+    // default number of devices which attributes can be discovered at the same time
+    static final int DEFAULT_DISCOVERY_CONCURRENCY = 4;
+    // default number of device discoveries that can wait for a discovery worker
+    static final int DEFAULT_DISCOVERY_QUEUE_SIZE = 64;
 
     private final Logger logger = LoggerFactory.getLogger(BluegigaHandler.class);
 
@@ -110,6 +157,10 @@ class BluegigaHandler implements BlueGigaEventListener {
     private static final int CONNECTION_LATENCY = 0;
     private static final int CONNECTION_TIMEOUT = 3200;
 
+    // a lane for procedures that are not bound to any connection (e.g. connect)
+    private static final int ADAPTER_LANE = BluegigaUtils.NO_CONNECTION;
+    private static final int MAX_DISCOVERY_SAMPLES = 1000;
+
     // The Serial port name
     private String portName;
 
@@ -121,21 +172,90 @@ class BluegigaHandler implements BlueGigaEventListener {
     // The BlueGiga API handler
     private BlueGigaSerialHandler bgHandler;
 
-    private boolean discovering;
+    private volatile boolean discovering;
+
+    // procedure lanes by connection handle
+    private final Map<Integer, BluegigaLane> lanes = new ConcurrentHashMap<>();
+
+    // synchronisation object for sequences of procedures that must not interleave (e.g. connect and discovery)
+    private final Object synchronizationContext = new Object();
+
+    // watches for procedures that do not receive their events in time
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(BluegigaUtils.daemonThreadFactory("bluegiga-timeouts"));
+
+    // starts procedures that have been queued behind other procedures of the same connection
+    private final ExecutorService executor =
+            Executors.newCachedThreadPool(BluegigaUtils.daemonThreadFactory("bluegiga-procedures"));
+
+    // delivers events to listeners (adapter, devices, characteristics) off the serial handler threads
+    private final BluegigaEventDispatcher eventDispatcher = new BluegigaEventDispatcher();
+
+    // routes events to listeners by event keys (device address, connection and attribute handles)
+    private final BluegigaEventRouter eventRouter = new BluegigaEventRouter();
+
+    // tracks adapter liveness by its traffic, sends Hello command only if the adapter has been idle for a while
+    private final BluegigaLivenessTracker livenessTracker = new BluegigaLivenessTracker(() ->
+            sendTransaction(new BlueGigaHelloCommand(), BlueGigaHelloResponse.class) != null);
+
+    // a retry policy for writes that are rejected by devices with the APPLICATION result
+    private volatile BluegigaRetryPolicy writeRetryPolicy = new BluegigaRetryPolicy();
+
+    // default RSSI notification policy of devices, all values are notified by default
+    private volatile BluegigaRssiPolicy rssiPolicy = BluegigaRssiPolicy.ALL;
+
+    // a factory of RSSI filters of devices, RSSI is not filtered by default
+    private volatile Supplier<BluegigaRssiFilter> rssiFilterFactory;
 
-    // synchronisation objects (used in conversion of async processes to be synchronous)
-    private final EventCaptor eventsCaptor = new EventCaptor();
+    // persistent GATT cache, disabled by default
+    private volatile BluegigaGattCache gattCache;
 
-    // a timeout in milliseconds that specify for how long a blugiga procedure should wait between expeced events
-    private long eventWaitTimeout = DEFAULT_WAIT_TIME;
+    // GATT templates for fleets of identical devices, disabled by default
+    private volatile BluegigaGattTemplates gattTemplates;
+
+    // whether characteristics of a service are discovered only when they are requested
+    private volatile boolean lazyDiscovery;
+
+    // UUIDs of services and characteristics to be discovered, all are discovered if empty
+    private volatile Set<String> serviceAllowlist = Collections.emptySet();
+    private volatile Set<String> characteristicAllowlist = Collections.emptySet();
+
+    // limits the number of devices being discovered at the same time, discovery procedures of different
+    // connections interleave on the adapter as they are executed in different lanes
+    private volatile Semaphore discoverySlots = new Semaphore(DEFAULT_DISCOVERY_CONCURRENCY, true);
+    private volatile int discoveryConcurrency = DEFAULT_DISCOVERY_CONCURRENCY;
+    private volatile int discoveryQueueSize = DEFAULT_DISCOVERY_QUEUE_SIZE;
+
+    // runs attribute discoveries off the event dispatching threads, started on first use
+    private ThreadPoolExecutor discoveryExecutor;
+    // addresses of devices which discovery is pending or running
+    private final Set<String> scheduledDiscoveries = ConcurrentHashMap.newKeySet();
+    // devices to be rediscovered when their GATT cache entries get invalidated
+    private final Map<String, Runnable> gattInvalidationListeners = new ConcurrentHashMap<>();
+
+    // how long it takes to discover attributes of a device
+    private final BluegigaLatencyHistogram discoveryLatencies = new BluegigaLatencyHistogram(MAX_DISCOVERY_SAMPLES);
+
+    // adaptive procedure timeouts based on observed latencies
+    private final BluegigaTimeouts timeouts = new BluegigaTimeouts();
+
+    // a timeout in milliseconds that specify for how long a command/response transaction should wait for a response
+    private volatile long eventWaitTimeout = DEFAULT_WAIT_TIME;
+    // maximum of adaptive procedure timeouts in milliseconds, transactions are not affected by it
+    private volatile long procedureTimeoutCeiling = DEFAULT_WAIT_TIME;
 
     protected BluegigaHandler(String portName) {
         this.portName = portName;
+        eventDispatcher.addListener(eventRouter);
     }
 
     @Override
     public void bluegigaEventReceived(BlueGigaResponse event) {
-        eventsCaptor.handleEvent(event);
+        livenessTracker.activity();
+        routeToProcedures(event);
+        if (eventRouter.hasListeners()) {
+            eventDispatcher.dispatch(event);
+        }
     }
 
     protected static BluegigaHandler create(String portName) {
@@ -163,12 +283,73 @@ class BluegigaHandler implements BlueGigaEventListener {
         bgHandler.addHandlerListener(listener);
     }
 
+    /**
+     * Adds a listener that receives all events.
+     * @param listener event listener
+     */
     protected void addEventListener(BlueGigaEventListener listener) {
-        bgHandler.addEventListener(listener);
+        eventRouter.addListener(listener);
     }
 
     protected void removeEventListener(BlueGigaEventListener listener) {
-        bgHandler.removeEventListener(listener);
+        eventRouter.removeListener(listener);
+    }
+
+    /**
+     * Adds a listener that receives scan response, connection status and disconnected events of a device.
+     * @param address device address
+     * @param listener event listener
+     */
+    protected void addDeviceListener(String address, BlueGigaEventListener listener) {
+        eventRouter.addDeviceListener(address, listener);
+    }
+
+    protected void removeDeviceListener(String address, BlueGigaEventListener listener) {
+        eventRouter.removeDeviceListener(address, listener);
+    }
+
+    /**
+     * Adds a listener that receives attribute value events (e.g. notifications) of an attribute.
+     * @param connectionHandle connection handle
+     * @param attributeHandle attribute handle
+     * @param listener event listener
+     */
+    protected void addAttributeListener(int connectionHandle, int attributeHandle, BlueGigaEventListener listener) {
+        eventRouter.addAttributeListener(connectionHandle, attributeHandle, listener);
+    }
+
+    protected void removeAttributeListener(int connectionHandle, int attributeHandle,
+                                           BlueGigaEventListener listener) {
+        eventRouter.removeAttributeListener(connectionHandle, attributeHandle, listener);
+    }
+
+    /**
+     * Sets a listener that is called (on the discovery worker pool) when a procedure of a device fails because
+     * attribute handles do not match the GATT cache or template, so that the device can rediscover its attributes.
+     * @param address device address
+     * @param listener invalidation listener
+     */
+    protected void setGattInvalidationListener(String address, Runnable listener) {
+        gattInvalidationListeners.put(address, listener);
+    }
+
+    protected void removeGattInvalidationListener(String address) {
+        gattInvalidationListeners.remove(address);
+    }
+
+    /**
+     * Configures the event dispatch stage. Must be called before any event listeners are added.
+     * @param threads number of dispatching threads
+     * @param queueSize capacity of the event queue of each dispatching thread
+     * @param overflowPolicy what to do with scan response events when a queue is full
+     */
+    protected void configureEventDispatcher(int threads, int queueSize,
+                                            BluegigaEventDispatcher.OverflowPolicy overflowPolicy) {
+        eventDispatcher.configure(threads, queueSize, overflowPolicy);
+    }
+
+    protected BluegigaEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
     }
 
     protected URL getAdapterAddress() {
@@ -180,136 +361,461 @@ class BluegigaHandler implements BlueGigaEventListener {
     }
 
     protected void runInSynchronizedContext(Runnable task) {
-        synchronized (eventsCaptor) {
+        synchronized (synchronizationContext) {
             task.run();
         }
     }
 
     protected <V> V runInSynchronizedContext(Supplier<V> task) {
-        synchronized (eventsCaptor) {
+        synchronized (synchronizationContext) {
             return task.get();
         }
     }
 
+    /**
+     * Runs an attribute discovery task when a discovery slot becomes available. Unlike the synchronized context,
+     * discovery tasks of different devices run concurrently (up to the discovery concurrency limit).
+     * @param task discovery task
+     * @param <V> task result type
+     * @return task result
+     */
+    protected <V> V runInDiscoveryContext(Supplier<V> task) {
+        Semaphore slots = discoverySlots;
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BluegigaException("Interrupted while waiting for a discovery slot", ex);
+        }
+        try {
+            return task.get();
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * Schedules an attribute discovery task of a device on the discovery worker pool so that event dispatching
+     * threads are not blocked by discovery procedures. The task is not scheduled if a discovery of the same device
+     * is already pending or running, or if the discovery queue is full.
+     * @param address device address
+     * @param task discovery task
+     * @return true if the task has been scheduled
+     */
+    protected boolean scheduleDiscovery(String address, Runnable task) {
+        if (!scheduledDiscoveries.add(address)) {
+            logger.debug("Discovery is already scheduled: {}", address);
+            return false;
+        }
+        try {
+            discoveryExecutor().execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    logger.warn("Discovery has failed: {} : {}", address, ex.getMessage());
+                } finally {
+                    scheduledDiscoveries.remove(address);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            scheduledDiscoveries.remove(address);
+            logger.warn("Discovery could not be scheduled (queue is full or handler is disposed): {}", address);
+            return false;
+        }
+    }
+
     protected BlueGigaConnectionStatusEvent connect(URL url, BluetoothAddressType bluetoothAddressType) {
-        return syncCall(BlueGigaConnectionStatusEvent.class,
+        return syncCall(BluegigaTimeouts.Type.CONNECT, ADAPTER_LANE, BlueGigaConnectionStatusEvent.class,
             statusEvent -> statusEvent.getAddress().equals(url.getDeviceAddress()),
             () -> bgConnect(url, bluetoothAddressType));
     }
 
     protected BlueGigaDisconnectedEvent disconnect(int connectionHandle) {
-        return syncCall(BlueGigaDisconnectedEvent.class, p -> p.getConnection() == connectionHandle,
-            () -> bgDisconnect(connectionHandle));
+        return syncCall(BluegigaTimeouts.Type.DISCONNECT, connectionHandle, BlueGigaDisconnectedEvent.class,
+            p -> p.getConnection() == connectionHandle, () -> bgDisconnect(connectionHandle));
     }
 
     protected List<BlueGigaGroupFoundEvent> getServices(int connectionHandle) {
-        return syncCallProcedure(BlueGigaGroupFoundEvent.class, a -> a.getConnection() == connectionHandle,
-                BlueGigaProcedureCompletedEvent.class, p -> p.getConnection() == connectionHandle,
-            () -> bgFindPrimaryServices(connectionHandle));
+        return collect(consumer -> streamServices(connectionHandle, consumer));
     }
 
+    /**
+     * Discovers primary services. Each service event is passed to the consumer as soon as it is received,
+     * events are streamed in the order of their handles.
+     * The consumer is called by the serial handler thread, hence it must not call any procedures.
+     * @param connectionHandle connection handle
+     * @param consumer service event consumer
+     */
+    protected void streamServices(int connectionHandle, Consumer<BlueGigaGroupFoundEvent> consumer) {
+        syncCallRangeProcedure(BluegigaTimeouts.Type.GROUP_DISCOVERY, connectionHandle,
+                BlueGigaGroupFoundEvent.class, a -> a.getConnection() == connectionHandle,
+                BlueGigaGroupFoundEvent::getEnd, MIN_HANDLE, MAX_HANDLE,
+            (start, end) -> bgFindPrimaryServices(connectionHandle, start, end), consumer);
+    }
 
     protected List<BlueGigaFindInformationFoundEvent> getCharacteristics(int connectionHandle) {
-        return syncCallProcedure(BlueGigaFindInformationFoundEvent.class, p -> p.getConnection() == connectionHandle,
-                BlueGigaProcedureCompletedEvent.class, p -> p.getConnection() == connectionHandle,
-            () -> bgFindCharacteristics(connectionHandle));
+        return getCharacteristics(connectionHandle, MIN_HANDLE, MAX_HANDLE);
+    }
+
+    /**
+     * Discovers characteristics and descriptors within the given handle range (e.g. a service handle range).
+     * @param connectionHandle connection handle
+     * @param handleStart first handle of the range
+     * @param handleEnd last handle of the range
+     * @return attribute information events
+     */
+    protected List<BlueGigaFindInformationFoundEvent> getCharacteristics(int connectionHandle,
+                                                                         int handleStart, int handleEnd) {
+        return collect(consumer -> streamCharacteristics(connectionHandle, handleStart, handleEnd, consumer));
+    }
+
+    /**
+     * Streaming version of {@link #getCharacteristics(int, int, int)}, see {@link #streamServices(int, Consumer)}.
+     * @param connectionHandle connection handle
+     * @param handleStart first handle of the range
+     * @param handleEnd last handle of the range
+     * @param consumer attribute information event consumer
+     */
+    protected void streamCharacteristics(int connectionHandle, int handleStart, int handleEnd,
+                                         Consumer<BlueGigaFindInformationFoundEvent> consumer) {
+        syncCallRangeProcedure(BluegigaTimeouts.Type.FIND_INFORMATION, connectionHandle,
+                BlueGigaFindInformationFoundEvent.class, p -> p.getConnection() == connectionHandle,
+                BlueGigaFindInformationFoundEvent::getChrHandle, handleStart, handleEnd,
+            (start, end) -> bgFindCharacteristics(connectionHandle, start, end), consumer);
     }
 
     protected List<BlueGigaAttributeValueEvent> getDeclarations(int connectionHandle) {
-        return syncCallProcedure(BlueGigaAttributeValueEvent.class, p -> p.getConnection() == connectionHandle
+        return getDeclarations(connectionHandle, MIN_HANDLE, MAX_HANDLE);
+    }
+
+    /**
+     * Discovers characteristic declarations within the given handle range (e.g. a service handle range).
+     * @param connectionHandle connection handle
+     * @param handleStart first handle of the range
+     * @param handleEnd last handle of the range
+     * @return characteristic declaration events
+     */
+    protected List<BlueGigaAttributeValueEvent> getDeclarations(int connectionHandle,
+                                                                int handleStart, int handleEnd) {
+        return collect(consumer -> streamDeclarations(connectionHandle, handleStart, handleEnd, consumer));
+    }
+
+    protected void streamDeclarations(int connectionHandle, Consumer<BlueGigaAttributeValueEvent> consumer) {
+        streamDeclarations(connectionHandle, MIN_HANDLE, MAX_HANDLE, consumer);
+    }
+
+    /**
+     * Streaming version of {@link #getDeclarations(int, int, int)}, see {@link #streamServices(int, Consumer)}.
+     * @param connectionHandle connection handle
+     * @param handleStart first handle of the range
+     * @param handleEnd last handle of the range
+     * @param consumer characteristic declaration event consumer
+     */
+    protected void streamDeclarations(int connectionHandle, int handleStart, int handleEnd,
+                                      Consumer<BlueGigaAttributeValueEvent> consumer) {
+        syncCallRangeProcedure(BluegigaTimeouts.Type.DECLARATIONS, connectionHandle,
+                BlueGigaAttributeValueEvent.class, p -> p.getConnection() == connectionHandle
                         && p.getType() == AttributeValueType.ATTCLIENT_ATTRIBUTE_VALUE_TYPE_READ_BY_TYPE,
-                BlueGigaProcedureCompletedEvent.class, p -> p.getConnection() == connectionHandle,
-            () -> bgFindDeclarations(connectionHandle));
+                BlueGigaAttributeValueEvent::getAttHandle, handleStart, handleEnd,
+            (start, end) -> bgFindDeclarations(connectionHandle, start, end), consumer);
     }
 
     protected BlueGigaAttributeValueEvent readCharacteristic(int connectionHandle, int characteristicHandle) {
-        return syncCall(BlueGigaAttributeValueEvent.class,
+        return syncCall(BluegigaTimeouts.Type.READ, connectionHandle, BlueGigaAttributeValueEvent.class,
             p -> p.getConnection() == connectionHandle && p.getAttHandle() == characteristicHandle,
             () -> bgReadCharacteristic(connectionHandle, characteristicHandle));
     }
 
+    /**
+     * Reads a characteristic asynchronously. The read is queued behind other procedures of the same connection,
+     * procedures of other connections are not affected.
+     * @param connectionHandle connection handle
+     * @param characteristicHandle characteristic handle
+     * @return a future which is completed when the value is received
+     */
+    protected CompletableFuture<BlueGigaAttributeValueEvent> readCharacteristicAsync(int connectionHandle,
+                                                                                      int characteristicHandle) {
+        return call(BluegigaTimeouts.Type.READ, connectionHandle, BlueGigaAttributeValueEvent.class,
+            p -> p.getConnection() == connectionHandle && p.getAttHandle() == characteristicHandle,
+            () -> bgReadCharacteristic(connectionHandle, characteristicHandle));
+    }
+
+    /**
+     * Reads a long attribute value (longer than {@link #MAX_READ_LENGTH}) by using the "read long" procedure.
+     * All parts of the value are aggregated into a single value.
+     * @param connectionHandle connection handle
+     * @param characteristicHandle attribute handle
+     * @return attribute value
+     */
+    protected int[] readCharacteristicLong(int connectionHandle, int characteristicHandle) {
+        return await(readCharacteristicLongAsync(connectionHandle, characteristicHandle));
+    }
+
+    protected CompletableFuture<int[]> readCharacteristicLongAsync(int connectionHandle, int characteristicHandle) {
+        logger.debug("Read long characteristic: {} / {}", connectionHandle, characteristicHandle);
+        BluegigaProcedure<BlueGigaAttributeValueEvent, BlueGigaProcedureCompletedEvent> procedure =
+            new BluegigaProcedure<>(BluegigaTimeouts.Type.READ, BlueGigaAttributeValueEvent.class,
+                p -> p.getConnection() == connectionHandle && p.getAttHandle() == characteristicHandle
+                    && (p.getType() == AttributeValueType.ATTCLIENT_ATTRIBUTE_VALUE_TYPE_READ
+                    || p.getType() == AttributeValueType.ATTCLIENT_ATTRIBUTE_VALUE_TYPE_READ_BLOB),
+                BlueGigaProcedureCompletedEvent.class,
+                p -> p.getConnection() == connectionHandle && p.getChrHandle() == characteristicHandle);
+        BluegigaLane lane = lane(connectionHandle);
+        return lane.submit(() -> start(lane, procedure, () -> bgReadLong(connectionHandle, characteristicHandle)))
+            .thenApply(completed -> {
+                if (completed.getResult() != BgApiResponse.SUCCESS) {
+                    throw new BluegigaProcedureException("Could not read long characteristic: " + connectionHandle
+                        + " / " + characteristicHandle + " / " + completed.getResult(), completed.getResult());
+                }
+                return procedure.getEvents().stream().map(BlueGigaAttributeValueEvent::getValue)
+                    .flatMapToInt(Arrays::stream).toArray();
+            });
+    }
+
+    /**
+     * Reads values of multiple attributes by a single "read multiple" request. Note that values are concatenated
+     * in the response without any delimiters, it is up to the caller to split the response by known value lengths.
+     * The response is limited by {@link #MAX_READ_LENGTH}.
+     * @param connectionHandle connection handle
+     * @param handles attribute handles
+     * @return concatenated values
+     */
+    protected int[] readMultiple(int connectionHandle, int[] handles) {
+        return await(readMultipleAsync(connectionHandle, handles));
+    }
+
+    protected CompletableFuture<int[]> readMultipleAsync(int connectionHandle, int[] handles) {
+        logger.debug("Read multiple: {} / {}", connectionHandle, handles);
+        // the procedure is completed with a response event, a procedure completed event is sent only on errors
+        BluegigaProcedure<BlueGigaProcedureCompletedEvent, BlueGigaReadMultipleResponseEvent> procedure =
+            new BluegigaProcedure<>(BluegigaTimeouts.Type.READ,
+                BlueGigaProcedureCompletedEvent.class, p -> p.getConnection() == connectionHandle,
+                BlueGigaReadMultipleResponseEvent.class, p -> p.getConnection() == connectionHandle,
+                failed -> {
+                    throw new BluegigaProcedureException("Could not read multiple attributes: "
+                        + connectionHandle + " / " + failed.getResult(), failed.getResult());
+                });
+        BluegigaLane lane = lane(connectionHandle);
+        return lane.submit(() -> start(lane, procedure, () -> bgReadMultiple(connectionHandle, handles)))
+            .thenApply(BlueGigaReadMultipleResponseEvent::getHandles);
+    }
+
+    /**
+     * Writes a long attribute value (longer than {@link #MAX_WRITE_LENGTH}) by using the "queued write" procedure.
+     * The value is sent in parts with "prepare write" requests and then committed with the "execute write" request.
+     * If any part is rejected by the device, the queued write is cancelled.
+     * @param connectionHandle connection handle
+     * @param characteristicHandle attribute handle
+     * @param data attribute value
+     * @return procedure completed event of the failed prepare write request or of the execute write request
+     */
+    protected BlueGigaProcedureCompletedEvent writeCharacteristicLong(int connectionHandle, int characteristicHandle,
+                                                                      int[] data) {
+        return await(writeCharacteristicLongAsync(connectionHandle, characteristicHandle, data));
+    }
+
+    protected CompletableFuture<BlueGigaProcedureCompletedEvent> writeCharacteristicLongAsync(int connectionHandle,
+            int characteristicHandle, int[] data) {
+        logger.debug("Write long characteristic: {} / {}", connectionHandle, characteristicHandle);
+        BluegigaLane lane = lane(connectionHandle);
+        return lane.submit(() -> prepareWrite(lane, connectionHandle, characteristicHandle, data, 0));
+    }
+
     protected BlueGigaProcedureCompletedEvent writeCharacteristic(int connectionHandle,
                                                                   int characteristicHandle, int[] data) {
-        BlueGigaProcedureCompletedEvent result =
-                writeCharacteristicWithResponse(connectionHandle, characteristicHandle, data);
-        int retryCount = 0;
-        while (result.getResult() == BgApiResponse.APPLICATION && retryCount <= 10) {
-            logger.debug("Device responded with the APPLICATION result, retrying: {} / {} / {}",
-                    connectionHandle, characteristicHandle, retryCount);
-            result = writeCharacteristicWithResponse(connectionHandle, characteristicHandle, data);
-            retryCount++;
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException ignore) { /* do nothing */ }
-        }
+        logger.debug("Write characteristic with response: {} / {}", connectionHandle, characteristicHandle);
+        return await(writeCharacteristicWithRetry(connectionHandle, characteristicHandle, data)).getEvent();
+    }
+
+    /**
+     * Writes a characteristic asynchronously. If the device responds with the APPLICATION result, the write is
+     * retried according to the write retry policy (exponential backoff with jitter). The connection is released
+     * between attempts, so that other procedures can be executed. A timed out write is retried once.
+     * @param connectionHandle connection handle
+     * @param characteristicHandle characteristic handle
+     * @param data data to write
+     * @return a future which is completed with the result of the last attempt, number of attempts and latency
+     */
+    protected CompletableFuture<BluegigaWriteResult> writeCharacteristicWithRetry(int connectionHandle,
+            int characteristicHandle, int[] data) {
+        CompletableFuture<BluegigaWriteResult> result = new CompletableFuture<>();
+        attemptWrite(connectionHandle, characteristicHandle, data, 1, false, System.currentTimeMillis(), result);
         return result;
     }
 
-    private BlueGigaProcedureCompletedEvent writeCharacteristicWithResponse(int connectionHandle,
-                                                                  int characteristicHandle, int[] data) {
-        logger.debug("Write characteristic with response: {} / {}", connectionHandle, characteristicHandle);
-        return syncCall(BlueGigaProcedureCompletedEvent.class,
+    protected void setWriteRetryPolicy(BluegigaRetryPolicy writeRetryPolicy) {
+        this.writeRetryPolicy = writeRetryPolicy;
+    }
+
+    protected BluegigaRetryPolicy getWriteRetryPolicy() {
+        return writeRetryPolicy;
+    }
+
+    protected void setRssiPolicy(BluegigaRssiPolicy rssiPolicy) {
+        this.rssiPolicy = rssiPolicy;
+    }
+
+    protected BluegigaRssiPolicy getRssiPolicy() {
+        return rssiPolicy;
+    }
+
+    protected void setRssiFilterFactory(Supplier<BluegigaRssiFilter> rssiFilterFactory) {
+        this.rssiFilterFactory = rssiFilterFactory;
+    }
+
+    protected Supplier<BluegigaRssiFilter> getRssiFilterFactory() {
+        return rssiFilterFactory;
+    }
+
+    /**
+     * Writes a characteristic asynchronously (single attempt). The write is queued behind other procedures
+     * of the same connection, procedures of other connections are not affected.
+     * @param connectionHandle connection handle
+     * @param characteristicHandle characteristic handle
+     * @param data data to write
+     * @return a future which is completed when the write procedure is completed
+     */
+    protected CompletableFuture<BlueGigaProcedureCompletedEvent> writeCharacteristicAsync(int connectionHandle,
+            int characteristicHandle, int[] data) {
+        return call(BluegigaTimeouts.Type.WRITE, connectionHandle, BlueGigaProcedureCompletedEvent.class,
             p -> p.getConnection() == connectionHandle && p.getChrHandle() == characteristicHandle,
             () -> bgWriteCharacteristic(connectionHandle, characteristicHandle, data));
     }
 
+    private void attemptWrite(int connectionHandle, int characteristicHandle, int[] data, int attempt,
+                              boolean timedOut, long started, CompletableFuture<BluegigaWriteResult> result) {
+        BluegigaRetryPolicy retryPolicy = writeRetryPolicy;
+        // retries are never executed in the thread that has completed the attempt: timeouts are completed
+        // in the scheduler thread, and sending a command from there would block procedure timeouts
+        writeCharacteristicAsync(connectionHandle, characteristicHandle, data).whenComplete((event, error) -> {
+            if (error instanceof BluegigaTimeoutException && !timedOut && retryPolicy.canRetry(attempt)) {
+                logger.warn("Timeout received while writing characteristic: {} / {}. Trying one more time",
+                        connectionHandle, characteristicHandle);
+                schedule(() -> attemptWrite(connectionHandle, characteristicHandle, data, attempt + 1, true,
+                        started, result), 0, result);
+            } else if (error != null) {
+                result.completeExceptionally(error);
+            } else if (event.getResult() == BgApiResponse.APPLICATION && retryPolicy.canRetry(attempt)) {
+                long delay = retryPolicy.getDelay(attempt);
+                logger.debug("Device responded with the APPLICATION result, retrying in {} ms: {} / {} / {}",
+                        delay, connectionHandle, characteristicHandle, attempt);
+                schedule(() -> attemptWrite(connectionHandle, characteristicHandle, data, attempt + 1, timedOut,
+                        started, result), delay, result);
+            } else {
+                result.complete(new BluegigaWriteResult(event, attempt, System.currentTimeMillis() - started));
+            }
+        });
+    }
+
+    private CompletableFuture<BlueGigaProcedureCompletedEvent> prepareWrite(BluegigaLane lane, int connectionHandle,
+            int characteristicHandle, int[] data, int offset) {
+        if (offset >= data.length) {
+            return executeWrite(lane, connectionHandle, true);
+        }
+        int[] part = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + MAX_PREPARE_WRITE_LENGTH));
+        BluegigaProcedure<BlueGigaResponse, BlueGigaProcedureCompletedEvent> procedure =
+            new BluegigaProcedure<>(BluegigaTimeouts.Type.WRITE, BlueGigaProcedureCompletedEvent.class,
+                p -> p.getConnection() == connectionHandle && p.getChrHandle() == characteristicHandle);
+        // next parts are sent from the procedures executor, not from the thread that has received the event
+        return start(lane, procedure, () -> bgPrepareWrite(connectionHandle, characteristicHandle, offset, part))
+            .handleAsync((completed, error) -> {
+                if (error == null && completed.getResult() == BgApiResponse.SUCCESS) {
+                    return prepareWrite(lane, connectionHandle, characteristicHandle, data, offset + part.length);
+                }
+                logger.warn("Queued write has been rejected, cancelling: {} / {} / {}", connectionHandle,
+                    characteristicHandle, error != null ? error.getMessage() : completed.getResult());
+                CompletableFuture<BlueGigaProcedureCompletedEvent> cancelled =
+                    executeWrite(lane, connectionHandle, false);
+                return cancelled.handle((ignore, cancelError) -> {
+                    if (error != null) {
+                        throw error instanceof RuntimeException
+                            ? (RuntimeException) error : new BluegigaException("Queued write has failed", error);
+                    }
+                    return completed;
+                });
+            }, executor).thenCompose(next -> next);
+    }
+
+    private CompletableFuture<BlueGigaProcedureCompletedEvent> executeWrite(BluegigaLane lane, int connectionHandle,
+                                                                            boolean commit) {
+        BluegigaProcedure<BlueGigaResponse, BlueGigaProcedureCompletedEvent> procedure =
+            new BluegigaProcedure<>(BluegigaTimeouts.Type.WRITE, BlueGigaProcedureCompletedEvent.class,
+                p -> p.getConnection() == connectionHandle);
+        return start(lane, procedure, () -> bgExecuteWrite(connectionHandle, commit));
+    }
+
     protected boolean writeCharacteristicWithoutResponse(int connectionHandle, int characteristicHandle, int[] data) {
         logger.debug("Write characteristic without response: {} / {}", connectionHandle, characteristicHandle);
-        synchronized (eventsCaptor) {
-            return bgWriteCharacteristic(connectionHandle, characteristicHandle, data) == BgApiResponse.SUCCESS;
-        }
+        return await(lane(connectionHandle).submit(() -> CompletableFuture.completedFuture(
+            bgWriteCharacteristic(connectionHandle, characteristicHandle, data) == BgApiResponse.SUCCESS)));
+    }
+
+    /**
+     * Streams a payload to a characteristic by using "write without response" packets. The payload is split into
+     * chunks of ATT payload size which are sent as fast as the dongle accepts them. The stream is queued behind
+     * other procedures of the same connection.
+     * @param connectionHandle connection handle
+     * @param characteristicHandle characteristic handle
+     * @param input payload
+     * @return a future which is completed with the stream (and its statistics) when the payload is written
+     */
+    protected CompletableFuture<BluegigaWriteStream> writeCharacteristicStream(int connectionHandle,
+            int characteristicHandle, InputStream input) {
+        logger.debug("Write characteristic stream: {} / {}", connectionHandle, characteristicHandle);
+        BluegigaWriteStream stream = new BluegigaWriteStream(input, BluegigaWriteStream.DEFAULT_CHUNK_SIZE,
+            chunk -> bgWriteCommand(connectionHandle, characteristicHandle, chunk), scheduler, executor);
+        return lane(connectionHandle).submit(
+            () -> CompletableFuture.supplyAsync(stream::start, executor).thenCompose(started -> started));
+    }
+
+    protected CompletableFuture<BluegigaWriteStream> writeCharacteristicStream(int connectionHandle,
+            int characteristicHandle, byte[] data) {
+        return writeCharacteristicStream(connectionHandle, characteristicHandle, new ByteArrayInputStream(data));
     }
 
     protected BlueGigaGetInfoResponse bgGetInfo() {
-        synchronized (eventsCaptor) {
-            return sendTransaction(new BlueGigaGetInfoCommand(), BlueGigaGetInfoResponse.class);
-        }
+        return sendTransaction(new BlueGigaGetInfoCommand(), BlueGigaGetInfoResponse.class);
     }
 
     /**
      * Starts scanning on the dongle.
      */
     protected boolean bgStartScanning() {
-        synchronized (eventsCaptor) {
-            BlueGigaSetScanParametersCommand scanCommand = new BlueGigaSetScanParametersCommand();
-            scanCommand.setActiveScanning(true);
-            scanCommand.setScanInterval(ACTIVE_SCAN_INTERVAL);
-            scanCommand.setScanWindow(ACTIVE_SCAN_WINDOW);
-            sendTransaction(scanCommand, BlueGigaSetScanParametersResponse.class);
-
-            BlueGigaDiscoverCommand discoverCommand = new BlueGigaDiscoverCommand();
-            discoverCommand.setMode(GapDiscoverMode.GAP_DISCOVER_OBSERVATION);
-            BlueGigaDiscoverResponse response = sendTransaction(discoverCommand, BlueGigaDiscoverResponse.class);
-            discovering = response.getResult() == BgApiResponse.SUCCESS;
-            return discovering;
-        }
+        BlueGigaSetScanParametersCommand scanCommand = new BlueGigaSetScanParametersCommand();
+        scanCommand.setActiveScanning(true);
+        scanCommand.setScanInterval(ACTIVE_SCAN_INTERVAL);
+        scanCommand.setScanWindow(ACTIVE_SCAN_WINDOW);
+        sendTransaction(scanCommand, BlueGigaSetScanParametersResponse.class);
+
+        BlueGigaDiscoverCommand discoverCommand = new BlueGigaDiscoverCommand();
+        discoverCommand.setMode(GapDiscoverMode.GAP_DISCOVER_OBSERVATION);
+        BlueGigaDiscoverResponse response = sendTransaction(discoverCommand, BlueGigaDiscoverResponse.class);
+        discovering = response.getResult() == BgApiResponse.SUCCESS;
+        return discovering;
     }
 
     protected short bgGetRssi(int connectionHandle) {
-        synchronized (eventsCaptor) {
-            BlueGigaGetRssiCommand rssiCommand = new BlueGigaGetRssiCommand();
-            rssiCommand.setConnection(connectionHandle);
-            return (short) sendTransaction(rssiCommand, BlueGigaGetRssiResponse.class).getRssi();
-        }
+        BlueGigaGetRssiCommand rssiCommand = new BlueGigaGetRssiCommand();
+        rssiCommand.setConnection(connectionHandle);
+        return (short) sendTransaction(rssiCommand, BlueGigaGetRssiResponse.class).getRssi();
     }
 
     protected boolean bgStopProcedure() {
         logger.debug("Stopping procedures");
-        synchronized (eventsCaptor) {
-            BlueGigaEndProcedureResponse response =
-                    sendTransaction(new BlueGigaEndProcedureCommand(), BlueGigaEndProcedureResponse.class);
-            discovering = false;
-            return response.getResult() == BgApiResponse.SUCCESS;
-        }
+        BlueGigaEndProcedureResponse response =
+                sendTransaction(new BlueGigaEndProcedureCommand(), BlueGigaEndProcedureResponse.class);
+        discovering = false;
+        return response.getResult() == BgApiResponse.SUCCESS;
     }
 
     protected BlueGigaConnectionStatusEvent getConnectionStatus(int connectionHandle) {
-        return syncCall(BlueGigaConnectionStatusEvent.class, p -> p.getConnection() == connectionHandle,
-            () -> bgGetStatus(connectionHandle));
+        return syncCall(BluegigaTimeouts.Type.STATUS, connectionHandle, BlueGigaConnectionStatusEvent.class,
+            p -> p.getConnection() == connectionHandle, () -> bgGetStatus(connectionHandle));
     }
 
     protected void dispose() {
-        synchronized (eventsCaptor) {
+        synchronized (synchronizationContext) {
             if (bgHandler != null && bgHandler.isAlive()) {
                 try {
                     bgStopProcedure();
@@ -322,24 +828,207 @@ class BluegigaHandler implements BlueGigaEventListener {
                     logger.debug("Could not close all connections: {}", ex.getMessage());
                 }
             }
+            livenessTracker.stop();
             closeBGHandler();
+            eventDispatcher.dispose();
+            eventRouter.clear();
+            gattInvalidationListeners.clear();
+            lanes.values().forEach(lane -> lane.fail(new BluegigaException("Bluegiga handler is disposed")));
+            scheduler.shutdownNow();
+            executor.shutdownNow();
+            synchronized (scheduledDiscoveries) {
+                if (discoveryExecutor != null) {
+                    discoveryExecutor.shutdownNow();
+                }
+            }
         }
     }
 
     protected long getEventWaitTimeout() {
-        return DEFAULT_WAIT_TIME;
+        return eventWaitTimeout;
     }
 
+    /**
+     * Configures procedure timeouts. Timeouts are derived from observed latencies of each procedure type
+     * and limited by the given floor and ceiling. Command/response transactions are not affected, they always wait
+     * for {@link #getEventWaitTimeout()}.
+     * @param floor minimum procedure timeout in milliseconds
+     * @param ceiling maximum procedure timeout in milliseconds
+     */
+    protected void setProcedureTimeouts(long floor, long ceiling) {
+        if (floor <= 0 || ceiling < floor) {
+            throw new IllegalArgumentException("Invalid procedure timeouts: " + floor + " / " + ceiling);
+        }
+        timeouts.setFloor(floor);
+        procedureTimeoutCeiling = ceiling;
+    }
+
+    /**
+     * Returns a procedure timeout that is currently used for the given procedure type.
+     * @param type procedure type
+     * @return timeout in milliseconds
+     */
+    protected long getProcedureTimeout(BluegigaTimeouts.Type type) {
+        return timeouts.getTimeout(type, procedureTimeoutCeiling);
+    }
+
+    /**
+     * Checks if the adapter is alive. This method does not block, it returns cached liveness state which is updated
+     * by the adapter traffic and by background heartbeats that are sent when the adapter has been idle for a while.
+     * @return true if the adapter is alive
+     */
     protected boolean isAlive() {
-        synchronized (eventsCaptor) {
-            try {
-                return bgHandler.isAlive()
-                        && sendTransaction(new BlueGigaHelloCommand(), BlueGigaHelloResponse.class) != null;
-            } catch (BlueGigaException ex) {
-                logger.warn("Error occurred while checking if BlueGiga handler is alive: {}", ex.getMessage());
-                return false;
-            }
+        return bgHandler != null && bgHandler.isAlive() && livenessTracker.isAlive();
+    }
+
+    protected BluegigaGattCache getGattCache() {
+        return gattCache;
+    }
+
+    protected void setGattCache(BluegigaGattCache gattCache) {
+        this.gattCache = gattCache;
+    }
+
+    protected BluegigaGattTemplates getGattTemplates() {
+        return gattTemplates;
+    }
+
+    protected void setGattTemplates(BluegigaGattTemplates gattTemplates) {
+        this.gattTemplates = gattTemplates;
+    }
+
+    protected boolean isLazyDiscovery() {
+        return lazyDiscovery;
+    }
+
+    /**
+     * Enables/disables lazy attribute discovery. If enabled, only primary services get discovered when a device
+     * gets connected, characteristics and descriptors of a service are discovered the first time they are requested.
+     * @param lazyDiscovery true to enable lazy discovery
+     */
+    protected void setLazyDiscovery(boolean lazyDiscovery) {
+        this.lazyDiscovery = lazyDiscovery;
+    }
+
+    protected int getDiscoveryConcurrency() {
+        return discoveryConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of devices which attributes can be discovered at the same time.
+     * Must be called before any device gets connected.
+     * @param discoveryConcurrency number of concurrent discoveries
+     */
+    protected void setDiscoveryConcurrency(int discoveryConcurrency) {
+        if (discoveryConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid discovery concurrency: " + discoveryConcurrency);
+        }
+        this.discoveryConcurrency = discoveryConcurrency;
+        discoverySlots = new Semaphore(discoveryConcurrency, true);
+    }
+
+    protected int getDiscoveryQueueSize() {
+        return discoveryQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of device discoveries that can wait for a discovery worker, discoveries that
+     * do not fit into the queue are not scheduled. Must be called before any device gets connected.
+     * @param discoveryQueueSize discovery queue capacity
+     */
+    protected void setDiscoveryQueueSize(int discoveryQueueSize) {
+        if (discoveryQueueSize < 1) {
+            throw new IllegalArgumentException("Invalid discovery queue size: " + discoveryQueueSize);
         }
+        this.discoveryQueueSize = discoveryQueueSize;
+    }
+
+    /**
+     * Records how long it took to discover attributes of a device.
+     * @param latency discovery latency in milliseconds
+     */
+    protected void recordDiscoveryLatency(long latency) {
+        discoveryLatencies.record(latency);
+    }
+
+    /**
+     * Returns a percentile of device discovery latencies.
+     * @param percentile percentile (0..1)
+     * @return discovery latency in milliseconds or -1 if no device has been discovered yet
+     */
+    protected long getDiscoveryLatency(double percentile) {
+        return discoveryLatencies.getPercentile(percentile);
+    }
+
+    protected Set<String> getServiceAllowlist() {
+        return serviceAllowlist;
+    }
+
+    protected Set<String> getCharacteristicAllowlist() {
+        return characteristicAllowlist;
+    }
+
+    /**
+     * Limits attribute discovery to the given services and characteristics. Characteristics and declarations
+     * are discovered only within handle ranges of the allowed services, other attributes are skipped.
+     * @param serviceAllowlist full UUIDs of services to be discovered, all services are discovered if empty
+     * @param characteristicAllowlist full UUIDs of characteristics to be discovered,
+     *                                all characteristics are discovered if empty
+     */
+    protected void setDiscoveryAllowlists(Set<String> serviceAllowlist, Set<String> characteristicAllowlist) {
+        this.serviceAllowlist = Collections.unmodifiableSet(new HashSet<>(serviceAllowlist));
+        this.characteristicAllowlist = Collections.unmodifiableSet(new HashSet<>(characteristicAllowlist));
+    }
+
+    /**
+     * Invalidates a GATT cache entry (and a GATT template if it has been applied) of a device connected
+     * with the given connection handle and notifies the invalidation listener of the device. This is done
+     * on the discovery worker pool as the cache is backed by file IO and the device gets rediscovered.
+     * @param connectionHandle connection handle
+     */
+    protected void invalidateGattCache(int connectionHandle) {
+        String address = eventRouter.getAddress(connectionHandle);
+        if (address == null) {
+            return;
+        }
+        try {
+            discoveryExecutor().execute(() -> {
+                try {
+                    invalidateGattCache(address);
+                    Runnable listener = gattInvalidationListeners.get(address);
+                    if (listener != null) {
+                        listener.run();
+                    }
+                } catch (RuntimeException ex) {
+                    logger.warn("Could not invalidate GATT cache: {} : {}", address, ex.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.warn("GATT cache could not be invalidated (queue is full or handler is disposed): {}", address);
+        }
+    }
+
+    /**
+     * Invalidates a GATT cache entry (and a GATT template if it has been applied) of a device.
+     * @param address device address
+     */
+    protected void invalidateGattCache(String address) {
+        BluegigaGattCache cache = gattCache;
+        if (cache != null) {
+            cache.invalidate(address);
+        }
+        BluegigaGattTemplates templates = gattTemplates;
+        if (templates != null) {
+            templates.invalidate(address);
+        }
+    }
+
+    /**
+     * Sets for how long the adapter can be idle (no traffic) before a heartbeat is sent.
+     * @param heartbeatIdleTime idle time in milliseconds
+     */
+    protected void setHeartbeatIdleTime(long heartbeatIdleTime) {
+        livenessTracker.setIdleTime(heartbeatIdleTime);
     }
 
     protected void checkAlive() {
@@ -351,12 +1040,16 @@ class BluegigaHandler implements BlueGigaEventListener {
     private <T extends BlueGigaResponse> T sendTransaction(BlueGigaCommand command, Class<T> expected) {
         try {
             logger.debug("Sending transaction: {}", command);
-            return bgHandler.sendTransaction(command, expected, eventWaitTimeout);
+            T response = bgHandler.sendTransaction(command, expected, eventWaitTimeout);
+            livenessTracker.activity();
+            return response;
         } catch (TimeoutException timeout) {
             logger.warn("Timeout has happened while sending a transaction, retry one more time: {}",
                     command.getClass().getSimpleName());
             try {
-                return bgHandler.sendTransaction(command, expected, eventWaitTimeout);
+                T response = bgHandler.sendTransaction(command, expected, eventWaitTimeout);
+                livenessTracker.activity();
+                return response;
             } catch (TimeoutException timeout2) {
                 logger.warn("Timeout has happened second time, giving up: {}", command.getClass().getSimpleName());
                 //bgReset();
@@ -378,102 +1071,225 @@ class BluegigaHandler implements BlueGigaEventListener {
 
     // Bluegiga API specific methods
 
-    private <T extends BlueGigaResponse> T syncCall(Class<T> completedEventType, Predicate<T> completionPredicate,
+    private <T extends BlueGigaResponse> T syncCall(BluegigaTimeouts.Type type, int connectionHandle,
+                                                    Class<T> completedEventType,
+                                                    Predicate<T> completionPredicate,
                                                     Supplier<BgApiResponse> initialCommand) {
-        synchronized (eventsCaptor) {
-            logger.debug("Sync call: {} ", completedEventType.getSimpleName());
-            eventsCaptor.setCompletedEventType(completedEventType);
-            eventsCaptor.setCompletionPredicate(completionPredicate);
+        logger.debug("Sync call: {} ", completedEventType.getSimpleName());
+        try {
+            return await(call(type, connectionHandle, completedEventType, completionPredicate, initialCommand));
+        } catch (BluegigaTimeoutException ignore) {
+            logger.warn("Timeout received while calling simple procedure: {}. Trying one more time",
+                    completedEventType.getSimpleName());
+            return await(call(type, connectionHandle, completedEventType, completionPredicate, initialCommand));
+        }
+    }
+
+    /**
+     * Executes a procedure that walks a handle range (e.g. services, characteristics or declarations discovery).
+     * Events are streamed to the consumer as they are received. If the procedure times out, it is resumed from
+     * the handle that follows the last streamed one. The procedure is resumed as long as it makes progress,
+     * a procedure that times out without any progress is retried only once.
+     */
+    private <E extends BlueGigaResponse> void syncCallRangeProcedure(BluegigaTimeouts.Type type,
+            int connectionHandle, Class<E> aggregatedEventType, Predicate<E> aggregationPredicate,
+            ToIntFunction<E> eventHandle, int handleStart, int handleEnd,
+            BiFunction<Integer, Integer, BgApiResponse> initialCommand, Consumer<E> consumer) {
+        // the last streamed handle, a timed out procedure is resumed from the following one
+        AtomicInteger last = new AtomicInteger(handleStart - 1);
+        Consumer<E> progress = event -> {
+            last.accumulateAndGet(eventHandle.applyAsInt(event), Math::max);
+            consumer.accept(event);
+        };
+        // late events of a timed out attempt and events re-read by the resumed one must not be streamed twice,
+        // the last handle is checked when each event arrives
+        Predicate<E> resumedPredicate =
+                aggregationPredicate.and(event -> eventHandle.applyAsInt(event) > last.get());
+        boolean resumed = false;
+        boolean retried = false;
+        while (true) {
+            int from = last.get() + 1;
+            BluegigaProcedure<E, BlueGigaProcedureCompletedEvent> procedure = new BluegigaProcedure<>(type,
+                    aggregatedEventType, resumed ? resumedPredicate : aggregationPredicate,
+                    BlueGigaProcedureCompletedEvent.class, p -> p.getConnection() == connectionHandle, progress);
+            if (resumed) {
+                // a late completion of the timed out attempt must not complete the resumed one
+                procedure.ignoreEarlyCompletion();
+            }
+            BluegigaLane lane = lane(connectionHandle);
             try {
-                return callProcedure(completedEventType, initialCommand);
-            } catch (BluegigaTimeoutException ignore) {
-                logger.warn("Timeout received while calling simple procedure: {}. Trying one more time",
-                        completedEventType.getSimpleName());
-                return callProcedure(completedEventType, initialCommand);
+                await(lane.submit(() -> start(lane, procedure, () -> initialCommand.apply(from, handleEnd))));
+                return;
+            } catch (BluegigaTimeoutException ex) {
+                resumed = true;
+                int received = last.get();
+                if (received >= from) {
+                    if (received >= handleEnd) {
+                        return;
+                    }
+                    retried = false;
+                    logger.warn("Timeout received while calling complex procedure: {}. Resuming from handle {}",
+                            procedure.getName(), received + 1);
+                } else if (!retried) {
+                    retried = true;
+                    logger.warn("Timeout received while calling complex procedure: {}. Trying one more time",
+                            procedure.getName());
+                } else {
+                    throw ex;
+                }
             }
         }
     }
 
-    private <E extends BlueGigaResponse, C extends BlueGigaResponse> List<E> syncCallProcedure(
-            Class<E> aggregatedEventType, Predicate<E> aggregationPredicate,
-            Class<C> completedEventType, Predicate<C> completionPredicate,
-            Supplier<BgApiResponse> initialCommand) {
-        synchronized (eventsCaptor) {
-            eventsCaptor.setAggregatedEventType(aggregatedEventType);
-            eventsCaptor.setAggregationPredicate(aggregationPredicate);
-            eventsCaptor.setCompletedEventType(completedEventType);
-            eventsCaptor.setCompletionPredicate(completionPredicate);
-            try {
-                return callProcedure(aggregatedEventType, completedEventType, initialCommand);
-            } catch (BluegigaTimeoutException ignore) {
-                logger.warn("Timeout received while calling complex procedure: {} / {}. Trying one more time",
-                        aggregatedEventType.getSimpleName(), completedEventType.getSimpleName());
-                return callProcedure(aggregatedEventType, completedEventType, initialCommand);
+    private static <E> List<E> collect(Consumer<Consumer<E>> procedure) {
+        List<E> events = Collections.synchronizedList(new ArrayList<>());
+        procedure.accept(events::add);
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    private <T extends BlueGigaResponse> CompletableFuture<T> call(BluegigaTimeouts.Type type, int connectionHandle,
+                                                                   Class<T> completedEventType,
+                                                                   Predicate<T> completionPredicate,
+                                                                   Supplier<BgApiResponse> initialCommand) {
+        BluegigaProcedure<BlueGigaResponse, T> procedure =
+                new BluegigaProcedure<>(type, completedEventType, completionPredicate);
+        BluegigaLane lane = lane(connectionHandle);
+        return lane.submit(() -> start(lane, procedure, initialCommand));
+    }
+
+    /**
+     * Registers the procedure, sends its initial command and starts watching the procedure for timeouts.
+     * The procedure is registered before the command is sent so that none of its events can be missed.
+     */
+    private <C extends BlueGigaResponse> CompletableFuture<C> start(BluegigaLane lane,
+            BluegigaProcedure<?, C> procedure, Supplier<BgApiResponse> initialCommand) {
+        lane.register(procedure);
+        long timeout = timeouts.getTimeout(procedure.getType(), procedureTimeoutCeiling);
+        procedure.getCompletion().whenComplete((event, error) -> {
+            if (error == null) {
+                timeouts.record(procedure.getType(), procedure.getMaxLatency());
+            } else if (error instanceof BluegigaTimeoutException) {
+                timeouts.record(procedure.getType(), timeout);
             }
+            BgApiResponse result = event instanceof BlueGigaProcedureCompletedEvent
+                    ? ((BlueGigaProcedureCompletedEvent) event).getResult()
+                    : error instanceof BluegigaProcedureException
+                    ? ((BluegigaProcedureException) error).getResponse() : null;
+            if ((result == BgApiResponse.INVALID_HANDLE || result == BgApiResponse.ATT_NOT_FOUND)
+                    && (procedure.getType() == BluegigaTimeouts.Type.READ
+                        || procedure.getType() == BluegigaTimeouts.Type.WRITE)) {
+                // attribute handles do not match the GATT cache,
+                // discovery procedures normally end up with ATT_NOT_FOUND and are not taken into account
+                invalidateGattCache(lane.getConnectionHandle());
+            }
+        });
+        try {
+            BgApiResponse response = initialCommand.get();
+            if (response == BgApiResponse.UNKNOWN) {
+                logger.warn("UNKNOWN response received, trying to listen to events anyway: {}",
+                        procedure.getName());
+            }
+            if (response == BgApiResponse.SUCCESS
+                    // sometimes BlueGiga sends UNKNOWN response, we will try to listen to events,
+                    // but most likely it will time out, the caller (syncCall or syncCallRangeProcedure) will retry
+                    || response == BgApiResponse.UNKNOWN) {
+                procedure.started();
+                watch(procedure, timeout, timeout);
+            } else {
+                procedure.fail(new BluegigaProcedureException("Could not initiate process: "
+                        + procedure.getName() + " / " + response, response));
+            }
+        } catch (RuntimeException ex) {
+            procedure.fail(ex);
         }
+        return procedure.getCompletion();
     }
 
-    private <T extends BlueGigaResponse> T callProcedure(Class<T> completedEventType,
-                                                         Supplier<BgApiResponse> initialCommand) {
-        BgApiResponse response = initialCommand.get();
-        if (response == BgApiResponse.UNKNOWN) {
-            logger.warn("UNKNOWN response received, trying to listen to events anyway: {}",
-                    completedEventType.getSimpleName());
+    private void watch(BluegigaProcedure<?, ?> procedure, long timeout, long delay) {
+        try {
+            scheduler.schedule(() -> {
+                long remaining = procedure.expire(timeout);
+                if (remaining > 0) {
+                    watch(procedure, timeout, remaining);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            procedure.fail(new BluegigaException("Bluegiga handler is disposed", ex));
         }
-        if (response == BgApiResponse.SUCCESS
-                // sometimes BlueGiga sends UNKNOWN response, we will try to listen to events,
-                // but most likely it will time out, the caller of this method (syncCall) will retry 1 time
-                || response == BgApiResponse.UNKNOWN) {
+    }
+
+    private void schedule(Runnable task, long delay, CompletableFuture<?> result) {
+        Runnable execution = () -> {
             try {
-                BlueGigaResponse event = eventsCaptor.poll(eventWaitTimeout);
-                if (event == null) {
-                    throw new BluegigaTimeoutException("Could not receive expected event: "
-                            + completedEventType.getSimpleName());
-                }
-                eventsCaptor.reset();
-                return (T) event;
-            } catch (InterruptedException e) {
-                throw new BluegigaException("Bluegiga procedure has been interrupted", e);
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                result.completeExceptionally(new BluegigaException("Bluegiga handler is disposed", ex));
             }
+        };
+        if (delay <= 0) {
+            execution.run();
+            return;
+        }
+        try {
+            scheduler.schedule(execution, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(new BluegigaException("Bluegiga handler is disposed", ex));
         }
-        throw new BluegigaProcedureException("Could not initiate process: "
-                + completedEventType.getSimpleName() + " / " + response, response);
     }
 
-    private <E extends BlueGigaResponse, C extends BlueGigaResponse> List<E> callProcedure(
-            Class<E> aggregatedEventType, Class<C> completedEventType, Supplier<BgApiResponse> initialCommand) {
-        BgApiResponse response = initialCommand.get();
-        if (response == BgApiResponse.UNKNOWN) {
-            logger.warn("UNKNOWN response received, trying to listen to events anyway: {} / {}",
-                    aggregatedEventType.getSimpleName(), completedEventType.getSimpleName());
+    private void routeToProcedures(BlueGigaResponse event) {
+        int connectionHandle = BluegigaUtils.getConnectionHandle(event);
+        BluegigaLane lane = connectionHandle != ADAPTER_LANE ? lanes.get(connectionHandle) : null;
+        if (lane != null) {
+            boolean handled = lane.handleEvent(event);
+            if (!handled && event instanceof BlueGigaDisconnectedEvent) {
+                // the connection is gone, none of its procedures will ever be completed
+                lane.fail(new BluegigaException("Connection has been lost: " + connectionHandle));
+            }
+            // connection status events are also of interest for the connect procedure (adapter lane)
+            if (!(event instanceof BlueGigaConnectionStatusEvent)) {
+                return;
+            }
         }
-        if (response == BgApiResponse.SUCCESS
-                // sometimes BlueGiga sends UNKNOWN response, we will try to listen to events,
-                // but most likely it will time out, the caller of this method (syncCallProcedure) will retry 1 time
-                || response == BgApiResponse.UNKNOWN) {
-            try {
-                List<E> events = new ArrayList<>();
-                BlueGigaResponse event;
-                while (true) {
-                    event = eventsCaptor.poll(eventWaitTimeout);
-                    if (event == null) {
-                        throw new BluegigaTimeoutException("Could not receive expected event: "
-                                + aggregatedEventType.getSimpleName() + " or " + completedEventType.getSimpleName());
-                    }
-                    if (eventsCaptor.isCompletionEvent(event)) {
-                        eventsCaptor.reset();
-                        return events;
-                    } else {
-                        events.add((E) event);
-                    }
+        BluegigaLane adapterLane = lanes.get(ADAPTER_LANE);
+        if (adapterLane != null) {
+            adapterLane.handleEvent(event);
+        }
+    }
+
+    private ExecutorService discoveryExecutor() {
+        synchronized (scheduledDiscoveries) {
+            if (discoveryExecutor == null) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Bluegiga handler is disposed");
                 }
-            } catch (InterruptedException e) {
-                throw new BluegigaException("Event receiving process has been interrupted", e);
+                // one worker per discovery slot, workers are not kept when there is nothing to discover
+                discoveryExecutor = new ThreadPoolExecutor(discoveryConcurrency, discoveryConcurrency,
+                        DEFAULT_WAIT_TIME, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(discoveryQueueSize),
+                        BluegigaUtils.daemonThreadFactory("bluegiga-discovery"));
+                discoveryExecutor.allowCoreThreadTimeOut(true);
             }
+            return discoveryExecutor;
+        }
+    }
+
+    private BluegigaLane lane(int connectionHandle) {
+        return lanes.computeIfAbsent(connectionHandle, handle -> new BluegigaLane(handle, executor));
+    }
+
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new BluegigaException("Bluegiga procedure has been interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BluegigaException("Bluegiga procedure has failed", e.getCause());
         }
-        throw new BluegigaProcedureException("Could not initiate process: "
-                + aggregatedEventType.getSimpleName() + " / "
-                + completedEventType.getSimpleName() + " / " + response, response);
     }
 
     /*
@@ -555,33 +1371,33 @@ class BluegigaHandler implements BlueGigaEventListener {
                 : BgApiResponse.getBgApiResponse(BgApiResponse.UNKNOWN.getKey());
     }
 
-    private BgApiResponse bgFindPrimaryServices(int connectionHandle) {
-        logger.debug("BlueGiga FindPrimary: connection {}", connectionHandle);
+    private BgApiResponse bgFindPrimaryServices(int connectionHandle, int handleStart, int handleEnd) {
+        logger.debug("BlueGiga FindPrimary: connection {}, range {}-{}", connectionHandle, handleStart, handleEnd);
         BlueGigaReadByGroupTypeCommand command = new BlueGigaReadByGroupTypeCommand();
         command.setConnection(connectionHandle);
-        command.setStart(1);
-        command.setEnd(65535);
+        command.setStart(handleStart);
+        command.setEnd(handleEnd);
         command.setUuid(UUID.fromString("00002800-0000-0000-0000-000000000000"));
         BlueGigaReadByGroupTypeResponse response = sendTransaction(command, BlueGigaReadByGroupTypeResponse.class);
         return response.getResult();
     }
 
-    private BgApiResponse bgFindCharacteristics(int connectionHandle) {
-        logger.debug("BlueGiga Find: connection {}", connectionHandle);
+    private BgApiResponse bgFindCharacteristics(int connectionHandle, int handleStart, int handleEnd) {
+        logger.debug("BlueGiga Find: connection {}, range {}-{}", connectionHandle, handleStart, handleEnd);
         BlueGigaFindInformationCommand command = new BlueGigaFindInformationCommand();
         command.setConnection(connectionHandle);
-        command.setStart(1);
-        command.setEnd(65535);
+        command.setStart(handleStart);
+        command.setEnd(handleEnd);
         BlueGigaFindInformationResponse response = sendTransaction(command, BlueGigaFindInformationResponse.class);
         return response.getResult();
     }
 
-    private BgApiResponse bgFindDeclarations(int connectionHandle) {
-        logger.debug("BlueGiga FindDeclarations: connection {}", connectionHandle);
+    private BgApiResponse bgFindDeclarations(int connectionHandle, int handleStart, int handleEnd) {
+        logger.debug("BlueGiga FindDeclarations: connection {}, range {}-{}", connectionHandle, handleStart, handleEnd);
         BlueGigaReadByTypeCommand command = new BlueGigaReadByTypeCommand();
         command.setConnection(connectionHandle);
-        command.setStart(1);
-        command.setEnd(65535);
+        command.setStart(handleStart);
+        command.setEnd(handleEnd);
         command.setUuid(UUID.fromString("00002803-0000-0000-0000-000000000000"));
         BlueGigaReadByTypeResponse response = sendTransaction(command, BlueGigaReadByTypeResponse.class);
         return response.getResult();
@@ -608,6 +1424,50 @@ class BluegigaHandler implements BlueGigaEventListener {
         return response.getResult();
     }
 
+    private BgApiResponse bgReadLong(int connectionHandle, int characteristicHandle) {
+        logger.debug("BlueGiga Read Long: connection {}, characteristicHandle {}",
+            connectionHandle, characteristicHandle);
+        BlueGigaReadLongCommand command = new BlueGigaReadLongCommand();
+        command.setConnection(connectionHandle);
+        command.setChrHandle(characteristicHandle);
+        return sendTransaction(command, BlueGigaReadLongResponse.class).getResult();
+    }
+
+    private BgApiResponse bgReadMultiple(int connectionHandle, int[] handles) {
+        logger.debug("BlueGiga Read Multiple: connection {}, handles {}", connectionHandle, handles);
+        BlueGigaReadMultipleCommand command = new BlueGigaReadMultipleCommand();
+        command.setConnection(connectionHandle);
+        command.setHandles(handles);
+        return sendTransaction(command, BlueGigaReadMultipleResponse.class).getResult();
+    }
+
+    private BgApiResponse bgPrepareWrite(int connectionHandle, int handle, int offset, int[] value) {
+        logger.debug("BlueGiga Prepare Write: connection {}, characteristicHandle {}, offset {}",
+            connectionHandle, handle, offset);
+        BlueGigaPrepareWriteCommand command = new BlueGigaPrepareWriteCommand();
+        command.setConnection(connectionHandle);
+        command.setAttHandle(handle);
+        command.setOffset(offset);
+        command.setData(value);
+        return sendTransaction(command, BlueGigaPrepareWriteResponse.class).getResult();
+    }
+
+    private BgApiResponse bgExecuteWrite(int connectionHandle, boolean commit) {
+        logger.debug("BlueGiga Execute Write: connection {}, commit {}", connectionHandle, commit);
+        BlueGigaExecuteWriteCommand command = new BlueGigaExecuteWriteCommand();
+        command.setConnection(connectionHandle);
+        command.setCommit(commit ? 1 : 0);
+        return sendTransaction(command, BlueGigaExecuteWriteResponse.class).getResult();
+    }
+
+    private BgApiResponse bgWriteCommand(int connectionHandle, int handle, int[] value) {
+        BlueGigaWriteCommandCommand command = new BlueGigaWriteCommandCommand();
+        command.setConnection(connectionHandle);
+        command.setAttHandle(handle);
+        command.setData(value);
+        return sendTransaction(command, BlueGigaWriteCommandResponse.class).getResult();
+    }
+
     private boolean bgReset() {
         logger.debug("BlueGiga RESET");
         BlueGigaResetCommand command = new BlueGigaResetCommand();
@@ -660,6 +1520,8 @@ class BluegigaHandler implements BlueGigaEventListener {
         adapterAddress = bgGetAdapterAddress();
 
         bgHandler.addEventListener(this);
+
+        livenessTracker.start(scheduler, executor);
     }
 
     private void openSerialPort(final String serialPortName, int baudRate) {
@@ -691,6 +1553,7 @@ class BluegigaHandler implements BlueGigaEventListener {
     }
 
     private void closeBGHandler() {
+        livenessTracker.failed();
         if (bgHandler != null) {
             bgHandler.close(10000);
         }
@@ -723,58 +1586,4 @@ class BluegigaHandler implements BlueGigaEventListener {
         }
     }
 
-    private class EventCaptor<A extends BlueGigaResponse, C extends BlueGigaResponse> {
-
-        private Class<A> aggregatedEventType;
-        private Class<C> completedEventType;
-        private Predicate<A> aggregationPredicate;
-        private Predicate<C> completionPredicate;
-        private final LinkedBlockingDeque<BlueGigaResponse> events = new LinkedBlockingDeque<>();
-
-        private void setAggregatedEventType(Class<A> aggregatedEventType) {
-            this.aggregatedEventType = aggregatedEventType;
-        }
-
-        private void setCompletedEventType(Class<C> completedEventType) {
-            this.completedEventType = completedEventType;
-        }
-
-        private void setAggregationPredicate(Predicate<A> aggregationPredicate) {
-            this.aggregationPredicate = aggregationPredicate;
-        }
-
-        private void setCompletionPredicate(Predicate<C> completionPredicate) {
-            this.completionPredicate = completionPredicate;
-        }
-
-        private BlueGigaResponse poll(long timeout) throws InterruptedException {
-            return events.poll(timeout, TimeUnit.MILLISECONDS);
-        }
-
-        private void handleEvent(BlueGigaResponse event) {
-            if (isAggregatedEvent(event) || isCompletionEvent(event)) {
-                events.add(event);
-            }
-        }
-
-        private void reset() {
-            aggregatedEventType = null;
-            completedEventType = null;
-            aggregationPredicate = null;
-            completionPredicate = null;
-            events.clear();
-        }
-
-        private boolean isCompletionEvent(BlueGigaResponse event) {
-            return completedEventType != null && completedEventType.isInstance(event)
-                && completionPredicate.test((C) event);
-        }
-
-        private boolean isAggregatedEvent(BlueGigaResponse event) {
-            return aggregatedEventType != null && aggregatedEventType.isInstance(event)
-                && aggregationPredicate.test((A) event);
-        }
-
-    }
-
 }
@@ -0,0 +1,130 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * A procedure lane of a single connection. Procedures submitted to a lane are executed one by one in the order
+ * they were submitted, while lanes of different connections are fully independent from each other.
+ */
+class BluegigaLane {
+
+    private final int connectionHandle;
+    private final Executor executor;
+    private final Queue<BluegigaProcedure<?, ?>> procedures = new ConcurrentLinkedQueue<>();
+    private CompletableFuture<?> tail;
+
+    BluegigaLane(int connectionHandle, Executor executor) {
+        this.connectionHandle = connectionHandle;
+        this.executor = executor;
+    }
+
+    int getConnectionHandle() {
+        return connectionHandle;
+    }
+
+    /**
+     * Submits a task so that it is executed after all previously submitted tasks of this lane have completed.
+     * If the lane is idle, the task is executed straight away in the calling thread.
+     * @param task a task that returns a future which is completed when the task is done
+     * @return a future which is completed with the result of the task
+     */
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        CompletableFuture<?> previous;
+        synchronized (this) {
+            previous = tail;
+            tail = finished;
+        }
+        Runnable runnable = () -> run(task, result, finished);
+        if (previous == null || previous.isDone()) {
+            runnable.run();
+        } else {
+            previous.whenComplete((value, error) -> {
+                try {
+                    executor.execute(runnable);
+                } catch (RejectedExecutionException ex) {
+                    finished.complete(null);
+                    result.completeExceptionally(new BluegigaException("Bluegiga handler is disposed", ex));
+                }
+            });
+        }
+        return result;
+    }
+
+    void register(BluegigaProcedure<?, ?> procedure) {
+        procedures.add(procedure);
+        procedure.getCompletion().whenComplete((event, error) -> procedures.remove(procedure));
+    }
+
+    /**
+     * Offers an event to the procedures of this lane.
+     * @param event an event received from the adapter
+     * @return true if the event has been consumed by one of the procedures
+     */
+    boolean handleEvent(BlueGigaResponse event) {
+        for (BluegigaProcedure<?, ?> procedure : procedures) {
+            if (procedure.handleEvent(event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fails all procedures that are currently in flight in this lane.
+     * @param error a reason
+     */
+    void fail(Throwable error) {
+        procedures.forEach(procedure -> procedure.fail(error));
+    }
+
+    private static <T> void run(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result,
+                                CompletableFuture<Void> finished) {
+        CompletableFuture<T> future;
+        try {
+            future = task.get();
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete((value, error) -> {
+            finished.complete(null);
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            } else {
+                result.complete(value);
+            }
+        });
+    }
+
+}
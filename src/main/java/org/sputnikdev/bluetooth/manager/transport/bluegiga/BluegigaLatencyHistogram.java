@@ -0,0 +1,104 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * A compact latency histogram with logarithmic buckets (each bucket is 20% wider than the previous one).
+ * When the number of samples reaches the configured limit, all counts are halved, so that the histogram
+ * follows changes in latency over time.
+ */
+class BluegigaLatencyHistogram {
+
+    private static final long MAX_LATENCY = 120000;
+    private static final long[] BOUNDS = createBounds();
+
+    private final long[] counts = new long[BOUNDS.length];
+    private final long maxSamples;
+    private long total;
+
+    BluegigaLatencyHistogram(long maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Records a latency sample.
+     * @param latency latency in milliseconds
+     */
+    synchronized void record(long latency) {
+        counts[getBucket(latency)]++;
+        total++;
+        if (total >= maxSamples) {
+            total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] /= 2;
+                total += counts[i];
+            }
+        }
+    }
+
+    synchronized long getCount() {
+        return total;
+    }
+
+    /**
+     * Returns an estimation (upper bound of the corresponding bucket) of the given percentile.
+     * @param percentile percentile, e.g. 0.99
+     * @return latency in milliseconds or -1 if there are no samples
+     */
+    synchronized long getPercentile(double percentile) {
+        if (total == 0) {
+            return -1;
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= threshold) {
+                return BOUNDS[i];
+            }
+        }
+        return BOUNDS[BOUNDS.length - 1];
+    }
+
+    private static int getBucket(long latency) {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (latency <= BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BOUNDS.length - 1;
+    }
+
+    private static long[] createBounds() {
+        int size = 0;
+        for (double bound = 1; bound < MAX_LATENCY; bound = Math.max(bound + 1, bound * 1.2)) {
+            size++;
+        }
+        long[] bounds = new long[size + 1];
+        int index = 0;
+        for (double bound = 1; bound < MAX_LATENCY; bound = Math.max(bound + 1, bound * 1.2)) {
+            bounds[index++] = (long) Math.ceil(bound);
+        }
+        bounds[size] = MAX_LATENCY;
+        return bounds;
+    }
+
+}
@@ -0,0 +1,142 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Traffic driven liveness tracker of a Bluegiga adapter. Any frame received from the adapter is treated as
+ * a heartbeat, an explicit heartbeat (e.g. Hello command) is sent in background only if there has not been any
+ * traffic for a configured idle period. The liveness state is cached and can be checked without blocking.
+ */
+class BluegigaLivenessTracker {
+
+    static final long DEFAULT_IDLE_TIME = 5000;
+    private static final long CHECK_INTERVAL = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(BluegigaLivenessTracker.class);
+
+    private final BooleanSupplier heartbeat;
+    private final AtomicBoolean heartbeatInProgress = new AtomicBoolean();
+    private volatile long idleTime = DEFAULT_IDLE_TIME;
+    private volatile long lastActivity;
+    private volatile boolean alive;
+    private ScheduledFuture<?> checkTask;
+
+    /**
+     * Creates a new tracker.
+     * @param heartbeat a heartbeat procedure, returns true if the adapter has responded
+     */
+    BluegigaLivenessTracker(BooleanSupplier heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Registers some traffic from the adapter.
+     */
+    void activity() {
+        lastActivity = System.currentTimeMillis();
+        alive = true;
+    }
+
+    /**
+     * Registers a communication failure.
+     */
+    void failed() {
+        alive = false;
+    }
+
+    boolean isAlive() {
+        return alive;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    long getIdleTime() {
+        return idleTime;
+    }
+
+    void setIdleTime(long idleTime) {
+        this.idleTime = idleTime;
+    }
+
+    /**
+     * Starts checking the adapter in background.
+     * @param scheduler a scheduler to check for idle periods
+     * @param executor an executor to run heartbeats
+     */
+    synchronized void start(ScheduledExecutorService scheduler, Executor executor) {
+        if (checkTask == null) {
+            checkTask = scheduler.scheduleWithFixedDelay(() -> {
+                if (isIdle() && !heartbeatInProgress.get()) {
+                    try {
+                        executor.execute(this::check);
+                    } catch (RejectedExecutionException ignore) { /* disposed */ }
+                }
+            }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (checkTask != null) {
+            checkTask.cancel(false);
+            checkTask = null;
+        }
+    }
+
+    /**
+     * Sends a heartbeat if there has not been any traffic for the idle period.
+     */
+    void check() {
+        if (!isIdle() || !heartbeatInProgress.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            logger.debug("No traffic for {} ms, sending heartbeat", System.currentTimeMillis() - lastActivity);
+            if (heartbeat.getAsBoolean()) {
+                activity();
+            } else {
+                failed();
+            }
+        } catch (Exception ex) {
+            logger.warn("Error occurred while sending heartbeat: {}", ex.getMessage());
+            failed();
+        } finally {
+            heartbeatInProgress.set(false);
+        }
+    }
+
+    private boolean isIdle() {
+        return System.currentTimeMillis() - lastActivity >= idleTime;
+    }
+
+}
@@ -0,0 +1,207 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A Bluegiga procedure that is in flight, i.e. a command that has been (or is about to be) sent to the adapter
+ * and is waiting for its events. Aggregated events are collected (or passed to a consumer as they arrive) until
+ * the completion event is received, then the completion future is completed.
+ */
+class BluegigaProcedure<A extends BlueGigaResponse, C extends BlueGigaResponse> {
+
+    private final BluegigaTimeouts.Type type;
+    private final Class<A> aggregatedEventType;
+    private final Predicate<A> aggregationPredicate;
+    private final Class<C> completedEventType;
+    private final Predicate<C> completionPredicate;
+    private final List<A> events = Collections.synchronizedList(new ArrayList<>());
+    // if set, aggregated events are streamed to the consumer instead of being collected
+    private final Consumer<A> eventConsumer;
+    private final CompletableFuture<C> completion = new CompletableFuture<>();
+    // completion events received before the procedure has started belong to a previous (abandoned) attempt
+    private boolean ignoreEarlyCompletion;
+    private volatile boolean started;
+    private volatile long lastActivity = System.currentTimeMillis();
+    // the longest period of time between expected events
+    private volatile long maxLatency;
+
+    BluegigaProcedure(BluegigaTimeouts.Type type, Class<C> completedEventType, Predicate<C> completionPredicate) {
+        this(type, null, null, completedEventType, completionPredicate);
+    }
+
+    BluegigaProcedure(BluegigaTimeouts.Type type, Class<A> aggregatedEventType, Predicate<A> aggregationPredicate,
+                      Class<C> completedEventType, Predicate<C> completionPredicate) {
+        this(type, aggregatedEventType, aggregationPredicate, completedEventType, completionPredicate, null);
+    }
+
+    BluegigaProcedure(BluegigaTimeouts.Type type, Class<A> aggregatedEventType, Predicate<A> aggregationPredicate,
+                      Class<C> completedEventType, Predicate<C> completionPredicate, Consumer<A> eventConsumer) {
+        this.type = type;
+        this.aggregatedEventType = aggregatedEventType;
+        this.aggregationPredicate = aggregationPredicate;
+        this.completedEventType = completedEventType;
+        this.completionPredicate = completionPredicate;
+        this.eventConsumer = eventConsumer;
+    }
+
+    /**
+     * Offers an event to the procedure.
+     * @param event an event received from the adapter
+     * @return true if the event has been consumed by the procedure
+     */
+    boolean handleEvent(BlueGigaResponse event) {
+        if (completion.isDone()) {
+            return false;
+        }
+        C completed = asCompletionEvent(event);
+        if (completed != null) {
+            if (ignoreEarlyCompletion && !started) {
+                return true;
+            }
+            touch();
+            completion.complete(completed);
+            return true;
+        }
+        A aggregated = asAggregatedEvent(event);
+        if (aggregated != null) {
+            touch();
+            if (eventConsumer == null) {
+                events.add(aggregated);
+                return true;
+            }
+            try {
+                eventConsumer.accept(aggregated);
+            } catch (RuntimeException ex) {
+                completion.completeExceptionally(ex);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the procedure as started, i.e. the initial command has been sent and the adapter is expected
+     * to send events.
+     */
+    void started() {
+        lastActivity = System.currentTimeMillis();
+        started = true;
+    }
+
+    /**
+     * Makes the procedure swallow completion events received before it has started. The adapter sends
+     * the completion event of a procedure only after it has responded to the initial command, so such events
+     * are late completions of a previous attempt of the same procedure which has been abandoned (timed out).
+     * Must be called before the procedure is registered.
+     * @return this procedure
+     */
+    BluegigaProcedure<A, C> ignoreEarlyCompletion() {
+        ignoreEarlyCompletion = true;
+        return this;
+    }
+
+    /**
+     * Fails the procedure if it has not received any events within the given timeout.
+     * @param timeout a timeout in milliseconds
+     * @return time in milliseconds left before the procedure expires, or 0 if it has been completed or expired
+     */
+    long expire(long timeout) {
+        if (completion.isDone()) {
+            return 0;
+        }
+        long idle = System.currentTimeMillis() - lastActivity;
+        if (idle >= timeout) {
+            completion.completeExceptionally(new BluegigaTimeoutException("Could not receive expected event: "
+                    + getName()));
+            return 0;
+        }
+        return timeout - idle;
+    }
+
+    void fail(Throwable error) {
+        completion.completeExceptionally(error);
+    }
+
+    BluegigaTimeouts.Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the longest period of time between expected events (or between the initial command and the first
+     * event) of the procedure.
+     * @return latency in milliseconds
+     */
+    long getMaxLatency() {
+        return maxLatency;
+    }
+
+    boolean isDone() {
+        return completion.isDone();
+    }
+
+    CompletableFuture<C> getCompletion() {
+        return completion;
+    }
+
+    List<A> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    String getName() {
+        return aggregatedEventType != null
+                ? aggregatedEventType.getSimpleName() + " / " + completedEventType.getSimpleName()
+                : completedEventType.getSimpleName();
+    }
+
+    private void touch() {
+        long now = System.currentTimeMillis();
+        maxLatency = Math.max(maxLatency, now - lastActivity);
+        lastActivity = now;
+    }
+
+    private C asCompletionEvent(BlueGigaResponse event) {
+        if (completedEventType.isInstance(event)) {
+            C completed = completedEventType.cast(event);
+            return completionPredicate.test(completed) ? completed : null;
+        }
+        return null;
+    }
+
+    private A asAggregatedEvent(BlueGigaResponse event) {
+        if (aggregatedEventType != null && aggregatedEventType.isInstance(event)) {
+            A aggregated = aggregatedEventType.cast(event);
+            return aggregationPredicate.test(aggregated) ? aggregated : null;
+        }
+        return null;
+    }
+
+}
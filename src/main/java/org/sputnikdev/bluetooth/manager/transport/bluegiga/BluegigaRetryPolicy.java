@@ -0,0 +1,104 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy with exponential backoff and jitter. A delay before a retry is calculated as
+ * {@code min(maxDelay, initialDelay * 2^(attempt - 1))} and then randomly reduced by up to the jitter factor,
+ * so that retries of many procedures do not happen at the same time.
+ */
+class BluegigaRetryPolicy {
+
+    static final int DEFAULT_MAX_ATTEMPTS = 12;
+    static final long DEFAULT_INITIAL_DELAY = 100;
+    static final long DEFAULT_MAX_DELAY = 1000;
+    static final double DEFAULT_JITTER = 0.2;
+    private static final int MULTIPLIER = 2;
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double jitter;
+
+    BluegigaRetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_JITTER);
+    }
+
+    /**
+     * Creates a new retry policy.
+     * @param maxAttempts maximum number of attempts (including the first one)
+     * @param initialDelay delay before the first retry in milliseconds
+     * @param maxDelay maximum delay between retries in milliseconds
+     * @param jitter a fraction of a delay (0..1) that is randomly subtracted from the delay
+     */
+    BluegigaRetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double jitter) {
+        if (maxAttempts < 1 || initialDelay < 0 || maxDelay < initialDelay || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Invalid retry policy: " + maxAttempts + " / " + initialDelay
+                    + " / " + maxDelay + " / " + jitter);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Checks whether another attempt can be made.
+     * @param attempts number of attempts made so far
+     * @return true if another attempt is allowed
+     */
+    boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    /**
+     * Returns a delay before the next attempt.
+     * @param attempts number of attempts made so far
+     * @return delay in milliseconds
+     */
+    long getDelay(int attempts) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempts && delay < maxDelay; i++) {
+            delay *= MULTIPLIER;
+        }
+        delay = Math.min(delay, maxDelay);
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    long getInitialDelay() {
+        return initialDelay;
+    }
+
+    long getMaxDelay() {
+        return maxDelay;
+    }
+
+    double getJitter() {
+        return jitter;
+    }
+
+}
@@ -0,0 +1,213 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.function.Supplier;
+
+/**
+ * A filter which smooths noisy RSSI values reported by a device in its scan responses.
+ * Each device has its own filter instance, a filter keeps its state in primitive fields or arrays,
+ * so that updating it does not allocate. Values of a device must be added sequentially.
+ */
+abstract class BluegigaRssiFilter {
+
+    /**
+     * Adds a new value to the filter.
+     * @param rssi raw RSSI
+     * @return filtered RSSI
+     */
+    abstract short update(short rssi);
+
+    /**
+     * Resets the filter, e.g. when a device has not been seen for a long time.
+     */
+    abstract void reset();
+
+    /**
+     * Parses a filter definition in the following format: "type:parameter[:parameter]", where type is one of:
+     * <ul>
+     *     <li>ema - exponential moving average with a smoothing factor in (0..1], e.g. "ema:0.3"</li>
+     *     <li>median - median of the last N values, e.g. "median:5"</li>
+     *     <li>kalman - one dimensional Kalman filter with process and measurement noise,
+     *     e.g. "kalman:0.05:4"</li>
+     * </ul>
+     * @param filter filter definition
+     * @return a factory of filters, each device gets its own instance
+     * @throws IllegalArgumentException if the definition is not valid
+     */
+    static Supplier<BluegigaRssiFilter> parse(String filter) {
+        String[] parts = filter.trim().split(":");
+        // filters are created once here to validate their parameters
+        try {
+            switch (parts[0].trim().toLowerCase()) {
+                case "ema":
+                    if (parts.length == 2) {
+                        double alpha = Double.parseDouble(parts[1].trim());
+                        new Ema(alpha);
+                        return () -> new Ema(alpha);
+                    }
+                    break;
+                case "median":
+                    if (parts.length == 2) {
+                        int size = Integer.parseInt(parts[1].trim());
+                        new Median(size);
+                        return () -> new Median(size);
+                    }
+                    break;
+                case "kalman":
+                    if (parts.length == 3) {
+                        double processNoise = Double.parseDouble(parts[1].trim());
+                        double measurementNoise = Double.parseDouble(parts[2].trim());
+                        new Kalman(processNoise, measurementNoise);
+                        return () -> new Kalman(processNoise, measurementNoise);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("RSSI filter is not valid: " + filter, ex);
+        }
+        throw new IllegalArgumentException("RSSI filter is not valid: " + filter);
+    }
+
+    private static short round(double value) {
+        return (short) Math.round(value);
+    }
+
+    /**
+     * Exponential moving average.
+     */
+    static final class Ema extends BluegigaRssiFilter {
+
+        private final double alpha;
+        private double value;
+        private boolean initialized;
+
+        Ema(double alpha) {
+            if (!(alpha > 0 && alpha <= 1)) {
+                throw new IllegalArgumentException("Smoothing factor must be in (0..1]: " + alpha);
+            }
+            this.alpha = alpha;
+        }
+
+        @Override
+        short update(short rssi) {
+            value = initialized ? value + alpha * (rssi - value) : rssi;
+            initialized = true;
+            return round(value);
+        }
+
+        @Override
+        void reset() {
+            initialized = false;
+        }
+    }
+
+    /**
+     * Median of the last N values, good at removing spikes.
+     */
+    static final class Median extends BluegigaRssiFilter {
+
+        private static final int MAX_SIZE = 64;
+
+        private final short[] window;
+        private final short[] sorted;
+        private int next;
+        private int count;
+
+        Median(int size) {
+            if (size < 1 || size > MAX_SIZE) {
+                throw new IllegalArgumentException("Window size must be in [1.." + MAX_SIZE + "]: " + size);
+            }
+            window = new short[size];
+            sorted = new short[size];
+        }
+
+        @Override
+        short update(short rssi) {
+            window[next] = rssi;
+            next = (next + 1) % window.length;
+            if (count < window.length) {
+                count++;
+            }
+            // insertion sort of the current window into the scratch array
+            for (int i = 0; i < count; i++) {
+                short value = window[i];
+                int position = i;
+                while (position > 0 && sorted[position - 1] > value) {
+                    sorted[position] = sorted[position - 1];
+                    position--;
+                }
+                sorted[position] = value;
+            }
+            int middle = count / 2;
+            return count % 2 == 1 ? sorted[middle] : round((sorted[middle - 1] + sorted[middle]) / 2.0);
+        }
+
+        @Override
+        void reset() {
+            next = 0;
+            count = 0;
+        }
+    }
+
+    /**
+     * One dimensional Kalman filter for a (nearly) constant signal.
+     */
+    static final class Kalman extends BluegigaRssiFilter {
+
+        private final double processNoise;
+        private final double measurementNoise;
+        private double estimate;
+        private double covariance;
+        private boolean initialized;
+
+        Kalman(double processNoise, double measurementNoise) {
+            if (!(processNoise >= 0) || !(measurementNoise > 0)) {
+                throw new IllegalArgumentException("Invalid noise: " + processNoise + " / " + measurementNoise);
+            }
+            this.processNoise = processNoise;
+            this.measurementNoise = measurementNoise;
+        }
+
+        @Override
+        short update(short rssi) {
+            if (!initialized) {
+                estimate = rssi;
+                covariance = measurementNoise;
+                initialized = true;
+            } else {
+                double predicted = covariance + processNoise;
+                double gain = predicted / (predicted + measurementNoise);
+                estimate += gain * (rssi - estimate);
+                covariance = (1 - gain) * predicted;
+            }
+            return round(estimate);
+        }
+
+        @Override
+        void reset() {
+            initialized = false;
+        }
+    }
+
+}
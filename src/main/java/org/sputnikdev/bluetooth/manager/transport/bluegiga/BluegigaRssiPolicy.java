@@ -0,0 +1,139 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * A policy which decides whether a device RSSI notification should be fired for a received scan response.
+ * Busy devices report their RSSI many times a second, the policy suppresses notifications by:
+ * <ul>
+ *     <li>minimum delta - RSSI must differ from the last notified value by at least this number of dBm</li>
+ *     <li>minimum interval - notifications of a device are fired not more often than once per this interval</li>
+ *     <li>summary period - instead of individual values, an average of all values received within the period
+ *     is notified once per period (minimum delta and minimum interval are not applied in this mode)</li>
+ * </ul>
+ * The policy is immutable and shared between devices, the state of a device is kept in a {@link Tracker}.
+ */
+class BluegigaRssiPolicy {
+
+    /**
+     * A policy which notifies every received value.
+     */
+    static final BluegigaRssiPolicy ALL = new BluegigaRssiPolicy(0, 0, 0);
+
+    private final int minDelta;
+    private final long minInterval;
+    private final long summaryPeriod;
+
+    /**
+     * Creates a new RSSI notification policy.
+     * @param minDelta minimum change of RSSI in dBm, 0 to disable
+     * @param minInterval minimum interval between notifications in milliseconds, 0 to disable
+     * @param summaryPeriod period of averaged notifications in milliseconds, 0 to disable
+     */
+    BluegigaRssiPolicy(int minDelta, long minInterval, long summaryPeriod) {
+        if (minDelta < 0 || minInterval < 0 || summaryPeriod < 0) {
+            throw new IllegalArgumentException("Invalid RSSI policy: " + minDelta + " / " + minInterval
+                    + " / " + summaryPeriod);
+        }
+        this.minDelta = minDelta;
+        this.minInterval = minInterval;
+        this.summaryPeriod = summaryPeriod;
+    }
+
+    int getMinDelta() {
+        return minDelta;
+    }
+
+    long getMinInterval() {
+        return minInterval;
+    }
+
+    long getSummaryPeriod() {
+        return summaryPeriod;
+    }
+
+    /**
+     * Per device state of the policy. It keeps only primitive values, so that evaluating a value does not allocate.
+     * Values of a device must be offered sequentially.
+     */
+    static final class Tracker {
+
+        private boolean notified;
+        private short lastValue;
+        private long lastTime;
+        private long sum;
+        private int count;
+        private short value;
+
+        /**
+         * Offers a received value.
+         * @param policy policy
+         * @param rssi received value
+         * @param now current time in milliseconds
+         * @return true if a notification should be fired with the {@link #getValue() value}
+         */
+        boolean offer(BluegigaRssiPolicy policy, short rssi, long now) {
+            if (policy.summaryPeriod > 0) {
+                if (count == 0 && !notified) {
+                    // the period starts with the first received value
+                    lastTime = now;
+                    notified = true;
+                }
+                sum += rssi;
+                count++;
+                if (now - lastTime < policy.summaryPeriod) {
+                    return false;
+                }
+                value = (short) Math.round((double) sum / count);
+                sum = 0;
+                count = 0;
+            } else {
+                if (notified && (Math.abs(rssi - lastValue) < policy.minDelta
+                        || now - lastTime < policy.minInterval)) {
+                    return false;
+                }
+                value = rssi;
+            }
+            notified = true;
+            lastValue = value;
+            lastTime = now;
+            return true;
+        }
+
+        /**
+         * Returns the value to be notified.
+         * @return RSSI
+         */
+        short getValue() {
+            return value;
+        }
+
+        /**
+         * Resets the state, the next offered value gets notified (or starts a new summary period).
+         */
+        void reset() {
+            notified = false;
+            sum = 0;
+            count = 0;
+        }
+    }
+
+}
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 
 /**
@@ -40,6 +41,8 @@ class BluegigaService implements Service {
     private final int handleStart;
     private final int handleEnd;
     private final Map<URL, BluegigaCharacteristic> characteristics = new HashMap<>();
+    // discovers characteristics of the service on demand (lazy discovery), null if already discovered
+    private volatile Consumer<BluegigaService> resolver;
 
     BluegigaService(URL url, int handleStart, int handleEnd) {
         this.url = url;
@@ -49,7 +52,8 @@ class BluegigaService implements Service {
 
     @Override
     public List<Characteristic> getCharacteristics() {
-        return new ArrayList<>(characteristics.values());
+        resolve();
+        return getDiscoveredCharacteristics();
     }
 
     @Override
@@ -64,12 +68,33 @@ class BluegigaService implements Service {
     }
 
     protected BluegigaCharacteristic getCharacteristic(URL url) {
+        resolve();
+        return getDiscoveredCharacteristic(url);
+    }
+
+    /**
+     * Returns characteristics that have been discovered so far without triggering lazy discovery.
+     * @return discovered characteristics
+     */
+    protected List<Characteristic> getDiscoveredCharacteristics() {
+        synchronized (characteristics) {
+            return new ArrayList<>(characteristics.values());
+        }
+    }
+
+    /**
+     * Returns a characteristic if it has been discovered so far without triggering lazy discovery.
+     * @param url characteristic URL
+     * @return discovered characteristic or null
+     */
+    protected BluegigaCharacteristic getDiscoveredCharacteristic(URL url) {
         synchronized (characteristics) {
             return characteristics.get(url.getCharacteristicURL());
         }
     }
 
     protected BluegigaCharacteristic findCharacteristicByShortUUID(String shortUUID) {
+        resolve();
         synchronized (characteristics) {
             return characteristics.values().stream()
                     .filter(characteristic -> match(characteristic, shortUUID))
@@ -77,6 +102,18 @@ class BluegigaService implements Service {
         }
     }
 
+    /**
+     * Sets a resolver that discovers characteristics of the service the first time they are requested.
+     * @param resolver characteristics resolver
+     */
+    protected void setResolver(Consumer<BluegigaService> resolver) {
+        this.resolver = resolver;
+    }
+
+    protected boolean isResolved() {
+        return resolver == null;
+    }
+
     protected int getHandleStart() {
         return handleStart;
     }
@@ -85,6 +122,18 @@ class BluegigaService implements Service {
         return handleEnd;
     }
 
+    private void resolve() {
+        if (resolver != null) {
+            synchronized (this) {
+                Consumer<BluegigaService> current = resolver;
+                if (current != null) {
+                    current.accept(this);
+                    resolver = null;
+                }
+            }
+        }
+    }
+
     private static boolean match(BluegigaCharacteristic characteristic, String shortUUID) {
         return characteristic.getURL().getCharacteristicUUID().substring(0, 8).contains(shortUUID.toLowerCase());
     }
@@ -0,0 +1,100 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Adaptive procedure timeouts. Latencies of procedures (time between expected events) are collected into
+ * a histogram per procedure type, then a timeout for a procedure is derived from an observed percentile
+ * multiplied by a safety factor and limited by a floor and a ceiling. Until enough samples are collected,
+ * the ceiling is used.
+ */
+class BluegigaTimeouts {
+
+    static final long DEFAULT_FLOOR = 500;
+    private static final double PERCENTILE = 0.99;
+    private static final int MULTIPLIER = 3;
+    private static final int MIN_SAMPLES = 10;
+    private static final int MAX_SAMPLES = 1000;
+
+    private final Map<Type, BluegigaLatencyHistogram> histograms = new EnumMap<>(Type.class);
+    private volatile long floor = DEFAULT_FLOOR;
+
+    /**
+     * Procedure types.
+     */
+    enum Type {
+        CONNECT,
+        DISCONNECT,
+        STATUS,
+        READ,
+        WRITE,
+        GROUP_DISCOVERY,
+        FIND_INFORMATION,
+        DECLARATIONS
+    }
+
+    BluegigaTimeouts() {
+        for (Type type : Type.values()) {
+            histograms.put(type, new BluegigaLatencyHistogram(MAX_SAMPLES));
+        }
+    }
+
+    void setFloor(long floor) {
+        this.floor = floor;
+    }
+
+    long getFloor() {
+        return floor;
+    }
+
+    /**
+     * Records latency of a procedure. Timed out procedures should be recorded with their timeout, so that
+     * the timeout grows if the latency increases.
+     * @param type procedure type
+     * @param latency latency in milliseconds
+     */
+    void record(Type type, long latency) {
+        histograms.get(type).record(latency);
+    }
+
+    /**
+     * Returns a timeout for the given procedure type.
+     * @param type procedure type
+     * @param ceiling maximum timeout
+     * @return timeout in milliseconds
+     */
+    long getTimeout(Type type, long ceiling) {
+        BluegigaLatencyHistogram histogram = histograms.get(type);
+        if (histogram.getCount() < MIN_SAMPLES) {
+            return ceiling;
+        }
+        long timeout = histogram.getPercentile(PERCENTILE) * MULTIPLIER;
+        return Math.min(ceiling, Math.max(floor, timeout));
+    }
+
+    long getPercentile(Type type, double percentile) {
+        return histograms.get(type).getPercentile(percentile);
+    }
+
+}
@@ -21,8 +21,17 @@ package org.sputnikdev.bluetooth.manager.transport.bluegiga;
  */
 
 import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationFoundEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaGroupFoundEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaProcedureCompletedEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadMultipleResponseEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectedEvent;
 
 import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility methods to work with Bluegiga specific logic.
@@ -31,6 +40,11 @@ import java.util.UUID;
  */
 final class BluegigaUtils {
 
+    static final int NO_CONNECTION = -1;
+
+    private static final int SHORT_UUID_LENGTH = 4;
+    private static final String BASE_UUID = "-0000-1000-8000-00805f9b34fb";
+
     private BluegigaUtils() { }
 
     public static byte[] fromInts(int[] data) {
@@ -88,4 +102,59 @@ final class BluegigaUtils {
         return new UUID(high, low);
     }
 
+    /**
+     * Converts a 16, 32 or 128 bit UUID string (e.g. "180f", "0000180f" or a full UUID) into
+     * a full (128 bit) lower case UUID string.
+     * @param uuid UUID string
+     * @return full UUID string
+     * @throws IllegalArgumentException if the UUID is not valid
+     */
+    public static String getFullUUID(String uuid) {
+        String fullUUID = uuid.trim();
+        if (fullUUID.length() == SHORT_UUID_LENGTH) {
+            fullUUID = "0000" + fullUUID + BASE_UUID;
+        } else if (fullUUID.length() == SHORT_UUID_LENGTH * 2) {
+            fullUUID = fullUUID + BASE_UUID;
+        }
+        return UUID.fromString(fullUUID).toString();
+    }
+
+    /**
+     * Creates a thread factory that produces daemon threads named after the given prefix.
+     * @param prefix thread name prefix
+     * @return thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Returns connection handle of an event.
+     * @param event bluegiga event
+     * @return connection handle or {@link #NO_CONNECTION} if the event is not bound to any connection
+     */
+    public static int getConnectionHandle(BlueGigaResponse event) {
+        if (event instanceof BlueGigaAttributeValueEvent) {
+            return ((BlueGigaAttributeValueEvent) event).getConnection();
+        } else if (event instanceof BlueGigaProcedureCompletedEvent) {
+            return ((BlueGigaProcedureCompletedEvent) event).getConnection();
+        } else if (event instanceof BlueGigaGroupFoundEvent) {
+            return ((BlueGigaGroupFoundEvent) event).getConnection();
+        } else if (event instanceof BlueGigaFindInformationFoundEvent) {
+            return ((BlueGigaFindInformationFoundEvent) event).getConnection();
+        } else if (event instanceof BlueGigaReadMultipleResponseEvent) {
+            return ((BlueGigaReadMultipleResponseEvent) event).getConnection();
+        } else if (event instanceof BlueGigaConnectionStatusEvent) {
+            return ((BlueGigaConnectionStatusEvent) event).getConnection();
+        } else if (event instanceof BlueGigaDisconnectedEvent) {
+            return ((BlueGigaDisconnectedEvent) event).getConnection();
+        }
+        return NO_CONNECTION;
+    }
+
 }
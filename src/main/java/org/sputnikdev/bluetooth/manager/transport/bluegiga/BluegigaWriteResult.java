@@ -0,0 +1,70 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaProcedureCompletedEvent;
+
+/**
+ * A result of a write procedure which might have been retried.
+ */
+class BluegigaWriteResult {
+
+    private final BlueGigaProcedureCompletedEvent event;
+    private final int attempts;
+    private final long latency;
+
+    BluegigaWriteResult(BlueGigaProcedureCompletedEvent event, int attempts, long latency) {
+        this.event = event;
+        this.attempts = attempts;
+        this.latency = latency;
+    }
+
+    /**
+     * Returns the procedure completed event of the last attempt.
+     * @return procedure completed event
+     */
+    BlueGigaProcedureCompletedEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Returns the number of attempts made (1 if the write has not been retried).
+     * @return number of attempts
+     */
+    int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the total time (including delays between retries) of the write procedure.
+     * @return latency in milliseconds
+     */
+    long getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "BluegigaWriteResult{result=" + event.getResult() + ", attempts=" + attempts
+                + ", latency=" + latency + '}';
+    }
+
+}
@@ -0,0 +1,215 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-bluegiga
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.zsmartsystems.bluetooth.bluegiga.enumeration.BgApiResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Streams a payload to a characteristic by using "write without response" (write command) packets.
+ * The payload is split into chunks of ATT payload size, the chunks are sent back to back as long as the dongle
+ * accepts them (each command is responded as soon as the packet is queued in the dongle buffers).
+ * When the dongle runs out of buffers (BUFFERS_FULL response), the stream backs off and resends
+ * the same chunk later. Throughput (bytes per second) is available while streaming and once finished.
+ *
+ * <p>Packets are pipelined in the dongle buffers (several packets can wait there for transmission), but not on
+ * the serial link: BGAPI hosts must wait for a command response before sending the next command, and the serial
+ * handler matches responses to pending transactions by their type only, so a few write commands cannot be
+ * outstanding at the same time. Throughput is therefore bounded by the serial round trip of a write command,
+ * the same as writing packets one by one, the stream saves per packet scheduling on the connection lane and
+ * deals with BUFFERS_FULL responses.
+ */
+public class BluegigaWriteStream {
+
+    // default ATT MTU (23) minus the write command header (3)
+    static final int DEFAULT_CHUNK_SIZE = 20;
+    static final long MIN_BACKOFF = 5;
+    static final long MAX_BACKOFF = 200;
+
+    private final Logger logger = LoggerFactory.getLogger(BluegigaWriteStream.class);
+
+    private final InputStream input;
+    private final int chunkSize;
+    private final Function<int[], BgApiResponse> writer;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final CompletableFuture<BluegigaWriteStream> completion = new CompletableFuture<>();
+
+    private int[] pending;
+    private long backoff = MIN_BACKOFF;
+    private volatile long started;
+    private volatile long finished;
+    private volatile long bytesWritten;
+    private volatile int packets;
+    private volatile int buffersFull;
+
+    /**
+     * Creates a new stream.
+     * @param input payload
+     * @param chunkSize maximum number of bytes in a packet
+     * @param writer a function that sends a packet and returns the response of the dongle
+     * @param scheduler a scheduler that is used to wait for dongle buffers
+     * @param executor an executor that is used to continue streaming after waiting for dongle buffers
+     */
+    BluegigaWriteStream(InputStream input, int chunkSize, Function<int[], BgApiResponse> writer,
+                        ScheduledExecutorService scheduler, Executor executor) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.input = input;
+        this.chunkSize = chunkSize;
+        this.writer = writer;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts streaming in the calling thread.
+     * @return a future which is completed with this stream when the whole payload is written
+     */
+    CompletableFuture<BluegigaWriteStream> start() {
+        started = System.currentTimeMillis();
+        write();
+        return completion;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getPackets() {
+        return packets;
+    }
+
+    /**
+     * Returns how many times the dongle has responded that its buffers are full.
+     * @return number of BUFFERS_FULL responses
+     */
+    public int getBuffersFull() {
+        return buffersFull;
+    }
+
+    /**
+     * Returns the duration of streaming so far (or the total duration if streaming has finished).
+     * @return duration in milliseconds
+     */
+    public long getDuration() {
+        if (started == 0) {
+            return 0;
+        }
+        return (finished != 0 ? finished : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * Returns throughput of the stream.
+     * @return number of bytes per second
+     */
+    public double getBytesPerSecond() {
+        long duration = getDuration();
+        return duration > 0 ? bytesWritten * 1000.0 / duration : bytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        return "BluegigaWriteStream{bytes=" + bytesWritten + ", packets=" + packets + ", buffersFull=" + buffersFull
+                + ", duration=" + getDuration() + ", bytesPerSecond=" + getBytesPerSecond() + '}';
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                if (pending == null) {
+                    pending = nextChunk();
+                    if (pending == null) {
+                        finished = System.currentTimeMillis();
+                        logger.debug("Stream has been written: {}", this);
+                        completion.complete(this);
+                        return;
+                    }
+                }
+                BgApiResponse response = writer.apply(pending);
+                if (response == BgApiResponse.SUCCESS) {
+                    bytesWritten += pending.length;
+                    packets++;
+                    pending = null;
+                    backoff = MIN_BACKOFF;
+                } else if (response == BgApiResponse.BUFFERS_FULL) {
+                    buffersFull++;
+                    logger.trace("Dongle buffers are full, waiting for {} ms", backoff);
+                    scheduler.schedule(this::resume, backoff, TimeUnit.MILLISECONDS);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                    return;
+                } else {
+                    fail(new BluegigaProcedureException("Could not write stream: " + response, response));
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            fail(new BluegigaException("Could not read stream", ex));
+        } catch (RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    private void resume() {
+        try {
+            executor.execute(this::write);
+        } catch (RejectedExecutionException ex) {
+            fail(new BluegigaException("Bluegiga handler is disposed", ex));
+        }
+    }
+
+    private void fail(Throwable error) {
+        finished = System.currentTimeMillis();
+        completion.completeExceptionally(error);
+    }
+
+    private int[] nextChunk() throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        int length = 0;
+        while (length < chunkSize) {
+            int read = input.read(buffer, length, chunkSize - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        if (length == 0) {
+            return null;
+        }
+        int[] chunk = new int[length];
+        for (int i = 0; i < length; i++) {
+            chunk[i] = buffer[i] & 0xFF;
+        }
+        return chunk;
+    }
+
+}
@@ -239,6 +239,20 @@ public class BluegigaAdapterTest {
         assertNull(newDevice);
     }
 
+    @Test
+    public void testCreateDeviceRssiFilter() throws Exception {
+        URL deviceURL = ADAPTER_URL.copyWithDevice("11:22:33:44:55:66");
+        assertNull(Whitebox.getInternalState(bluegigaAdapter.createDevice(deviceURL), "rssiFilter"));
+
+        when(bluegigaHandler.getRssiFilterFactory()).thenReturn(() -> new BluegigaRssiFilter.Ema(0.5));
+        BluegigaDevice first = bluegigaAdapter.createDevice(deviceURL);
+        BluegigaDevice second = bluegigaAdapter.createDevice(deviceURL);
+        Object filter = Whitebox.getInternalState(first, "rssiFilter");
+        assertTrue(filter instanceof BluegigaRssiFilter.Ema);
+        // filters are stateful and must not be shared between devices
+        assertFalse(filter == Whitebox.getInternalState(second, "rssiFilter"));
+    }
+
     private BlueGigaScanResponseEvent mockDevice(String address) {
         BlueGigaScanResponseEvent scanEvent = mock(BlueGigaScanResponseEvent.class);
         when(scanEvent.getSender()).thenReturn(address);
@@ -0,0 +1,117 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyShort;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class BluegigaAdvertisementTest {
+
+    private final BluegigaAdvertisement.Visitor visitor = mock(BluegigaAdvertisement.Visitor.class);
+
+    @Test
+    public void testParse() {
+        int[] data = {
+            /* flags */ 2, 0x01, 0x06,
+            /* complete 16 bit UUIDs */ 5, 0x03, 0x0F, 0x18, 0x0A, 0x18,
+            /* complete name */ 4, 0x09, 'a', 'b', 'c',
+            /* tx power */ 2, 0x0A, 0xC4,
+            /* device class */ 2, 0x0D, 10,
+            /* service data, 16 bit UUID */ 5, 0x16, 0x0F, 0x18, 0x55, 0x66,
+            /* manufacturer data */ 5, 0xFF, 0xFF, 0x02, 0x00, 0xFF
+        };
+
+        BluegigaAdvertisement.parse(data, visitor);
+
+        verify(visitor).flags(0x06);
+        verify(visitor).serviceUUID(msb("0000180f-0000-0000-0000-000000000000"), 0);
+        verify(visitor).serviceUUID(msb("0000180a-0000-0000-0000-000000000000"), 0);
+        verify(visitor).name(true, data, 11, 3);
+        verify(visitor).txPower(-60);
+        verify(visitor).deviceClass(10);
+        verify(visitor).serviceData(msb("0000180f-0000-0000-0000-000000000000"), 0, data, 24, 2);
+        verify(visitor).manufacturerData((short) 0x02FF, data, 30, 2);
+        verifyNoMoreInteractions(visitor);
+    }
+
+    @Test
+    public void testParseUUID32() {
+        int[] data = {
+            /* incomplete 32 bit UUIDs */ 5, 0x04, 0x10, 0x8e, 0xe7, 0x74,
+            /* service data, 32 bit UUID */ 6, 0x20, 0x10, 0x8e, 0xe7, 0x74, 0x01
+        };
+
+        BluegigaAdvertisement.parse(data, visitor);
+
+        verify(visitor).serviceUUID(msb("74e78e10-0000-0000-0000-000000000000"), 0);
+        verify(visitor).serviceData(msb("74e78e10-0000-0000-0000-000000000000"), 0, data, 12, 1);
+        verifyNoMoreInteractions(visitor);
+    }
+
+    @Test
+    public void testParseUUID128() {
+        UUID uuid = UUID.fromString("226caa55-6476-4566-7562-66734470666d");
+        int[] data = {
+            /* complete 128 bit UUIDs */ 0x11, 0x07,
+            0x6d, 0x66, 0x70, 0x44, 0x73, 0x66, 0x62, 0x75, 0x66, 0x45, 0x76, 0x64, 0x55, 0xaa, 0x6c, 0x22,
+            /* service data, 128 bit UUID */ 0x13, 0x21,
+            0x6d, 0x66, 0x70, 0x44, 0x73, 0x66, 0x62, 0x75, 0x66, 0x45, 0x76, 0x64, 0x55, 0xaa, 0x6c, 0x22,
+            0x74, 0x01
+        };
+
+        BluegigaAdvertisement.parse(data, visitor);
+
+        verify(visitor).serviceUUID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        verify(visitor).serviceData(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), data, 36, 2);
+        verifyNoMoreInteractions(visitor);
+    }
+
+    @Test
+    public void testParseShortName() {
+        int[] data = {10, 0x08, 83, 109, 97, 114, 116, 108, 111, 99, 107};
+
+        BluegigaAdvertisement.parse(data, visitor);
+
+        verify(visitor).name(false, data, 2, 9);
+        verifyNoMoreInteractions(visitor);
+    }
+
+    @Test
+    public void testParseMalformed() {
+        // manufacturer data is truncated, the declared length runs past the end of the payload
+        int[] truncated = {2, 0x01, 0x06, 9, 0xFF, 0x4C};
+        BluegigaAdvertisement.parse(truncated, visitor);
+        verify(visitor).flags(0x06);
+        verify(visitor, never()).manufacturerData(anyShort(), same(truncated), anyInt(), anyInt());
+
+        // a name which is cut to the end of the payload
+        int[] name = {5, 0x09, 'a', 'b'};
+        BluegigaAdvertisement.parse(name, visitor);
+        verify(visitor).name(eq(true), same(name), eq(2), eq(2));
+
+        // zero length terminates the payload
+        int[] padded = {0, 2, 0x01, 0x06};
+        BluegigaAdvertisement.parse(padded, visitor);
+
+        // unknown types and empty payloads are ignored
+        BluegigaAdvertisement.parse(new int[] {2, 0x1B, 0x01, 1, 0x0A}, visitor);
+        BluegigaAdvertisement.parse(new int[0], visitor);
+
+        verify(visitor, never()).name(anyBoolean(), same(truncated), anyInt(), anyInt());
+        verifyNoMoreInteractions(visitor);
+    }
+
+    private static long msb(String uuid) {
+        return UUID.fromString(uuid).getMostSignificantBits();
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BluegigaAttributeTableTest {
+
+    private static final URL DEVICE_URL = new URL("/12:34:56:78:90:12/11:22:33:44:55:66");
+    private static final URL BATTERY_LEVEL_URL = DEVICE_URL.copyWith("0000180f-0000-1000-8000-00805f9b34fb",
+        "00002a19-0000-1000-8000-00805f9b34fb");
+    private static final URL TX_POWER_LEVEL_URL = DEVICE_URL.copyWith("00001804-0000-1000-8000-00805f9b34fb",
+        "00002a07-0000-1000-8000-00805f9b34fb");
+    private static final URL MANUFACTURER_NAME_URL = DEVICE_URL.copyWith("0000180a-0000-1000-8000-00805f9b34fb",
+        "00002a29-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void testGet() {
+        BluegigaCharacteristic batteryLevel = mockCharacteristic(BATTERY_LEVEL_URL, 3);
+        BluegigaCharacteristic txPowerLevel = mockCharacteristic(TX_POWER_LEVEL_URL, 13);
+        BluegigaCharacteristic manufacturerName = mockCharacteristic(MANUFACTURER_NAME_URL, 0x0105);
+        BluegigaService service1 = mockService(manufacturerName, batteryLevel);
+        BluegigaService service2 = mockService(txPowerLevel);
+
+        BluegigaAttributeTable table = BluegigaAttributeTable.build(Arrays.asList(service1, service2));
+        assertEquals(3, table.size());
+
+        assertSame(batteryLevel, table.get(3));
+        assertSame(txPowerLevel, table.get(13));
+        assertSame(manufacturerName, table.get(0x0105));
+        assertNull(table.get(1));
+        assertNull(table.get(4));
+        assertNull(table.get(0xFFFF));
+
+        assertSame(batteryLevel, table.get(BATTERY_LEVEL_URL));
+        assertSame(txPowerLevel, table.get(TX_POWER_LEVEL_URL));
+        assertNull(table.get(BATTERY_LEVEL_URL.copyWithCharacteristic("00002a01-0000-1000-8000-00805f9b34fb")));
+    }
+
+    @Test
+    public void testEmpty() {
+        BluegigaAttributeTable table = BluegigaAttributeTable.build(
+            Collections.singletonList(mockService()));
+        assertSame(BluegigaAttributeTable.EMPTY, table);
+        assertEquals(0, table.size());
+        assertNull(table.get(3));
+        assertNull(table.get(BATTERY_LEVEL_URL));
+    }
+
+    private static BluegigaCharacteristic mockCharacteristic(URL url, int handle) {
+        BluegigaCharacteristic characteristic = mock(BluegigaCharacteristic.class);
+        when(characteristic.getURL()).thenReturn(url);
+        when(characteristic.getCharacteristicHandle()).thenReturn(handle);
+        return characteristic;
+    }
+
+    private static BluegigaService mockService(Characteristic... characteristics) {
+        BluegigaService service = mock(BluegigaService.class);
+        when(service.getDiscoveredCharacteristics()).thenReturn(Arrays.asList(characteristics));
+        return service;
+    }
+
+}
@@ -21,6 +21,8 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyVararg;
 import static org.mockito.Mockito.doNothing;
@@ -104,6 +106,49 @@ public class BluegigaCharacteristicTest {
         verify(bluegigaHandler).readCharacteristic(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE);
     }
 
+    @Test
+    public void readLongValue() throws Exception {
+        int[] data = new int[22];
+        int[] longData = new int[30];
+        longData[29] = 5;
+        BlueGigaAttributeValueEvent event = mock(BlueGigaAttributeValueEvent.class);
+        when(event.getValue()).thenReturn(data);
+
+        when(bluegigaHandler.readCharacteristic(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE)).thenReturn(event);
+        when(bluegigaHandler.readCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE)).thenReturn(longData);
+
+        // a full PDU is returned as it is, the value is not read again
+        assertEquals(22, characteristic.readValue().length);
+        verify(bluegigaHandler, never()).readCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE);
+
+        byte[] value = characteristic.readValueLong();
+        assertEquals(30, value.length);
+        assertEquals(5, value[29]);
+
+        // the value is known to be long now, it is read with the read long procedure straight away
+        assertEquals(30, characteristic.readValue().length);
+        verify(bluegigaHandler).readCharacteristic(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE);
+        verify(bluegigaHandler, times(2)).readCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE);
+    }
+
+    @Test
+    public void writeLongValue() throws Exception {
+        byte[] byteData = new byte[21];
+        int[] intData = new int[21];
+
+        characteristic.setFlags(EnumSet.of(CharacteristicAccessType.WRITE));
+
+        BlueGigaProcedureCompletedEvent event = mock(BlueGigaProcedureCompletedEvent.class);
+        when(event.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        when(bluegigaHandler.writeCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, intData))
+            .thenReturn(event);
+
+        assertTrue(characteristic.writeValue(byteData));
+
+        verify(bluegigaHandler).writeCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, intData);
+        verify(bluegigaHandler, never()).writeCharacteristic(anyInt(), anyInt(), any());
+    }
+
     @Test
     public void writeValueWithoutResonse() throws Exception {
         byte[] byteData = {12, 34};
@@ -13,6 +13,7 @@ import java.util.UUID;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -48,6 +49,18 @@ public class BluegigaDescriptorTest {
         verify(bluegigaHandler).readCharacteristic(CONNECTION_HANDLE, DESCRIPTOR_HANDLE);
     }
 
+    @Test
+    public void readLongValue() throws Exception {
+        int[] data = new int[30];
+        data[29] = 5;
+        when(bluegigaHandler.readCharacteristicLong(CONNECTION_HANDLE, DESCRIPTOR_HANDLE)).thenReturn(data);
+
+        byte[] value = descriptor.readValueLong();
+        assertEquals(30, value.length);
+        assertEquals(5, value[29]);
+        verify(bluegigaHandler, never()).readCharacteristic(CONNECTION_HANDLE, DESCRIPTOR_HANDLE);
+    }
+
     @Test
     public void writeValue() throws Exception {
         byte[] byteData = {12, 34};
@@ -3,14 +3,18 @@ package org.sputnikdev.bluetooth.manager.transport.bluegiga;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationFoundEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaGroupFoundEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaProcedureCompletedEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectedEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.gap.BlueGigaScanResponseEvent;
 import com.zsmartsystems.bluetooth.bluegiga.eir.EirDataType;
 import com.zsmartsystems.bluetooth.bluegiga.enumeration.BgApiResponse;
 import com.zsmartsystems.bluetooth.bluegiga.enumeration.BluetoothAddressType;
+import com.zsmartsystems.bluetooth.bluegiga.enumeration.ScanResponseType;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
@@ -19,6 +23,7 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.internal.util.reflection.Whitebox;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.sputnikdev.bluetooth.URL;
 import org.sputnikdev.bluetooth.manager.transport.BluetoothObject;
 import org.sputnikdev.bluetooth.manager.transport.Characteristic;
@@ -28,10 +33,15 @@ import org.sputnikdev.bluetooth.manager.transport.Service;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -41,13 +51,17 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.anyShort;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
@@ -68,23 +82,24 @@ public class BluegigaDeviceTest {
     private static final int[] EIR_SMARTLOCK_PACKET = {2, 1, 4, 10, 8, 83, 109, 97, 114, 116, 108, 111, 99, 107};
     private static final int[] BATTERY_LEVEL_CHARACTERISTIC_DECLARATION =
         {CharacteristicAccessType.READ.getBitField() | CharacteristicAccessType.NOTIFY.getBitField(), 3, 0, 0x19, 0x2a};
+    private static final int[] TX_POWER_LEVEL_CHARACTERISTIC_DECLARATION =
+        {CharacteristicAccessType.READ.getBitField(), 13, 0, 0x07, 0x2a};
 
     private static final URL BATTERY_SERVICE_URL = DEVICE_URL.copyWithService("0000180f-0000-1000-8000-00805f9b34fb");
     private static final URL BATTERY_LEVEL_CHARACTERISTIC_URL =
         BATTERY_SERVICE_URL.copyWithCharacteristic("00002a19-0000-1000-8000-00805f9b34fb");
-    private static final URL BATTERY_SERVICE_PRIMARY_SERVICE_DECLARATION_URL =
-        BATTERY_SERVICE_URL.copyWithCharacteristic("00002800-0000-1000-8000-00805f9b34fb");
     private static final URL BATTERY_LEVEL_CHARACTERISTIC_DESCRIPTOR_URL =
         BATTERY_SERVICE_URL.copyWithCharacteristic("00002902-0000-1000-8000-00805f9b34fb");
 
     private static final URL TX_POWER_SERVICE_URL = DEVICE_URL.copyWithService("00001804-0000-1000-8000-00805f9b34fb");
     private static final URL TX_POWER_LEVEL_CHARACTERISTIC_URL =
         TX_POWER_SERVICE_URL.copyWithCharacteristic("00002a07-0000-1000-8000-00805f9b34fb");
-    private static final URL TX_POWER_PRIMARY_SERVICE_DECLARATION_URL =
-        TX_POWER_SERVICE_URL.copyWithCharacteristic("00002800-0000-1000-8000-00805f9b34fb");
     private static final URL TX_POWER_CHARACTERISTIC_DESCRIPTOR_URL =
         TX_POWER_SERVICE_URL.copyWithCharacteristic("00002902-0000-1000-8000-00805f9b34fb");
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     private BluegigaHandler bluegigaHandler;
 
@@ -114,26 +129,29 @@ public class BluegigaDeviceTest {
         List<BlueGigaGroupFoundEvent> serviceEvents = new ArrayList<>();
         serviceEvents.add(mockServiceEvent(BATTERY_SERVICE_URL, 1, 10));
         serviceEvents.add(mockServiceEvent(TX_POWER_SERVICE_URL, 11, 15));
-        when(bluegigaHandler.getServices(CONNECTION_HANDLE)).thenReturn(serviceEvents);
-
-        List<BlueGigaFindInformationFoundEvent> characteristicEvents = new ArrayList<>();
-        characteristicEvents.add(mockCharacteristicEvent(BATTERY_SERVICE_PRIMARY_SERVICE_DECLARATION_URL, 1));
-        characteristicEvents.add(mockCharacteristicEvent(BATTERY_LEVEL_CHARACTERISTIC_URL, 2));
-        characteristicEvents.add(mockCharacteristicEvent(BATTERY_LEVEL_CHARACTERISTIC_DESCRIPTOR_URL, 3));
-
-        characteristicEvents.add(mockCharacteristicEvent(TX_POWER_PRIMARY_SERVICE_DECLARATION_URL, 11));
-        characteristicEvents.add(mockCharacteristicEvent(TX_POWER_LEVEL_CHARACTERISTIC_URL, 12));
-        characteristicEvents.add(mockCharacteristicEvent(TX_POWER_CHARACTERISTIC_DESCRIPTOR_URL, 13));
-
-        when(bluegigaHandler.getCharacteristics(CONNECTION_HANDLE)).thenReturn(characteristicEvents);
+        doAnswer(stream(serviceEvents))
+            .when(bluegigaHandler).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
 
+        // characteristics are derived from declarations
         List<BlueGigaAttributeValueEvent> declarations = new ArrayList<>();
-        declarations.add(mockDeclarationEvent(4, BATTERY_LEVEL_CHARACTERISTIC_DECLARATION));
-        when(bluegigaHandler.getDeclarations(CONNECTION_HANDLE)).thenReturn(declarations);
+        declarations.add(mockDeclarationEvent(2, BATTERY_LEVEL_CHARACTERISTIC_DECLARATION));
+        declarations.add(mockDeclarationEvent(12, TX_POWER_LEVEL_CHARACTERISTIC_DECLARATION));
+        doAnswer(stream(declarations))
+            .when(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
+
+        // descriptors are discovered between characteristic values and the next declaration (or service end)
+        List<BlueGigaFindInformationFoundEvent> batteryDescriptors = new ArrayList<>();
+        batteryDescriptors.add(mockCharacteristicEvent(BATTERY_LEVEL_CHARACTERISTIC_DESCRIPTOR_URL, 4));
+        doAnswer(stream(batteryDescriptors))
+            .when(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10), any(Consumer.class));
+        List<BlueGigaFindInformationFoundEvent> txPowerDescriptors = new ArrayList<>();
+        txPowerDescriptors.add(mockCharacteristicEvent(TX_POWER_CHARACTERISTIC_DESCRIPTOR_URL, 14));
+        doAnswer(stream(txPowerDescriptors))
+            .when(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(14), eq(15), any(Consumer.class));
 
         when(bluegigaHandler.getConnectionStatus(CONNECTION_HANDLE)).thenReturn(connectionStatusEvent);
 
-        verify(bluegigaHandler).addEventListener(bluegigaDevice);
+        verify(bluegigaHandler).addDeviceListener(DEVICE_URL.getDeviceAddress(), bluegigaDevice);
 
         bluegigaDevice = spy(bluegigaDevice);
 
@@ -144,6 +162,14 @@ public class BluegigaDeviceTest {
             invocation.getArgumentAt(0, Runnable.class).run();
             return null;
         }).when(bluegigaHandler).runInSynchronizedContext(any(Runnable.class));
+        doAnswer(invocation -> {
+            return invocation.getArgumentAt(0, Supplier.class).get();
+        }).when(bluegigaHandler).runInDiscoveryContext(any(Supplier.class));
+        // discoveries are run in place instead of the discovery worker pool
+        doAnswer(invocation -> {
+            invocation.getArgumentAt(1, Runnable.class).run();
+            return true;
+        }).when(bluegigaHandler).scheduleDiscovery(eq(DEVICE_URL.getDeviceAddress()), any(Runnable.class));
 
         doNothing().when(serviceDataNotification).notify(serviceDataCaptor.capture());
         doNothing().when(manufacturerDataNotification).notify(manufacturerDataCaptor.capture());
@@ -164,9 +190,10 @@ public class BluegigaDeviceTest {
 
         // attributes should not be discovered as a part of connect procedure,
         // a connection event should trigger this instead
-        verify(bluegigaHandler, never()).getServices(CONNECTION_HANDLE);
-        verify(bluegigaHandler, never()).getCharacteristics(CONNECTION_HANDLE);
-        verify(bluegigaHandler, never()).getDeclarations(CONNECTION_HANDLE);
+        verify(bluegigaHandler, never()).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamCharacteristics(eq(CONNECTION_HANDLE), eq(BluegigaHandler.MIN_HANDLE),
+            eq(BluegigaHandler.MAX_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
 
         assertEquals(CONNECTION_HANDLE, bluegigaDevice.getConnectionHandle());
     }
@@ -186,9 +213,12 @@ public class BluegigaDeviceTest {
         assertDescriptors();
         assertTrue(bluegigaDevice.isServicesResolved());
         verify(bluegigaHandler, never()).connect(eq(DEVICE_URL), any(BluetoothAddressType.class));
-        verify(bluegigaHandler).getServices(CONNECTION_HANDLE);
-        verify(bluegigaHandler).getCharacteristics(CONNECTION_HANDLE);
-        verify(bluegigaHandler).getDeclarations(CONNECTION_HANDLE);
+        verify(bluegigaHandler).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10), any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(14), eq(15), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamCharacteristics(eq(CONNECTION_HANDLE), eq(BluegigaHandler.MIN_HANDLE),
+            eq(BluegigaHandler.MAX_HANDLE), any(Consumer.class));
         verify(booleanNotification).notify(true);
         assertEquals(CONNECTION_HANDLE, bluegigaDevice.getConnectionHandle());
 
@@ -196,9 +226,12 @@ public class BluegigaDeviceTest {
         bluegigaDevice.bluegigaEventReceived(event);
         assertTrue(bluegigaDevice.isServicesResolved());
         verify(bluegigaHandler, never()).connect(eq(DEVICE_URL), any(BluetoothAddressType.class));
-        verify(bluegigaHandler).getServices(CONNECTION_HANDLE);
-        verify(bluegigaHandler).getCharacteristics(CONNECTION_HANDLE);
-        verify(bluegigaHandler).getDeclarations(CONNECTION_HANDLE);
+        verify(bluegigaHandler).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10), any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(14), eq(15), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamCharacteristics(eq(CONNECTION_HANDLE), eq(BluegigaHandler.MIN_HANDLE),
+            eq(BluegigaHandler.MAX_HANDLE), any(Consumer.class));
         verify(booleanNotification).notify(true);
         assertEquals(CONNECTION_HANDLE, bluegigaDevice.getConnectionHandle());
     }
@@ -382,6 +415,81 @@ public class BluegigaDeviceTest {
         assertArrayEquals(new byte[]{0x00, (byte) 0xFF}, notified.get((short) 0x02FF));
     }
 
+    @Test
+    public void testAdvertisementNotChanged() {
+        bluegigaDevice.enableManufacturerDataNotifications(manufacturerDataNotification);
+        int[] data = {/* length */ 0x05,
+                /* manufacturer data ID */ 0xFF,
+                /* manufacturer ID */ 0xFF, 0x02,
+                /* data */ 0x00, 0xFF};
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100, data));
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -90, data.clone()));
+
+        // identical payload is not parsed again, only RSSI gets updated
+        verify(manufacturerDataNotification, times(1)).notify(anyMap());
+        assertEquals(-90, bluegigaDevice.getRSSI());
+
+        // payloads of different packet types are tracked separately
+        BlueGigaScanResponseEvent scanResponse = mockScanResponse((short) -90, new int[] {2, 0x0A, 0xC4});
+        when(scanResponse.getPacketType()).thenReturn(ScanResponseType.SCAN_RESPONSE);
+        bluegigaDevice.bluegigaEventReceived(scanResponse);
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -90, data));
+        verify(manufacturerDataNotification, times(1)).notify(anyMap());
+        assertEquals(-60, bluegigaDevice.getTxPower());
+
+        data[5] = 0x01;
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -90, data));
+        verify(manufacturerDataNotification, times(2)).notify(anyMap());
+        assertArrayEquals(new byte[]{0x00, 0x01}, bluegigaDevice.getManufacturerData().get((short) 0x02FF));
+    }
+
+    @Test
+    public void testServiceDataNotChanged() {
+        bluegigaDevice.enableServiceDataNotifications(serviceDataNotification);
+        int[] eir16 = {/* length */ 0x04, /* service data 16 bit UUID*/ 0x16, 0x0F, 0x18, 0x45};
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100, eir16));
+
+        Map<String, byte[]> serviceData = bluegigaDevice.getServiceData();
+        // snapshots are shared with consumers
+        assertSame(serviceData, serviceDataCaptor.getValue());
+        try {
+            serviceData.clear();
+            fail();
+        } catch (UnsupportedOperationException ignore) { }
+
+        // payload has changed, but service data has not
+        int[] eir = {/* flags */ 2, 1, 4, /* length */ 0x04, /* service data 16 bit UUID*/ 0x16, 0x0F, 0x18, 0x45};
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100, eir));
+        verify(serviceDataNotification, times(1)).notify(anyMap());
+        assertSame(serviceData, bluegigaDevice.getServiceData());
+
+        eir[7] = 0x46;
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100, eir));
+        verify(serviceDataNotification, times(2)).notify(anyMap());
+        assertArrayEquals(new byte[] {0x45}, serviceData.get("0000180f-0000-1000-8000-00805f9b34fb"));
+        assertArrayEquals(new byte[] {0x46},
+                bluegigaDevice.getServiceData().get("0000180f-0000-1000-8000-00805f9b34fb"));
+    }
+
+    @Test
+    public void testAdvertisedDataCopied() {
+        bluegigaDevice.enableServiceDataNotifications(serviceDataNotification);
+        bluegigaDevice.enableManufacturerDataNotifications(manufacturerDataNotification);
+        int[] eir = {/* length */ 0x04, /* service data 16 bit UUID*/ 0x16, 0x0F, 0x18, 0x45,
+                /* length */ 0x04, /* manufacturer data ID */ 0xFF, /* manufacturer ID */ 0xFF, 0x02, /* data */ 0x01};
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100, eir));
+
+        // consumers modify values they have been given
+        bluegigaDevice.getServiceData().get("0000180f-0000-1000-8000-00805f9b34fb")[0] = 0x00;
+        bluegigaDevice.getManufacturerData().get((short) 0x02FF)[0] = 0x00;
+
+        // payload has changed, but advertised data has not, hence it is not reported as changed
+        int[] changed = {/* flags */ 2, 1, 4, 0x04, 0x16, 0x0F, 0x18, 0x45, 0x04, 0xFF, 0xFF, 0x02, 0x01};
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100, changed));
+        verify(serviceDataNotification, times(1)).notify(anyMap());
+        verify(manufacturerDataNotification, times(1)).notify(anyMap());
+    }
+
     @Test
     public void testBlocked() {
         // blicking is not supported by Bluegiga
@@ -428,6 +536,55 @@ public class BluegigaDeviceTest {
         verifyNoMoreInteractions(notification);
     }
 
+    @Test
+    public void testRSSINotificationsPolicy() {
+        Notification<Short> notification = (Notification<Short>) mock(Notification.class);
+        when(bluegigaHandler.getRssiPolicy()).thenReturn(new BluegigaRssiPolicy(5, 0, 0));
+        bluegigaDevice.enableRSSINotifications(notification);
+
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -87));
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -85));
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -80));
+        verify(notification).notify((short) -87);
+        verify(notification).notify((short) -80);
+        // RSSI is updated regardless of notifications
+        assertEquals(-80, bluegigaDevice.getRSSI());
+
+        // device policy overrides the adapter one
+        bluegigaDevice.setRssiPolicy(BluegigaRssiPolicy.ALL);
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -79));
+        verify(notification).notify((short) -79);
+        verifyNoMoreInteractions(notification);
+    }
+
+    @Test
+    public void testFilteredRSSI() {
+        // filtering is disabled by default
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -80));
+        assertEquals(-80, bluegigaDevice.getFilteredRSSI());
+
+        bluegigaDevice.setRssiFilter(new BluegigaRssiFilter.Median(3));
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -80));
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -40));
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -82));
+        assertEquals(-82, bluegigaDevice.getRSSI());
+        assertEquals(-80, bluegigaDevice.getFilteredRSSI());
+
+        // the filter is reset if the device has not been seen for a long time
+        Whitebox.setInternalState(bluegigaDevice, "lastDiscovered",
+                Instant.now().minusSeconds(BluegigaDevice.DISCOVERY_TIMEOUT + 1));
+        assertEquals(0, bluegigaDevice.getFilteredRSSI());
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -60));
+        assertEquals(-60, bluegigaDevice.getFilteredRSSI());
+
+        // connected devices are not queried for RSSI, the last filtered value is returned
+        Whitebox.setInternalState(bluegigaDevice, "connectionHandle", CONNECTION_HANDLE);
+        Whitebox.setInternalState(bluegigaDevice, "lastDiscovered",
+                Instant.now().minusSeconds(BluegigaDevice.DISCOVERY_TIMEOUT + 1));
+        assertEquals(-60, bluegigaDevice.getFilteredRSSI());
+        verify(bluegigaHandler, never()).bgGetRssi(anyInt());
+    }
+
     @Test
     public void testIsConnected() {
         when(bluegigaHandler.disconnect(CONNECTION_HANDLE)).thenReturn(mock(BlueGigaDisconnectedEvent.class));
@@ -498,6 +655,81 @@ public class BluegigaDeviceTest {
         verifyNoMoreInteractions(booleanNotification);
     }
 
+    @Test
+    public void testDiscoveryLatency() {
+        assertEquals(-1, bluegigaDevice.getDiscoveryLatency());
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+
+        // discovery takes a discovery slot rather than the adapter-wide synchronized context
+        verify(bluegigaHandler).runInDiscoveryContext(any(Supplier.class));
+        verify(bluegigaHandler, never()).runInSynchronizedContext(any(Supplier.class));
+        assertTrue(bluegigaDevice.getDiscoveryLatency() >= 0);
+        verify(bluegigaHandler).recordDiscoveryLatency(bluegigaDevice.getDiscoveryLatency());
+    }
+
+    @Test
+    public void testDiscoveryScheduled() {
+        doReturn(false).when(bluegigaHandler).scheduleDiscovery(eq(DEVICE_URL.getDeviceAddress()),
+            any(Runnable.class));
+
+        // the event thread does not wait for discovery
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertTrue(bluegigaDevice.isConnected());
+        assertFalse(bluegigaDevice.isServicesResolved());
+        verify(bluegigaHandler).scheduleDiscovery(eq(DEVICE_URL.getDeviceAddress()), any(Runnable.class));
+        verify(bluegigaHandler, never()).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+    }
+
+    @Test
+    public void testDisconnectedWhileResolvingServices() {
+        bluegigaDevice.enableServicesResolvedNotifications(booleanNotification);
+        // a discovery of the device is not scheduled while another one is running
+        AtomicBoolean running = new AtomicBoolean();
+        doAnswer(invocation -> {
+            if (!running.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                invocation.getArgumentAt(1, Runnable.class).run();
+            } finally {
+                running.set(false);
+            }
+            return true;
+        }).when(bluegigaHandler).scheduleDiscovery(eq(DEVICE_URL.getDeviceAddress()), any(Runnable.class));
+
+        BlueGigaConnectionStatusEvent connected = mockConnectionStatusEvent();
+        BlueGigaDisconnectedEvent disconnected = mock(BlueGigaDisconnectedEvent.class);
+        when(disconnected.getConnection()).thenReturn(CONNECTION_HANDLE);
+        Answer<Void> services = stream(Arrays.asList(mockServiceEvent(BATTERY_SERVICE_URL, 1, 10),
+            mockServiceEvent(TX_POWER_SERVICE_URL, 11, 15)));
+        AtomicInteger discoveries = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (discoveries.incrementAndGet() == 1) {
+                // the device reconnects while its services are being discovered
+                bluegigaDevice.bluegigaEventReceived(disconnected);
+                bluegigaDevice.bluegigaEventReceived(connected);
+            }
+            return services.answer(invocation);
+        }).when(bluegigaHandler).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+
+        bluegigaDevice.bluegigaEventReceived(connected);
+
+        // services of the first connection are discarded and resolved again for the new one
+        assertEquals(2, discoveries.get());
+        assertTrue(bluegigaDevice.isServicesResolved());
+        assertEquals(2, bluegigaDevice.getServices().size());
+        verify(bluegigaHandler, times(2)).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(booleanNotification).notify(true);
+        verify(booleanNotification, never()).notify(false);
+
+        // no discovery follows a disconnection
+        discoveries.set(0);
+        bluegigaDevice.bluegigaEventReceived(disconnected);
+        assertFalse(bluegigaDevice.isServicesResolved());
+        assertTrue(bluegigaDevice.getServices().isEmpty());
+        assertEquals(0, discoveries.get());
+    }
+
     @Test
     public void testGetURL() {
         assertEquals(DEVICE_URL, bluegigaDevice.getURL());
@@ -519,6 +751,28 @@ public class BluegigaDeviceTest {
         assertNotNull(bluegigaDevice.getService(BATTERY_SERVICE_URL));
     }
 
+    @Test
+    public void testGetCharacteristic() {
+        assertNull(bluegigaDevice.getCharacteristic(BATTERY_LEVEL_CHARACTERISTIC_URL));
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+
+        // characteristics are indexed by value handles and URLs
+        BluegigaCharacteristic batteryLevel = bluegigaDevice.getCharacteristic(BATTERY_LEVEL_CHARACTERISTIC_URL);
+        assertNotNull(batteryLevel);
+        assertEquals(BATTERY_LEVEL_CHARACTERISTIC_URL, batteryLevel.getURL());
+        assertSame(batteryLevel, bluegigaDevice.getCharacteristic(3));
+        assertSame(bluegigaDevice.getService(BATTERY_SERVICE_URL).getCharacteristic(BATTERY_LEVEL_CHARACTERISTIC_URL),
+            batteryLevel);
+        assertEquals(TX_POWER_LEVEL_CHARACTERISTIC_URL, bluegigaDevice.getCharacteristic(13).getURL());
+        assertNull(bluegigaDevice.getCharacteristic(2));
+        assertNull(bluegigaDevice.getCharacteristic(BATTERY_SERVICE_URL.copyWithCharacteristic("1234")));
+
+        // the index is dropped when the device gets disconnected
+        disconnectDevice();
+        assertNull(bluegigaDevice.getCharacteristic(3));
+        assertNull(bluegigaDevice.getCharacteristic(BATTERY_LEVEL_CHARACTERISTIC_URL));
+    }
+
     @Test
     public void testBluegigaEventReceivedConnect() {
         Notification<Boolean> connectedNotification = mock(Notification.class);
@@ -630,6 +884,290 @@ public class BluegigaDeviceTest {
         assertEquals(-60, bluegigaDevice.getTxPower());
     }
 
+    @Test
+    public void testGattCache() {
+        BluegigaGattCache gattCache = new BluegigaGattCache(folder.getRoot());
+        when(bluegigaHandler.getGattCache()).thenReturn(gattCache);
+
+        // first connection, attributes get discovered and stored
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertNotNull(gattCache.load(DEVICE_URL.getDeviceAddress()));
+        disconnectDevice();
+
+        // reconnecting, attributes get restored from the cache
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertServices();
+        assertCharacteristics();
+        assertDescriptors();
+        verify(bluegigaHandler, times(1)).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
+    }
+
+    @Test
+    public void testServiceChangedIndications() {
+        BluegigaGattCache gattCache = new BluegigaGattCache(folder.getRoot());
+        BluegigaGattCache.ServiceEntry genericAttribute =
+            new BluegigaGattCache.ServiceEntry(UUID.fromString("00001801-0000-1000-8000-00805f9b34fb"), 1, 4);
+        BluegigaGattCache.CharacteristicEntry serviceChanged = new BluegigaGattCache.CharacteristicEntry(
+            UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb"), 3,
+            CharacteristicAccessType.INDICATE.getBitField());
+        serviceChanged.addDescriptor(new BluegigaGattCache.DescriptorEntry(
+            UUID.fromString("00002902-0000-0000-0000-000000000000"), 4));
+        genericAttribute.addCharacteristic(serviceChanged);
+        gattCache.store(DEVICE_URL.getDeviceAddress(), Collections.singletonList(genericAttribute));
+        when(bluegigaHandler.getGattCache()).thenReturn(gattCache);
+        BlueGigaProcedureCompletedEvent written = mock(BlueGigaProcedureCompletedEvent.class);
+        when(written.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        when(bluegigaHandler.writeCharacteristic(eq(CONNECTION_HANDLE), eq(4), any())).thenReturn(written);
+
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+
+        assertTrue(bluegigaDevice.isServicesResolved());
+        verify(bluegigaHandler).addAttributeListener(CONNECTION_HANDLE, 3, bluegigaDevice);
+        // indications are enabled in the client characteristic configuration descriptor
+        verify(bluegigaHandler).writeCharacteristic(eq(CONNECTION_HANDLE), eq(4), aryEq(new int[] {0x02, 0x00}));
+    }
+
+    @Test
+    public void testGattTemplate() {
+        BluegigaGattTemplates templates = new BluegigaGattTemplates(
+            Arrays.asList(BluegigaGattTemplates.Rule.parse("name:Smart")), null);
+        when(bluegigaHandler.getGattTemplates()).thenReturn(templates);
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100));
+
+        // the first device is fully discovered and the template is captured
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertFalse(templates.isApplied(DEVICE_URL.getDeviceAddress()));
+        disconnectDevice();
+
+        // attributes are populated from the template
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertTrue(templates.isApplied(DEVICE_URL.getDeviceAddress()));
+        assertServices();
+        assertCharacteristics();
+        assertDescriptors();
+        disconnectDevice();
+
+        // the template turns out to be wrong, falling back to full discovery
+        templates.invalidate(DEVICE_URL.getDeviceAddress());
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertFalse(templates.isApplied(DEVICE_URL.getDeviceAddress()));
+        verify(bluegigaHandler, times(2)).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+    }
+
+    @Test
+    public void testGattTemplateAfterDispose() {
+        BluegigaGattTemplates templates = spy(new BluegigaGattTemplates(
+            Arrays.asList(BluegigaGattTemplates.Rule.parse("manufacturer:76")), null));
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100));
+        // the device gets disposed while its attributes are being resolved
+        when(bluegigaHandler.getGattTemplates()).thenAnswer(invocation -> {
+            bluegigaDevice.dispose();
+            return templates;
+        });
+
+        // template matching does not fail on released manufacturer data
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        verify(templates, atLeastOnce()).match(any(), eq(Collections.emptySet()), any());
+    }
+
+    @Test
+    public void testGattTemplateInvalidatedWhileConnected() {
+        BluegigaGattTemplates templates = new BluegigaGattTemplates(
+            Arrays.asList(BluegigaGattTemplates.Rule.parse("name:Smart")), null);
+        when(bluegigaHandler.getGattTemplates()).thenReturn(templates);
+        bluegigaDevice.bluegigaEventReceived(mockScanResponse((short) -100));
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        disconnectDevice();
+
+        // attributes are populated from the template
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertTrue(templates.isApplied(DEVICE_URL.getDeviceAddress()));
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        verify(bluegigaHandler, times(2))
+            .setGattInvalidationListener(eq(DEVICE_URL.getDeviceAddress()), listener.capture());
+        Notification<Boolean> servicesResolvedNotification = mock(Notification.class);
+        bluegigaDevice.enableServicesResolvedNotifications(servicesResolvedNotification);
+
+        // a procedure fails because the template does not match, the handler invalidates the template
+        // and the device falls back to full discovery straight away, without waiting for a reconnection
+        templates.invalidate(DEVICE_URL.getDeviceAddress());
+        listener.getValue().run();
+
+        assertFalse(templates.isApplied(DEVICE_URL.getDeviceAddress()));
+        verify(bluegigaHandler, times(2)).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler, never()).connect(any(), any());
+        verify(servicesResolvedNotification).notify(false);
+        verify(servicesResolvedNotification).notify(true);
+        assertTrue(bluegigaDevice.isServicesResolved());
+        assertEquals(2, bluegigaDevice.getServices().size());
+        // the listener is not kept for unresolved services
+        verify(bluegigaHandler, times(2)).removeGattInvalidationListener(DEVICE_URL.getDeviceAddress());
+    }
+
+    @Test
+    public void testDescriptorGapsMerged() {
+        // the battery service has three characteristics, each of them has a descriptor
+        List<BlueGigaAttributeValueEvent> declarations = new ArrayList<>();
+        declarations.add(mockDeclarationEvent(2, BATTERY_LEVEL_CHARACTERISTIC_DECLARATION));
+        int read = CharacteristicAccessType.READ.getBitField();
+        declarations.add(mockDeclarationEvent(5, new int[] {read, 6, 0, 0x1a, 0x2a}));
+        declarations.add(mockDeclarationEvent(8, new int[] {read, 9, 0, 0x1b, 0x2a}));
+        declarations.add(mockDeclarationEvent(12, TX_POWER_LEVEL_CHARACTERISTIC_DECLARATION));
+        doAnswer(stream(declarations))
+            .when(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
+        // find information returns declarations and values in between descriptors
+        List<BlueGigaFindInformationFoundEvent> attributes = new ArrayList<>();
+        attributes.add(mockCharacteristicEvent(BATTERY_LEVEL_CHARACTERISTIC_DESCRIPTOR_URL, 4));
+        attributes.add(mockCharacteristicEvent(
+            BATTERY_SERVICE_URL.copyWithCharacteristic("00002803-0000-1000-8000-00805f9b34fb"), 5));
+        attributes.add(mockCharacteristicEvent(
+            BATTERY_SERVICE_URL.copyWithCharacteristic("00002a1a-0000-1000-8000-00805f9b34fb"), 6));
+        attributes.add(mockCharacteristicEvent(BATTERY_LEVEL_CHARACTERISTIC_DESCRIPTOR_URL, 7));
+        attributes.add(mockCharacteristicEvent(
+            BATTERY_SERVICE_URL.copyWithCharacteristic("00002803-0000-1000-8000-00805f9b34fb"), 8));
+        attributes.add(mockCharacteristicEvent(
+            BATTERY_SERVICE_URL.copyWithCharacteristic("00002a1b-0000-1000-8000-00805f9b34fb"), 9));
+        attributes.add(mockCharacteristicEvent(BATTERY_LEVEL_CHARACTERISTIC_DESCRIPTOR_URL, 10));
+        doAnswer(stream(attributes))
+            .when(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10), any(Consumer.class));
+
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+
+        // a single procedure per service instead of one per gap
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10), any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(14), eq(15), any(Consumer.class));
+        verify(bluegigaHandler, times(2)).streamCharacteristics(anyInt(), anyInt(), anyInt(), any(Consumer.class));
+        List<Characteristic> characteristics = bluegigaDevice.getService(BATTERY_SERVICE_URL).getCharacteristics();
+        assertEquals(3, characteristics.size());
+        for (Characteristic characteristic : characteristics) {
+            Set<BluegigaDescriptor> descriptors = ((BluegigaCharacteristic) characteristic).getDescriptors();
+            assertEquals(1, descriptors.size());
+            assertEquals(((BluegigaCharacteristic) characteristic).getCharacteristicHandle() + 1,
+                descriptors.iterator().next().getDescriptorHandle());
+        }
+    }
+
+    @Test
+    public void testLazyDiscovery() {
+        List<BlueGigaAttributeValueEvent> declarations = new ArrayList<>();
+        declarations.add(mockDeclarationEvent(2, BATTERY_LEVEL_CHARACTERISTIC_DECLARATION));
+        doAnswer(stream(declarations))
+            .when(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), eq(1), eq(10), any(Consumer.class));
+        when(bluegigaHandler.isLazyDiscovery()).thenReturn(true);
+
+        // only primary services are discovered
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        assertEquals(2, bluegigaDevice.getServices().size());
+        verify(bluegigaHandler).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamCharacteristics(anyInt(), anyInt(), anyInt(), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamDeclarations(anyInt(), anyInt(), anyInt(), any(Consumer.class));
+
+        // characteristics are discovered within the service handle range when they are requested
+        BluegigaService batteryService = bluegigaDevice.getService(BATTERY_SERVICE_URL);
+        List<Characteristic> characteristics = batteryService.getCharacteristics();
+        assertEquals(1, characteristics.size());
+        assertEquals(BATTERY_LEVEL_CHARACTERISTIC_URL, characteristics.get(0).getURL());
+        assertEquals(2, characteristics.get(0).getFlags().size());
+        batteryService.getCharacteristics();
+        assertEquals(1, ((BluegigaCharacteristic) characteristics.get(0)).getDescriptors().size());
+        verify(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), eq(1), eq(10), any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamDeclarations(eq(CONNECTION_HANDLE), eq(11), eq(15), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
+
+        // characteristics of an unresolved service are discovered when they are requested by URL
+        assertNull(bluegigaDevice.getCharacteristic(13));
+        List<BlueGigaAttributeValueEvent> txPowerDeclarations =
+            Collections.singletonList(mockDeclarationEvent(12, TX_POWER_LEVEL_CHARACTERISTIC_DECLARATION));
+        doAnswer(stream(txPowerDeclarations))
+            .when(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), eq(11), eq(15), any(Consumer.class));
+        assertNotNull(bluegigaDevice.getCharacteristic(TX_POWER_LEVEL_CHARACTERISTIC_URL));
+        assertNotNull(bluegigaDevice.getCharacteristic(13));
+        assertNotNull(bluegigaDevice.getCharacteristic(3));
+    }
+
+    @Test
+    public void testLazyDiscoveryDisconnected() {
+        BluegigaGattCache gattCache = mock(BluegigaGattCache.class);
+        when(gattCache.load(DEVICE_URL.getDeviceAddress())).thenReturn(null);
+        when(bluegigaHandler.getGattCache()).thenReturn(gattCache);
+        when(bluegigaHandler.isLazyDiscovery()).thenReturn(true);
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+        BluegigaService batteryService = bluegigaDevice.getService(BATTERY_SERVICE_URL);
+        // the other service has already been discovered
+        bluegigaDevice.getServices().stream().filter(service -> service != batteryService)
+            .forEach(service -> ((BluegigaService) service).setResolver(null));
+
+        // the device gets disconnected while the service is being discovered
+        Answer<Void> declarations =
+            stream(Collections.singletonList(mockDeclarationEvent(2, BATTERY_LEVEL_CHARACTERISTIC_DECLARATION)));
+        doAnswer(invocation -> {
+            declarations.answer(invocation);
+            disconnectDevice();
+            return null;
+        }).when(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), eq(1), eq(10), any(Consumer.class));
+
+        try {
+            batteryService.getCharacteristics();
+            fail("Stale service attributes must not be published");
+        } catch (BluegigaException ignore) { /* do nothing */ }
+
+        // results are discarded and not persisted
+        assertFalse(batteryService.isResolved());
+        assertTrue(bluegigaDevice.getServices().isEmpty());
+        assertNull(bluegigaDevice.getCharacteristic(3));
+        verify(gattCache, never()).store(any(), any());
+    }
+
+    @Test
+    public void testDiscoveryAllowlists() {
+        List<BlueGigaAttributeValueEvent> declarations = new ArrayList<>();
+        declarations.add(mockDeclarationEvent(2, BATTERY_LEVEL_CHARACTERISTIC_DECLARATION));
+        doAnswer(stream(declarations))
+            .when(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), eq(1), eq(10), any(Consumer.class));
+        when(bluegigaHandler.getServiceAllowlist()).thenReturn(
+            Collections.singleton(BATTERY_SERVICE_URL.getServiceUUID()));
+        when(bluegigaHandler.getCharacteristicAllowlist()).thenReturn(Collections.emptySet());
+
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+
+        // only the allowed service handle range is discovered
+        List<Service> services = bluegigaDevice.getServices();
+        assertEquals(1, services.size());
+        assertEquals(BATTERY_SERVICE_URL, services.get(0).getURL());
+        assertEquals(1, services.get(0).getCharacteristics().size());
+        assertEquals(2, services.get(0).getCharacteristics().get(0).getFlags().size());
+        verify(bluegigaHandler).streamDeclarations(eq(CONNECTION_HANDLE), eq(1), eq(10), any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10), any(Consumer.class));
+        verify(bluegigaHandler, never()).streamCharacteristics(eq(CONNECTION_HANDLE), eq(14), eq(15),
+            any(Consumer.class));
+        verify(bluegigaHandler, never()).streamDeclarations(eq(CONNECTION_HANDLE), any(Consumer.class));
+    }
+
+    @Test
+    public void testCharacteristicAllowlist() {
+        when(bluegigaHandler.getServiceAllowlist()).thenReturn(Collections.emptySet());
+        when(bluegigaHandler.getCharacteristicAllowlist()).thenReturn(
+            Collections.singleton(TX_POWER_LEVEL_CHARACTERISTIC_URL.getCharacteristicUUID()));
+
+        bluegigaDevice.bluegigaEventReceived(mockConnectionStatusEvent());
+
+        assertEquals(2, bluegigaDevice.getServices().size());
+        assertTrue(bluegigaDevice.getService(BATTERY_SERVICE_URL).getCharacteristics().isEmpty());
+        assertEquals(1, bluegigaDevice.getService(TX_POWER_SERVICE_URL).getCharacteristics().size());
+        // descriptors of characteristics that are not allowed are not discovered
+        verify(bluegigaHandler, never()).streamCharacteristics(eq(CONNECTION_HANDLE), eq(4), eq(10),
+            any(Consumer.class));
+        verify(bluegigaHandler).streamCharacteristics(eq(CONNECTION_HANDLE), eq(14), eq(15), any(Consumer.class));
+    }
+
+    private void disconnectDevice() {
+        BlueGigaDisconnectedEvent disconnectedEvent = mock(BlueGigaDisconnectedEvent.class);
+        when(disconnectedEvent.getConnection()).thenReturn(CONNECTION_HANDLE);
+        when(disconnectedEvent.getReason()).thenReturn(BgApiResponse.UNKNOWN);
+        bluegigaDevice.bluegigaEventReceived(disconnectedEvent);
+    }
+
     private void assertServices() {
         List<Service> services = bluegigaDevice.getServices();
         assertEquals(2, services.size());
@@ -638,7 +1176,7 @@ public class BluegigaDeviceTest {
         assertTrue(serviceMap.containsKey(BATTERY_SERVICE_URL));
         assertTrue(serviceMap.containsKey(TX_POWER_SERVICE_URL));
 
-        verify(bluegigaHandler).getServices(CONNECTION_HANDLE);
+        verify(bluegigaHandler).streamServices(eq(CONNECTION_HANDLE), any(Consumer.class));
     }
 
     private void assertCharacteristics() {
@@ -663,6 +1201,70 @@ public class BluegigaDeviceTest {
         assertTrue(accessTypes.contains(CharacteristicAccessType.READ));
     }
 
+    @Test
+    public void testReadMultiple() {
+        BluegigaCharacteristic first = mockCharacteristic(20, 2, new byte[] {1, 2});
+        BluegigaCharacteristic unknown = mockCharacteristic(21, -1, new byte[] {3});
+        BluegigaCharacteristic second = mockCharacteristic(22, 1, new byte[] {4});
+        BluegigaCharacteristic third = mockCharacteristic(23, 20, new byte[20]);
+        BluegigaCharacteristic fourth = mockCharacteristic(24, 1, new byte[] {6});
+        BluegigaCharacteristic fifth = mockCharacteristic(25, 2, new byte[] {7, 8});
+
+        when(bluegigaHandler.readMultiple(anyInt(), eq(new int[] {20, 22}))).thenReturn(new int[] {11, 12, 14});
+        // the response does not fit the known lengths
+        when(bluegigaHandler.readMultiple(anyInt(), eq(new int[] {23, 24}))).thenReturn(new int[] {1});
+
+        Map<BluegigaCharacteristic, byte[]> values = bluegigaDevice.readMultiple(
+            Arrays.asList(first, unknown, second, third, fourth, fifth));
+
+        assertEquals(Arrays.asList(first, unknown, second, third, fourth, fifth), new ArrayList<>(values.keySet()));
+        assertArrayEquals(new byte[] {11, 12}, values.get(first));
+        assertArrayEquals(new byte[] {3}, values.get(unknown));
+        assertArrayEquals(new byte[] {14}, values.get(second));
+        assertArrayEquals(new byte[20], values.get(third));
+        assertArrayEquals(new byte[] {6}, values.get(fourth));
+        assertArrayEquals(new byte[] {7, 8}, values.get(fifth));
+
+        verify(first, never()).readValue();
+        verify(second, never()).readValue();
+        verify(unknown).readValue();
+        verify(third).readValue();
+        verify(fourth).readValue();
+        // a single characteristic is not batched
+        verify(bluegigaHandler, never()).readMultiple(anyInt(), eq(new int[] {25}));
+        verify(fifth).readValue();
+    }
+
+    @Test
+    public void testReadMultipleError() {
+        BluegigaCharacteristic first = mockCharacteristic(20, 1, new byte[] {1});
+        BluegigaCharacteristic second = mockCharacteristic(21, 1, new byte[] {2});
+        when(bluegigaHandler.readMultiple(anyInt(), any()))
+            .thenThrow(new BluegigaProcedureException("error", BgApiResponse.ATT_NOT_FOUND));
+
+        Map<BluegigaCharacteristic, byte[]> values = bluegigaDevice.readMultiple(Arrays.asList(first, second));
+
+        assertArrayEquals(new byte[] {1}, values.get(first));
+        assertArrayEquals(new byte[] {2}, values.get(second));
+    }
+
+    private BluegigaCharacteristic mockCharacteristic(int handle, int valueLength, byte[] value) {
+        BluegigaCharacteristic characteristic = mock(BluegigaCharacteristic.class);
+        when(characteristic.getCharacteristicHandle()).thenReturn(handle);
+        when(characteristic.getValueLength()).thenReturn(valueLength);
+        when(characteristic.readValue()).thenReturn(value);
+        return characteristic;
+    }
+
+    private static <E> Answer<Void> stream(List<E> events) {
+        // the consumer is the last argument of streaming procedures
+        return invocation -> {
+            Object[] arguments = invocation.getArguments();
+            events.forEach((Consumer<E>) arguments[arguments.length - 1]);
+            return null;
+        };
+    }
+
     private BlueGigaGroupFoundEvent mockServiceEvent(URL url, int startHandle, int endHandle) {
         BlueGigaGroupFoundEvent event = mock(BlueGigaGroupFoundEvent.class);
         when(event.getUuid()).thenReturn(UUID.fromString(url.getServiceUUID()));
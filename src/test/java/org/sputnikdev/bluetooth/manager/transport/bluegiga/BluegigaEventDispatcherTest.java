@@ -0,0 +1,249 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaEventListener;
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectedEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.gap.BlueGigaScanResponseEvent;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BluegigaEventDispatcherTest {
+
+    private static final String SENDER = "11:22:33:44:55:66";
+
+    private final BluegigaEventDispatcher dispatcher = new BluegigaEventDispatcher();
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        dispatcher.dispose();
+    }
+
+    @Test
+    public void testDispatchInOrder() throws Exception {
+        BlueGigaEventListener listener = mock(BlueGigaEventListener.class);
+        dispatcher.addListener(listener);
+
+        BlueGigaResponse first = mockScanEvent();
+        BlueGigaResponse second = mockScanEvent();
+        dispatcher.dispatch(first);
+        dispatcher.dispatch(second);
+
+        verify(listener, timeout(1000)).bluegigaEventReceived(second);
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).bluegigaEventReceived(first);
+        inOrder.verify(listener).bluegigaEventReceived(second);
+
+        dispatcher.removeListener(listener);
+        dispatcher.dispatch(mockScanEvent());
+        assertEquals(0, dispatcher.getDroppedEvents());
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        dispatcher.configure(1, 2, BluegigaEventDispatcher.OverflowPolicy.DROP_NEWEST);
+        BlueGigaEventListener listener = blockingListener();
+
+        BlueGigaResponse dropped = mockScanEvent();
+        fillQueue();
+        dispatcher.dispatch(dropped);
+
+        assertEquals(1, dispatcher.getDroppedEvents());
+        assertEquals(2, dispatcher.getQueueDepth());
+        assertEquals(2, dispatcher.getMaxQueueDepth());
+
+        release.countDown();
+        Thread.sleep(100);
+        verify(listener, never()).bluegigaEventReceived(dropped);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        dispatcher.configure(1, 2, BluegigaEventDispatcher.OverflowPolicy.DROP_OLDEST);
+        BlueGigaEventListener listener = blockingListener();
+
+        BlueGigaResponse oldest = fillQueue();
+        BlueGigaResponse newest = mockScanEvent();
+        dispatcher.dispatch(newest);
+
+        assertEquals(1, dispatcher.getDroppedEvents());
+
+        release.countDown();
+        verify(listener, timeout(1000)).bluegigaEventReceived(newest);
+        verify(listener, never()).bluegigaEventReceived(oldest);
+    }
+
+    @Test
+    public void testConnectionEventsReplaceScanEvents() throws Exception {
+        dispatcher.configure(1, 2, BluegigaEventDispatcher.OverflowPolicy.DROP_NEWEST);
+        BlueGigaEventListener listener = blockingListener();
+
+        BlueGigaResponse oldest = fillQueue();
+        BlueGigaDisconnectedEvent disconnected = mock(BlueGigaDisconnectedEvent.class);
+        // the queue is full, the oldest scan response event gives way to the connection event straight away
+        long started = System.nanoTime();
+        dispatcher.dispatch(disconnected);
+        assertTrue(elapsed(started) < BluegigaEventDispatcher.OFFER_TIMEOUT);
+        assertEquals(2, dispatcher.getQueueDepth());
+        assertEquals(1, dispatcher.getDroppedEvents());
+
+        release.countDown();
+        verify(listener, timeout(1000)).bluegigaEventReceived(disconnected);
+        verify(listener, never()).bluegigaEventReceived(oldest);
+    }
+
+    @Test
+    public void testConnectionEventsBackpressure() throws Exception {
+        dispatcher.configure(1, 1, BluegigaEventDispatcher.OverflowPolicy.DROP_NEWEST);
+        BlueGigaEventListener listener = blockingListener();
+
+        BlueGigaDisconnectedEvent first = mock(BlueGigaDisconnectedEvent.class);
+        BlueGigaDisconnectedEvent second = mock(BlueGigaDisconnectedEvent.class);
+        BlueGigaDisconnectedEvent third = mock(BlueGigaDisconnectedEvent.class);
+        dispatcher.dispatch(first);
+
+        // the queue is full of connection events, the caller waits for the worker to catch up
+        new Thread(() -> {
+            try {
+                Thread.sleep(BluegigaEventDispatcher.OFFER_TIMEOUT / 4);
+            } catch (InterruptedException ignore) { }
+            release.countDown();
+        }).start();
+        dispatcher.dispatch(second);
+        verify(listener, timeout(1000)).bluegigaEventReceived(second);
+        verify(listener).bluegigaEventReceived(first);
+        assertEquals(0, dispatcher.getDroppedEvents());
+
+        // the worker does not catch up in time, the event gets dropped
+        BlueGigaEventListener stuck = mock(BlueGigaEventListener.class);
+        CountDownLatch stuckEntered = new CountDownLatch(1);
+        CountDownLatch stuckRelease = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            stuckEntered.countDown();
+            stuckRelease.await();
+            return null;
+        }).when(stuck).bluegigaEventReceived(any());
+        dispatcher.removeListener(listener);
+        dispatcher.addListener(stuck);
+        try {
+            dispatcher.dispatch(mockScanEvent());
+            assertTrue(stuckEntered.await(1, TimeUnit.SECONDS));
+            dispatcher.dispatch(first);
+            long started = System.nanoTime();
+            dispatcher.dispatch(third);
+            assertTrue(elapsed(started) >= BluegigaEventDispatcher.OFFER_TIMEOUT);
+            assertEquals(1, dispatcher.getDroppedEvents());
+        } finally {
+            stuckRelease.countDown();
+        }
+        verify(stuck, timeout(1000)).bluegigaEventReceived(first);
+        verify(stuck, never()).bluegigaEventReceived(third);
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        dispatcher.configure(1, 2, BluegigaEventDispatcher.OverflowPolicy.BLOCK);
+        BlueGigaEventListener listener = blockingListener();
+
+        fillQueue();
+        BlueGigaResponse blocked = mockScanEvent();
+        long started = System.nanoTime();
+        dispatcher.dispatch(blocked);
+        // the worker has not caught up, the event is dropped after the caller has been held up
+        assertTrue(elapsed(started) >= BluegigaEventDispatcher.OFFER_TIMEOUT);
+        assertEquals(1, dispatcher.getDroppedEvents());
+        assertEquals(2, dispatcher.getQueueDepth());
+
+        release.countDown();
+        Thread.sleep(100);
+        verify(listener, never()).bluegigaEventReceived(blocked);
+    }
+
+    @Test
+    public void testPartitionByAddress() throws Exception {
+        dispatcher.configure(2, 10, BluegigaEventDispatcher.OverflowPolicy.DROP_NEWEST);
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        BlueGigaEventListener listener = mock(BlueGigaEventListener.class);
+        doAnswer(invocation -> threads.add(Thread.currentThread()))
+            .when(listener).bluegigaEventReceived(any());
+        dispatcher.addListener(listener);
+
+        // a connection handle that would be handled by a different worker than the device address
+        int connection = (SENDER.hashCode() & Integer.MAX_VALUE) % 2 + 1;
+        BlueGigaConnectionStatusEvent status = mock(BlueGigaConnectionStatusEvent.class);
+        when(status.getConnection()).thenReturn(connection);
+        when(status.getAddress()).thenReturn(SENDER);
+        BlueGigaAttributeValueEvent value = mock(BlueGigaAttributeValueEvent.class);
+        when(value.getConnection()).thenReturn(connection);
+
+        dispatcher.dispatch(mockScanEvent());
+        dispatcher.dispatch(status);
+        dispatcher.dispatch(value);
+        dispatcher.dispatch(mockScanEvent());
+
+        verify(listener, timeout(1000).times(4)).bluegigaEventReceived(any());
+        assertEquals(4, threads.size());
+        assertEquals(1, new HashSet<>(threads).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConfigureStarted() throws Exception {
+        dispatcher.addListener(mock(BlueGigaEventListener.class));
+        dispatcher.dispatch(mockScanEvent());
+        dispatcher.configure(1, 1, BluegigaEventDispatcher.OverflowPolicy.BLOCK);
+    }
+
+    private BlueGigaEventListener blockingListener() throws Exception {
+        BlueGigaEventListener listener = mock(BlueGigaEventListener.class);
+        doAnswer(invocation -> {
+            entered.countDown();
+            release.await();
+            return null;
+        }).when(listener).bluegigaEventReceived(any());
+        dispatcher.addListener(listener);
+        // occupy the worker thread
+        dispatcher.dispatch(mockScanEvent());
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        return listener;
+    }
+
+    private BlueGigaResponse fillQueue() {
+        BlueGigaResponse first = mockScanEvent();
+        dispatcher.dispatch(first);
+        dispatcher.dispatch(mockScanEvent());
+        return first;
+    }
+
+    private static long elapsed(long started) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    private static BlueGigaScanResponseEvent mockScanEvent() {
+        BlueGigaScanResponseEvent event = mock(BlueGigaScanResponseEvent.class);
+        when(event.getSender()).thenReturn(SENDER);
+        return event;
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import com.zsmartsystems.bluetooth.bluegiga.BlueGigaEventListener;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectedEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.gap.BlueGigaScanResponseEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BluegigaEventRouterTest {
+
+    private static final String DEVICE_1 = "11:22:33:44:55:66";
+    private static final String DEVICE_2 = "66:55:44:33:22:11";
+    private static final int CONNECTION_HANDLE = 1;
+    private static final int CHARACTERISTIC_HANDLE = 5;
+
+    private final BluegigaEventRouter router = new BluegigaEventRouter();
+
+    @Test
+    public void testScanEvents() {
+        BlueGigaEventListener device1 = mock(BlueGigaEventListener.class);
+        BlueGigaEventListener device2 = mock(BlueGigaEventListener.class);
+        BlueGigaEventListener adapter = mock(BlueGigaEventListener.class);
+        router.addDeviceListener(DEVICE_1, device1);
+        router.addDeviceListener(DEVICE_2, device2);
+        router.addListener(adapter);
+
+        BlueGigaScanResponseEvent event = mock(BlueGigaScanResponseEvent.class);
+        when(event.getSender()).thenReturn(DEVICE_1);
+        router.bluegigaEventReceived(event);
+
+        verify(device1).bluegigaEventReceived(event);
+        verify(device2, never()).bluegigaEventReceived(any());
+        verify(adapter).bluegigaEventReceived(event);
+
+        router.removeDeviceListener(DEVICE_1, device1);
+        router.bluegigaEventReceived(event);
+        verify(device1, times(1)).bluegigaEventReceived(event);
+        verify(adapter, times(2)).bluegigaEventReceived(event);
+    }
+
+    @Test
+    public void testConnectionEvents() {
+        BlueGigaEventListener device1 = mock(BlueGigaEventListener.class);
+        BlueGigaEventListener device2 = mock(BlueGigaEventListener.class);
+        router.addDeviceListener(DEVICE_1, device1);
+        router.addDeviceListener(DEVICE_2, device2);
+
+        BlueGigaConnectionStatusEvent statusEvent = mock(BlueGigaConnectionStatusEvent.class);
+        when(statusEvent.getAddress()).thenReturn(DEVICE_1);
+        when(statusEvent.getConnection()).thenReturn(CONNECTION_HANDLE);
+        router.bluegigaEventReceived(statusEvent);
+        verify(device1).bluegigaEventReceived(statusEvent);
+
+        BlueGigaDisconnectedEvent disconnectedEvent = mock(BlueGigaDisconnectedEvent.class);
+        when(disconnectedEvent.getConnection()).thenReturn(CONNECTION_HANDLE);
+        router.bluegigaEventReceived(disconnectedEvent);
+        verify(device1).bluegigaEventReceived(disconnectedEvent);
+        verify(device2, never()).bluegigaEventReceived(any());
+
+        // the connection is forgotten
+        router.bluegigaEventReceived(disconnectedEvent);
+        verify(device1, times(1)).bluegigaEventReceived(disconnectedEvent);
+    }
+
+    @Test
+    public void testAttributeEvents() {
+        BlueGigaEventListener characteristic = mock(BlueGigaEventListener.class);
+        router.addAttributeListener(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, characteristic);
+        router.addAttributeListener(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, characteristic);
+        assertTrue(router.hasListeners());
+
+        router.bluegigaEventReceived(mockValueEvent(2, CHARACTERISTIC_HANDLE));
+        router.bluegigaEventReceived(mockValueEvent(CONNECTION_HANDLE, 6));
+        verify(characteristic, never()).bluegigaEventReceived(any());
+
+        BlueGigaAttributeValueEvent event = mockValueEvent(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE);
+        router.bluegigaEventReceived(event);
+        verify(characteristic, times(1)).bluegigaEventReceived(event);
+
+        router.removeAttributeListener(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, characteristic);
+        assertFalse(router.hasListeners());
+    }
+
+    private static BlueGigaAttributeValueEvent mockValueEvent(int connectionHandle, int attHandle) {
+        BlueGigaAttributeValueEvent event = mock(BlueGigaAttributeValueEvent.class);
+        when(event.getConnection()).thenReturn(connectionHandle);
+        when(event.getAttHandle()).thenReturn(attHandle);
+        return event;
+    }
+
+}
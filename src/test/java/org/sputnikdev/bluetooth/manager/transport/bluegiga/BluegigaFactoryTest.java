@@ -18,14 +18,17 @@ import org.sputnikdev.bluetooth.manager.DiscoveredAdapter;
 import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
 import org.sputnikdev.bluetooth.manager.transport.Device;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -35,7 +38,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
@@ -401,38 +406,46 @@ public class BluegigaFactoryTest {
 
         BluegigaDevice device1 = bluegigaFactory.getDevice(ADAPTER_1_DEVICE_1_URL);
         BluegigaDevice device2 = bluegigaFactory.getDevice(ADAPTER_2_DEVICE_1_URL);
-        BluegigaService bluegigaService1 = mockService(CHARATERISTIC_1_URL.getServiceURL(),
-            mockCharacteristic(CHARATERISTIC_1_URL));
-        BluegigaService bluegigaService2 = mockService(CHARATERISTIC_2_URL.getServiceURL(),
-            mockCharacteristic(CHARATERISTIC_2_URL));
-        when(device1.getService(CHARATERISTIC_1_URL.getServiceURL())).thenReturn(bluegigaService1);
-        when(device1.getService(CHARATERISTIC_2_URL.getServiceURL())).thenReturn(bluegigaService2);
-
-        BluegigaService bluegigaService3 = mockService(CHARATERISTIC_3_URL.getServiceURL(),
-            mockCharacteristic(CHARATERISTIC_3_URL));
-        when(device2.getService(CHARATERISTIC_3_URL.getServiceURL())).thenReturn(bluegigaService3);
+        BluegigaCharacteristic characteristic1 = mockCharacteristic(CHARATERISTIC_1_URL);
+        BluegigaCharacteristic characteristic2 = mockCharacteristic(CHARATERISTIC_2_URL);
+        BluegigaCharacteristic characteristic3 = mockCharacteristic(CHARATERISTIC_3_URL);
+        when(device1.getCharacteristic(CHARATERISTIC_1_URL)).thenReturn(characteristic1);
+        when(device1.getCharacteristic(CHARATERISTIC_2_URL)).thenReturn(characteristic2);
+        when(device2.getCharacteristic(CHARATERISTIC_3_URL)).thenReturn(characteristic3);
 
         assertNotNull(bluegigaFactory.getCharacteristic(CHARATERISTIC_1_URL));
         assertNotNull(bluegigaFactory.getCharacteristic(CHARATERISTIC_2_URL));
         assertNotNull(bluegigaFactory.getCharacteristic(CHARATERISTIC_3_URL));
+        assertNull(bluegigaFactory.getCharacteristic(CHARATERISTIC_3_URL.copyWithCharacteristic("1234")));
     }
 
 
     @Test
-    public void testGetProtocolName() throws Exception {
-        assertEquals("bluegiga", bluegigaFactory.getProtocolName());
-    }
+    public void testWriteValueStream() throws Exception {
+        mockDevices();
 
-    private BluegigaService mockService(URL url, BluegigaCharacteristic... characteristics) {
-        BluegigaService service = mock(BluegigaService.class);
-        when(service.getURL()).thenReturn(url);
-        when(service.getCharacteristics()).thenReturn(Arrays.asList(characteristics));
-        for (BluegigaCharacteristic characteristic : characteristics) {
-            //doReturn(characteristic).when(service).getCharacteristic(characteristic.getURL());
-            URL characteristicURL = characteristic.getURL();
-            when(service.getCharacteristic(characteristicURL)).thenReturn(characteristic);
+        BluegigaDevice device = bluegigaFactory.getDevice(ADAPTER_1_DEVICE_1_URL);
+        BluegigaCharacteristic characteristic = mockCharacteristic(CHARATERISTIC_1_URL);
+        when(device.getCharacteristic(CHARATERISTIC_1_URL)).thenReturn(characteristic);
+        InputStream input = new ByteArrayInputStream(new byte[40]);
+        CompletableFuture<BluegigaWriteStream> written = new CompletableFuture<>();
+        when(characteristic.writeValueStream(input)).thenReturn(written);
+
+        assertSame(written, bluegigaFactory.writeValueStream(CHARATERISTIC_1_URL, input));
+
+        CompletableFuture<BluegigaWriteStream> notFound =
+            bluegigaFactory.writeValueStream(CHARATERISTIC_1_URL.copyWithCharacteristic("1234"), input);
+        try {
+            notFound.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof BluegigaException);
         }
-        return service;
+    }
+
+    @Test
+    public void testGetProtocolName() throws Exception {
+        assertEquals("bluegiga", bluegigaFactory.getProtocolName());
     }
 
     private BluegigaCharacteristic mockCharacteristic(URL url) {
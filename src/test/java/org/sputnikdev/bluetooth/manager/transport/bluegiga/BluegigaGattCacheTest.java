@@ -0,0 +1,89 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BluegigaGattCacheTest {
+
+    private static final String ADDRESS = "11:22:33:44:55:66";
+    private static final UUID SERVICE_UUID = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    private static final UUID DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BluegigaGattCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new BluegigaGattCache(folder.getRoot());
+    }
+
+    @Test
+    public void testStoreLoad() {
+        assertNull(cache.load(ADDRESS));
+
+        BluegigaGattCache.ServiceEntry service = new BluegigaGattCache.ServiceEntry(SERVICE_UUID, 1, 10);
+        BluegigaGattCache.CharacteristicEntry characteristic =
+            new BluegigaGattCache.CharacteristicEntry(CHARACTERISTIC_UUID, 3, 0x12);
+        characteristic.addDescriptor(new BluegigaGattCache.DescriptorEntry(DESCRIPTOR_UUID, 4));
+        service.addCharacteristic(characteristic);
+        cache.store(ADDRESS, Collections.singletonList(service));
+
+        assertTrue(new File(folder.getRoot(), "112233445566.gatt").exists());
+
+        List<BluegigaGattCache.ServiceEntry> services = cache.load(ADDRESS);
+        assertEquals(1, services.size());
+        assertEquals(SERVICE_UUID, services.get(0).getUuid());
+        assertEquals(1, services.get(0).getHandleStart());
+        assertEquals(10, services.get(0).getHandleEnd());
+
+        List<BluegigaGattCache.CharacteristicEntry> characteristics = services.get(0).getCharacteristics();
+        assertEquals(1, characteristics.size());
+        assertEquals(CHARACTERISTIC_UUID, characteristics.get(0).getUuid());
+        assertEquals(3, characteristics.get(0).getHandle());
+        assertEquals(0x12, characteristics.get(0).getFlags());
+
+        List<BluegigaGattCache.DescriptorEntry> descriptors = characteristics.get(0).getDescriptors();
+        assertEquals(1, descriptors.size());
+        assertEquals(DESCRIPTOR_UUID, descriptors.get(0).getUuid());
+        assertEquals(4, descriptors.get(0).getHandle());
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.store(ADDRESS, Collections.singletonList(new BluegigaGattCache.ServiceEntry(SERVICE_UUID, 1, 10)));
+        assertEquals(1, cache.load(ADDRESS).size());
+
+        cache.invalidate(ADDRESS);
+        assertNull(cache.load(ADDRESS));
+        assertFalse(new File(folder.getRoot(), "112233445566.gatt").exists());
+    }
+
+    @Test
+    public void testCorruptedFile() throws IOException {
+        File file = new File(folder.getRoot(), "112233445566.gatt");
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[] {1, 2, 3});
+        }
+
+        assertNull(cache.load(ADDRESS));
+        assertFalse(file.exists());
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BluegigaGattTemplatesTest {
+
+    private static final String BATTERY_SERVICE = "0000180f-0000-1000-8000-00805f9b34fb";
+    private static final List<BluegigaGattCache.ServiceEntry> SERVICES = Collections.singletonList(
+        new BluegigaGattCache.ServiceEntry(UUID.fromString(BATTERY_SERVICE), 1, 10));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParse() {
+        BluegigaGattTemplates.Rule rule = BluegigaGattTemplates.Rule.parse("name:Smartlock");
+        assertEquals(BluegigaGattTemplates.Rule.Type.NAME, rule.getType());
+        assertEquals("Smartlock", rule.getValue());
+
+        rule = BluegigaGattTemplates.Rule.parse(" manufacturer : 0x004c");
+        assertEquals(BluegigaGattTemplates.Rule.Type.MANUFACTURER, rule.getType());
+        assertEquals("76", rule.getValue());
+
+        assertEquals(BATTERY_SERVICE, BluegigaGattTemplates.Rule.parse("service:180f").getValue());
+        assertEquals(BATTERY_SERVICE, BluegigaGattTemplates.Rule.parse("service:0000180f").getValue());
+        assertEquals(BATTERY_SERVICE, BluegigaGattTemplates.Rule.parse("service:" + BATTERY_SERVICE).getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidType() {
+        BluegigaGattTemplates.Rule.parse("model:123");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidValue() {
+        BluegigaGattTemplates.Rule.parse("manufacturer:");
+    }
+
+    @Test
+    public void testMatch() {
+        BluegigaGattTemplates templates = new BluegigaGattTemplates(Arrays.asList(
+            BluegigaGattTemplates.Rule.parse("name:Smart"),
+            BluegigaGattTemplates.Rule.parse("manufacturer:76"),
+            BluegigaGattTemplates.Rule.parse("service:180f")), null);
+
+        assertEquals("name:Smart", templates.match("Smartlock", Collections.emptySet(),
+            Collections.emptySet()).toString());
+        assertEquals("manufacturer:76", templates.match("Lock", Collections.singleton((short) 76),
+            Collections.emptySet()).toString());
+        assertEquals("service:" + BATTERY_SERVICE, templates.match(null, Collections.emptySet(),
+            Collections.singleton(BATTERY_SERVICE)).toString());
+        assertNull(templates.match("Lock", Collections.singleton((short) 77), Collections.emptySet()));
+    }
+
+    @Test
+    public void testCaptureApplyInvalidate() {
+        BluegigaGattTemplates.Rule rule = BluegigaGattTemplates.Rule.parse("name:Smart");
+        BluegigaGattTemplates templates = new BluegigaGattTemplates(Collections.singletonList(rule),
+            new BluegigaGattCache(folder.getRoot()));
+
+        assertNull(templates.apply("11:22:33:44:55:66", rule));
+        assertFalse(templates.isApplied("11:22:33:44:55:66"));
+
+        templates.capture(rule, SERVICES);
+        assertSame(SERVICES, templates.apply("11:22:33:44:55:66", rule));
+        assertTrue(templates.isApplied("11:22:33:44:55:66"));
+
+        // templates are persisted
+        BluegigaGattTemplates restored = new BluegigaGattTemplates(Collections.singletonList(rule),
+            new BluegigaGattCache(folder.getRoot()));
+        assertNotNull(restored.apply("11:22:33:44:55:77", rule));
+
+        templates.invalidate("11:22:33:44:55:66");
+        assertFalse(templates.isApplied("11:22:33:44:55:66"));
+        assertNull(templates.apply("11:22:33:44:55:66", rule));
+        assertNull(new BluegigaGattTemplates(Collections.singletonList(rule),
+            new BluegigaGattCache(folder.getRoot())).apply("11:22:33:44:55:77", rule));
+    }
+
+    @Test
+    public void testRulesDifferingInPunctuationDoNotCollide() {
+        BluegigaGattTemplates.Rule dash = BluegigaGattTemplates.Rule.parse("name:Foo-1");
+        BluegigaGattTemplates.Rule space = BluegigaGattTemplates.Rule.parse("name:Foo 1");
+        BluegigaGattTemplates.Rule lower = BluegigaGattTemplates.Rule.parse("name:foo-1");
+        assertFalse(BluegigaGattTemplates.getKey(dash).equals(BluegigaGattTemplates.getKey(space)));
+        assertFalse(BluegigaGattTemplates.getKey(dash).equals(BluegigaGattTemplates.getKey(lower)));
+
+        BluegigaGattCache cache = new BluegigaGattCache(folder.getRoot());
+        BluegigaGattTemplates templates = new BluegigaGattTemplates(Arrays.asList(dash, space, lower), cache);
+        templates.capture(dash, SERVICES);
+
+        BluegigaGattTemplates restored = new BluegigaGattTemplates(Arrays.asList(dash, space, lower), cache);
+        assertNotNull(restored.apply("11:22:33:44:55:66", dash));
+        assertNull(restored.apply("11:22:33:44:55:77", space));
+        assertNull(restored.apply("11:22:33:44:55:88", lower));
+        // templates are kept apart from device entries
+        assertEquals(Collections.singletonList("templates"), Arrays.asList(folder.getRoot().list()));
+    }
+
+}
@@ -9,10 +9,14 @@ import com.zsmartsystems.bluetooth.bluegiga.BlueGigaSerialHandler;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeValueEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeWriteCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaAttributeWriteResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaExecuteWriteCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaExecuteWriteResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationFoundEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaFindInformationResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaGroupFoundEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaPrepareWriteCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaPrepareWriteResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaProcedureCompletedEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByGroupTypeCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByGroupTypeResponse;
@@ -20,6 +24,13 @@ import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaRead
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByHandleResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByTypeCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadByTypeResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadLongCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadLongResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadMultipleCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadMultipleResponse;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaReadMultipleResponseEvent;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaWriteCommandCommand;
+import com.zsmartsystems.bluetooth.bluegiga.command.attributeclient.BlueGigaWriteCommandResponse;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaConnectionStatusEvent;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectCommand;
 import com.zsmartsystems.bluetooth.bluegiga.command.connection.BlueGigaDisconnectResponse;
@@ -51,21 +62,32 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 import org.sputnikdev.bluetooth.URL;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.verifyPrivate;
@@ -107,11 +129,17 @@ public class BluegigaHandlerTest {
         BlueGigaEventListener listener = mock(BlueGigaEventListener.class);
         handler.addEventListener(listener);
 
-        verify(bgHandler).addEventListener(listener);
+        // listeners are notified by the dispatch stage, not by the serial handler
+        verify(bgHandler, never()).addEventListener(listener);
+        BlueGigaResponse event = mockEvent(BlueGigaAttributeValueEvent.class, CONNECTION_HANDLE);
+        handler.bluegigaEventReceived(event);
+        verify(listener, timeout(1000)).bluegigaEventReceived(event);
 
         handler.removeEventListener(listener);
 
-        verify(bgHandler).removeEventListener(listener);
+        handler.bluegigaEventReceived(event);
+        Thread.sleep(100);
+        verify(listener, times(1)).bluegigaEventReceived(event);
     }
 
     @Test
@@ -121,20 +149,36 @@ public class BluegigaHandlerTest {
         when(bgHandler.isAlive()).thenReturn(true);
         assertFalse(handler.isAlive());
 
-        mockTransaction(BlueGigaHelloCommand.class, null);
-        assertFalse(handler.isAlive());
+        // any traffic is a heartbeat
+        handler.bluegigaEventReceived(mock(BlueGigaResponse.class));
+        assertTrue(handler.isAlive());
 
-        BlueGigaHelloResponse helloResponse = mock(BlueGigaHelloResponse.class);
-        mockTransaction(BlueGigaHelloCommand.class, helloResponse);
+        // the cached state is returned, no requests are sent to the adapter
         assertTrue(handler.isAlive());
+        verify(bgHandler, never()).sendTransaction(isA(BlueGigaHelloCommand.class), any(), anyLong());
 
-        when(bgHandler.sendTransaction(isA(BlueGigaHelloCommand.class), eq(BlueGigaHelloResponse.class), anyLong()))
-                .thenThrow(Exception.class);
+        when(bgHandler.isAlive()).thenReturn(false);
         assertFalse(handler.isAlive());
 
         verify(bgHandler, times(5)).isAlive();
     }
 
+    @Test
+    public void testIsAliveTransaction() throws Exception {
+        when(bgHandler.isAlive()).thenReturn(true);
+        BlueGigaGetInfoResponse response = mock(BlueGigaGetInfoResponse.class);
+        mockTransaction(BlueGigaGetInfoCommand.class, response);
+        handler.bgGetInfo();
+        assertTrue(handler.isAlive());
+
+        when(bgHandler.sendTransaction(isA(BlueGigaGetInfoCommand.class), eq(BlueGigaGetInfoResponse.class),
+            anyLong())).thenThrow(Exception.class);
+        try {
+            handler.bgGetInfo();
+        } catch (BlueGigaException ignore) { }
+        assertFalse(handler.isAlive());
+    }
+
     @Test
     public void testGetAdapterAddress() throws Exception {
         assertEquals(adapterAddress, handler.getAdapterAddress());
@@ -203,6 +247,95 @@ public class BluegigaHandlerTest {
         assertEquals(2, events.size());
     }
 
+    @Test
+    public void testGetDeclarationsResumedAfterTimeout() throws Exception {
+        Whitebox.setInternalState(handler, "procedureTimeoutCeiling", 200L);
+        BlueGigaAttributeValueEvent declaration1 = mockDeclarationEvent(2);
+        BlueGigaAttributeValueEvent declaration2 = mockDeclarationEvent(5);
+        BlueGigaAttributeValueEvent declaration3 = mockDeclarationEvent(8);
+        BlueGigaProcedureCompletedEvent completed = mockEvent(BlueGigaProcedureCompletedEvent.class,
+            CONNECTION_HANDLE);
+        BlueGigaReadByTypeResponse response = mock(BlueGigaReadByTypeResponse.class);
+        when(response.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        List<Integer> starts = new ArrayList<>();
+        when(bgHandler.sendTransaction(isA(BlueGigaReadByTypeCommand.class), any(), anyLong())).thenAnswer(
+            invocation -> {
+                // BGAPI header (4 bytes), connection (1 byte), start handle (2 bytes LE)
+                int[] command = invocation.getArgumentAt(0, BlueGigaReadByTypeCommand.class).serialize();
+                starts.add(command[5] | command[6] << 8);
+                if (starts.size() == 1) {
+                    // the link drops in the middle of the walk
+                    mockAndScheduleEvent(() -> Stream.of(declaration1, declaration2)
+                        .forEach(handler::bluegigaEventReceived));
+                } else {
+                    // a late event of the first attempt is not aggregated twice
+                    mockAndScheduleEvent(() -> Stream.of(declaration2, declaration3, completed)
+                        .forEach(handler::bluegigaEventReceived));
+                }
+                return response;
+            });
+
+        List<BlueGigaAttributeValueEvent> events = handler.getDeclarations(CONNECTION_HANDLE);
+        assertEquals(Arrays.asList(declaration1, declaration2, declaration3), events);
+        // the walk is resumed from the handle following the last received declaration
+        assertEquals(Arrays.asList(1, 6), starts);
+    }
+
+    @Test
+    public void testGetDeclarationsStaleEventsAfterResume() throws Exception {
+        Whitebox.setInternalState(handler, "procedureTimeoutCeiling", 200L);
+        BlueGigaAttributeValueEvent declaration1 = mockDeclarationEvent(2);
+        BlueGigaAttributeValueEvent declaration2 = mockDeclarationEvent(5);
+        BlueGigaAttributeValueEvent declaration3 = mockDeclarationEvent(8);
+        BlueGigaProcedureCompletedEvent staleCompleted = mockEvent(BlueGigaProcedureCompletedEvent.class,
+            CONNECTION_HANDLE);
+        BlueGigaProcedureCompletedEvent completed = mockEvent(BlueGigaProcedureCompletedEvent.class,
+            CONNECTION_HANDLE);
+        BlueGigaReadByTypeResponse response = mock(BlueGigaReadByTypeResponse.class);
+        when(response.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        AtomicInteger attempts = new AtomicInteger();
+        when(bgHandler.sendTransaction(isA(BlueGigaReadByTypeCommand.class), any(), anyLong())).thenAnswer(
+            invocation -> {
+                if (attempts.incrementAndGet() == 1) {
+                    mockAndScheduleEvent(() -> handler.bluegigaEventReceived(declaration1));
+                } else {
+                    // the abandoned attempt catches up before the resumed one is acknowledged
+                    Stream.of(declaration1, declaration2, staleCompleted).forEach(handler::bluegigaEventReceived);
+                    // the resumed attempt reads the same declarations again
+                    mockAndScheduleEvent(() -> Stream.of(declaration2, declaration3, completed)
+                        .forEach(handler::bluegigaEventReceived));
+                }
+                return response;
+            });
+
+        List<BlueGigaAttributeValueEvent> events = handler.getDeclarations(CONNECTION_HANDLE);
+        assertEquals(Arrays.asList(declaration1, declaration2, declaration3), events);
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testStreamDeclarations() throws Exception {
+        BlueGigaAttributeValueEvent declaration1 = mockDeclarationEvent(2);
+        BlueGigaAttributeValueEvent declaration2 = mockDeclarationEvent(5);
+        BlueGigaProcedureCompletedEvent completed = mockEvent(BlueGigaProcedureCompletedEvent.class,
+            CONNECTION_HANDLE);
+        mockAsyncMultiEventProcedure(BlueGigaReadByTypeCommand.class, BlueGigaReadByTypeResponse.class,
+            declaration1, declaration2, completed);
+        List<BlueGigaAttributeValueEvent> streamed = new ArrayList<>();
+        handler.streamDeclarations(CONNECTION_HANDLE, streamed::add);
+        assertEquals(Arrays.asList(declaration1, declaration2), streamed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStreamDeclarationsConsumerFailure() throws Exception {
+        mockAsyncMultiEventProcedure(BlueGigaReadByTypeCommand.class, BlueGigaReadByTypeResponse.class,
+            mockDeclarationEvent(2), mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE));
+        // the procedure fails with the error of the consumer
+        handler.streamDeclarations(CONNECTION_HANDLE, event -> {
+            throw new IllegalStateException();
+        });
+    }
+
     @Test
     public void testReadCharacteristic() throws Exception {
 
@@ -224,6 +357,60 @@ public class BluegigaHandlerTest {
 
     }
 
+    @Test
+    public void testReadCharacteristicAsyncConcurrent() throws Exception {
+        int[] data = {1, 2, 3};
+        mockSyncProcedure(BlueGigaReadByHandleCommand.class, BlueGigaReadByHandleResponse.class,
+            BgApiResponse.SUCCESS, CONNECTION_HANDLE);
+
+        CompletableFuture<BlueGigaAttributeValueEvent> first =
+            handler.readCharacteristicAsync(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE);
+        CompletableFuture<BlueGigaAttributeValueEvent> second =
+            handler.readCharacteristicAsync(2, CHARACTERISTIC_HANDLE);
+        CompletableFuture<BlueGigaAttributeValueEvent> queued =
+            handler.readCharacteristicAsync(CONNECTION_HANDLE, 6);
+
+        // both connections are in flight, the second read of the first connection waits for the first one
+        verify(bgHandler, times(2)).sendTransaction(isA(BlueGigaReadByHandleCommand.class),
+            eq(BlueGigaReadByHandleResponse.class), anyLong());
+
+        BlueGigaAttributeValueEvent secondEvent = mockValueEvent(2, CHARACTERISTIC_HANDLE, data);
+        handler.bluegigaEventReceived(secondEvent);
+        assertEquals(secondEvent, second.get(1, TimeUnit.SECONDS));
+        assertFalse(first.isDone());
+
+        BlueGigaAttributeValueEvent firstEvent = mockValueEvent(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, data);
+        handler.bluegigaEventReceived(firstEvent);
+        assertEquals(firstEvent, first.get(1, TimeUnit.SECONDS));
+
+        BlueGigaAttributeValueEvent queuedEvent = mockValueEvent(CONNECTION_HANDLE, 6, data);
+        verify(bgHandler, timeout(1000).times(3)).sendTransaction(isA(BlueGigaReadByHandleCommand.class),
+            eq(BlueGigaReadByHandleResponse.class), anyLong());
+        handler.bluegigaEventReceived(queuedEvent);
+        assertEquals(queuedEvent, queued.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLanesIndependent() throws Exception {
+        mockSyncProcedure(BlueGigaReadByHandleCommand.class, BlueGigaReadByHandleResponse.class,
+            BgApiResponse.SUCCESS, CONNECTION_HANDLE);
+        CompletableFuture<BlueGigaAttributeValueEvent> read =
+            handler.readCharacteristicAsync(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE);
+
+        mockSyncProcedure(BlueGigaReadByGroupTypeCommand.class, BlueGigaReadByGroupTypeResponse.class,
+            BgApiResponse.SUCCESS, 2);
+        mockAndScheduleEvent(() -> {
+            handler.bluegigaEventReceived(mockEvent(BlueGigaGroupFoundEvent.class, 2));
+            handler.bluegigaEventReceived(mockEvent(BlueGigaProcedureCompletedEvent.class, 2));
+        });
+        assertEquals(1, handler.getServices(2).size());
+        assertFalse(read.isDone());
+
+        // pending procedures are failed when their connection is lost
+        handler.bluegigaEventReceived(mockEvent(BlueGigaDisconnectedEvent.class, CONNECTION_HANDLE));
+        assertTrue(read.isCompletedExceptionally());
+    }
+
     private BlueGigaAttributeValueEvent mockValueEvent(int connectionHandle, int charecteristicHandle, int[] data) {
         BlueGigaAttributeValueEvent event = mock(BlueGigaAttributeValueEvent.class);
         when(event.getValue()).thenReturn(data);
@@ -248,6 +435,230 @@ public class BluegigaHandlerTest {
         assertEquals(BgApiResponse.SUCCESS, actual.getResult());
     }
 
+    @Test
+    public void testWriteCharacteristicRetry() throws Exception {
+        int[] data = {1, 2, 3, 4, 5};
+        handler.setWriteRetryPolicy(new BluegigaRetryPolicy(5, 10, 20, 0.2));
+
+        AtomicInteger attempts = new AtomicInteger();
+        BlueGigaAttributeWriteResponse writeResponse = mock(BlueGigaAttributeWriteResponse.class);
+        when(writeResponse.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        when(bgHandler.sendTransaction(isA(BlueGigaAttributeWriteCommand.class), any(), anyLong()))
+            .thenAnswer(invocation -> {
+                BgApiResponse result = attempts.incrementAndGet() < 3 ? BgApiResponse.APPLICATION
+                    : BgApiResponse.SUCCESS;
+                BlueGigaProcedureCompletedEvent event =
+                    mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE);
+                when(event.getChrHandle()).thenReturn(CHARACTERISTIC_HANDLE);
+                when(event.getResult()).thenReturn(result);
+                mockAndScheduleEvent(() -> handler.bluegigaEventReceived(event));
+                return writeResponse;
+            });
+
+        BluegigaWriteResult result =
+            handler.writeCharacteristicWithRetry(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, data).get();
+
+        assertEquals(BgApiResponse.SUCCESS, result.getEvent().getResult());
+        assertEquals(3, result.getAttempts());
+        assertTrue(result.getLatency() >= 200);
+
+        // retries are limited by the policy
+        attempts.set(-10);
+        assertEquals(BgApiResponse.APPLICATION,
+            handler.writeCharacteristic(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, data).getResult());
+        assertEquals(-5, attempts.get());
+    }
+
+    @Test
+    public void testWriteCharacteristicRetryAfterTimeout() throws Exception {
+        Whitebox.setInternalState(handler, "procedureTimeoutCeiling", 200L);
+        int[] data = {1, 2, 3};
+
+        List<String> threads = new ArrayList<>();
+        BlueGigaAttributeWriteResponse writeResponse = mock(BlueGigaAttributeWriteResponse.class);
+        when(writeResponse.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        when(bgHandler.sendTransaction(isA(BlueGigaAttributeWriteCommand.class), any(), anyLong()))
+            .thenAnswer(invocation -> {
+                threads.add(Thread.currentThread().getName());
+                if (threads.size() > 1) {
+                    // the first attempt is never completed, it times out
+                    BlueGigaProcedureCompletedEvent event =
+                        mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE);
+                    when(event.getChrHandle()).thenReturn(CHARACTERISTIC_HANDLE);
+                    when(event.getResult()).thenReturn(BgApiResponse.SUCCESS);
+                    mockAndScheduleEvent(() -> handler.bluegigaEventReceived(event));
+                }
+                return writeResponse;
+            });
+
+        BluegigaWriteResult result =
+            handler.writeCharacteristicWithRetry(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, data).get();
+
+        assertEquals(2, result.getAttempts());
+        assertEquals(2, threads.size());
+        // the retry is not sent from the thread that watches procedure timeouts
+        assertFalse(threads.get(1).startsWith("bluegiga-timeouts"));
+    }
+
+    @Test
+    public void testWriteCharacteristicStream() throws Exception {
+        BlueGigaWriteCommandResponse writeResponse = mock(BlueGigaWriteCommandResponse.class);
+        when(writeResponse.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        mockTransaction(BlueGigaWriteCommandCommand.class, writeResponse);
+
+        BluegigaWriteStream stream =
+            handler.writeCharacteristicStream(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, new byte[45]).get();
+
+        assertEquals(45, stream.getBytesWritten());
+        assertEquals(3, stream.getPackets());
+        verify(bgHandler, times(3)).sendTransaction(isA(BlueGigaWriteCommandCommand.class),
+            eq(BlueGigaWriteCommandResponse.class), anyLong());
+    }
+
+    @Test
+    public void testReadCharacteristicLong() throws Exception {
+        BlueGigaAttributeValueEvent first = mockValueEvent(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, new int[] {1, 2});
+        when(first.getType()).thenReturn(AttributeValueType.ATTCLIENT_ATTRIBUTE_VALUE_TYPE_READ);
+        BlueGigaAttributeValueEvent notification =
+            mockValueEvent(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, new int[] {9});
+        when(notification.getType()).thenReturn(AttributeValueType.ATTCLIENT_ATTRIBUTE_VALUE_TYPE_NOTIFY);
+        BlueGigaAttributeValueEvent second = mockValueEvent(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, new int[] {3});
+        when(second.getType()).thenReturn(AttributeValueType.ATTCLIENT_ATTRIBUTE_VALUE_TYPE_READ_BLOB);
+        BlueGigaProcedureCompletedEvent completed =
+            mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE);
+        when(completed.getChrHandle()).thenReturn(CHARACTERISTIC_HANDLE);
+        when(completed.getResult()).thenReturn(BgApiResponse.SUCCESS);
+
+        mockSyncProcedure(BlueGigaReadLongCommand.class, BlueGigaReadLongResponse.class, BgApiResponse.SUCCESS,
+            CONNECTION_HANDLE);
+        mockAndScheduleEvent(() -> Stream.of(first, notification, second, completed)
+            .forEach(handler::bluegigaEventReceived));
+
+        assertArrayEquals(new int[] {1, 2, 3}, handler.readCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE));
+    }
+
+    @Test
+    public void testReadMultiple() throws Exception {
+        BlueGigaReadMultipleResponseEvent event = mockEvent(BlueGigaReadMultipleResponseEvent.class, CONNECTION_HANDLE);
+        when(event.getHandles()).thenReturn(new int[] {1, 2, 3});
+        mockAsyncProcedure(BlueGigaReadMultipleCommand.class, BlueGigaReadMultipleResponse.class,
+            BgApiResponse.SUCCESS, CONNECTION_HANDLE, event);
+
+        assertArrayEquals(new int[] {1, 2, 3}, handler.readMultiple(CONNECTION_HANDLE, new int[] {10, 11}));
+
+        BlueGigaProcedureCompletedEvent failed = mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE);
+        when(failed.getResult()).thenReturn(BgApiResponse.ATT_NOT_FOUND);
+        mockAsyncProcedure(BlueGigaReadMultipleCommand.class, BlueGigaReadMultipleResponse.class,
+            BgApiResponse.SUCCESS, CONNECTION_HANDLE, failed);
+        try {
+            handler.readMultiple(CONNECTION_HANDLE, new int[] {10, 11});
+            fail();
+        } catch (BluegigaProcedureException ex) {
+            assertEquals(BgApiResponse.ATT_NOT_FOUND, ex.getResponse());
+        }
+    }
+
+    @Test
+    public void testInvalidateGattCache() throws Exception {
+        // connections are mapped to devices by the event router
+        BlueGigaEventListener deviceListener = mock(BlueGigaEventListener.class);
+        handler.addDeviceListener(DEVICE_URL.getDeviceAddress(), deviceListener);
+        mockConnect(BgApiResponse.SUCCESS, CONNECTION_HANDLE, DEVICE_URL);
+        verify(deviceListener, timeout(1000)).bluegigaEventReceived(any());
+        BluegigaGattCache gattCache = mock(BluegigaGattCache.class);
+        handler.setGattCache(gattCache);
+        Thread caller = Thread.currentThread();
+        List<Thread> threads = new ArrayList<>();
+        doAnswer(answer -> threads.add(Thread.currentThread()))
+            .when(gattCache).invalidate(DEVICE_URL.getDeviceAddress());
+        CountDownLatch rediscovered = new CountDownLatch(1);
+        AtomicInteger rediscoveries = new AtomicInteger();
+        handler.setGattInvalidationListener(DEVICE_URL.getDeviceAddress(), () -> {
+            rediscoveries.incrementAndGet();
+            rediscovered.countDown();
+        });
+
+        BlueGigaProcedureCompletedEvent failed = mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE);
+        when(failed.getResult()).thenReturn(BgApiResponse.INVALID_HANDLE);
+        mockAsyncProcedure(BlueGigaReadMultipleCommand.class, BlueGigaReadMultipleResponse.class,
+            BgApiResponse.SUCCESS, CONNECTION_HANDLE, failed);
+        try {
+            handler.readMultiple(CONNECTION_HANDLE, new int[] {10, 11});
+            fail();
+        } catch (BluegigaProcedureException ex) {
+            assertEquals(BgApiResponse.INVALID_HANDLE, ex.getResponse());
+        }
+
+        // the device is notified after its cache entry has been invalidated on the discovery worker pool
+        assertTrue(rediscovered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+        assertFalse(caller == threads.get(0));
+
+        // the listener is not notified once the device has been unresolved
+        handler.removeGattInvalidationListener(DEVICE_URL.getDeviceAddress());
+        CountDownLatch invalidated = new CountDownLatch(1);
+        doAnswer(answer -> {
+            invalidated.countDown();
+            return null;
+        }).when(gattCache).invalidate(DEVICE_URL.getDeviceAddress());
+        handler.invalidateGattCache(CONNECTION_HANDLE);
+        assertTrue(invalidated.await(5, TimeUnit.SECONDS));
+        assertEquals(1, rediscoveries.get());
+    }
+
+    @Test
+    public void testWriteCharacteristicLong() throws Exception {
+        int[] data = new int[40];
+        List<Integer> offsets = new ArrayList<>();
+        List<Integer> commits = new ArrayList<>();
+        mockQueuedWrite(offsets, commits, BgApiResponse.SUCCESS);
+
+        assertEquals(BgApiResponse.SUCCESS,
+            handler.writeCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, data).getResult());
+        assertEquals(Arrays.asList(0, 18, 36), offsets);
+        assertEquals(Collections.singletonList(1), commits);
+    }
+
+    @Test
+    public void testWriteCharacteristicLongRejected() throws Exception {
+        List<Integer> offsets = new ArrayList<>();
+        List<Integer> commits = new ArrayList<>();
+        mockQueuedWrite(offsets, commits, BgApiResponse.INVALID_ATT_LENGTH);
+
+        assertEquals(BgApiResponse.INVALID_ATT_LENGTH,
+            handler.writeCharacteristicLong(CONNECTION_HANDLE, CHARACTERISTIC_HANDLE, new int[40]).getResult());
+        // the queued write is cancelled after the first rejected part
+        assertEquals(Collections.singletonList(0), offsets);
+        assertEquals(Collections.singletonList(0), commits);
+    }
+
+    private void mockQueuedWrite(List<Integer> offsets, List<Integer> commits, BgApiResponse prepareResult)
+        throws Exception {
+        BlueGigaPrepareWriteResponse prepareResponse = mock(BlueGigaPrepareWriteResponse.class);
+        when(prepareResponse.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        when(bgHandler.sendTransaction(isA(BlueGigaPrepareWriteCommand.class), any(), anyLong()))
+            .thenAnswer(invocation -> {
+                offsets.add(Whitebox.getInternalState(invocation.getArguments()[0], "offset"));
+                mockAndScheduleEvent(() -> handler.bluegigaEventReceived(mockCompletedEvent(prepareResult)));
+                return prepareResponse;
+            });
+        BlueGigaExecuteWriteResponse executeResponse = mock(BlueGigaExecuteWriteResponse.class);
+        when(executeResponse.getResult()).thenReturn(BgApiResponse.SUCCESS);
+        when(bgHandler.sendTransaction(isA(BlueGigaExecuteWriteCommand.class), any(), anyLong()))
+            .thenAnswer(invocation -> {
+                commits.add(Whitebox.getInternalState(invocation.getArguments()[0], "commit"));
+                mockAndScheduleEvent(() -> handler.bluegigaEventReceived(mockCompletedEvent(BgApiResponse.SUCCESS)));
+                return executeResponse;
+            });
+    }
+
+    private BlueGigaProcedureCompletedEvent mockCompletedEvent(BgApiResponse result) {
+        BlueGigaProcedureCompletedEvent event = mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE);
+        when(event.getChrHandle()).thenReturn(CHARACTERISTIC_HANDLE);
+        when(event.getResult()).thenReturn(result);
+        return event;
+    }
+
     @Test
     public void testWriteCharacteristicWithoutResponse() throws Exception {
         int[] data = {1, 2, 3, 4, 5};
@@ -316,6 +727,112 @@ public class BluegigaHandlerTest {
         assertTrue(handler.bgStopProcedure());
     }
 
+    @Test
+    public void testRunInDiscoveryContext() throws Exception {
+        assertEquals(BluegigaHandler.DEFAULT_DISCOVERY_CONCURRENCY, handler.getDiscoveryConcurrency());
+        handler.setDiscoveryConcurrency(2);
+        assertEquals(2, handler.getDiscoveryConcurrency());
+
+        // discoveries of different devices run concurrently up to the limit
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<CompletableFuture<Integer>> discoveries = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int device = i;
+            discoveries.add(CompletableFuture.supplyAsync(() -> handler.runInDiscoveryContext(() -> {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                active.decrementAndGet();
+                return device;
+            }), Executors.newSingleThreadExecutor()));
+        }
+        for (int i = 0; i < discoveries.size(); i++) {
+            assertEquals(i, (int) discoveries.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, maxActive.get());
+
+        // a failed discovery releases its slot
+        handler.setDiscoveryConcurrency(1);
+        try {
+            handler.runInDiscoveryContext(() -> {
+                throw new BluegigaException("Discovery failed");
+            });
+            fail();
+        } catch (BluegigaException ignore) { }
+        assertEquals(1, (int) handler.runInDiscoveryContext(() -> 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetDiscoveryConcurrencyInvalid() {
+        handler.setDiscoveryConcurrency(0);
+    }
+
+    @Test
+    public void testScheduleDiscovery() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+        Runnable discovery = () -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        };
+        assertTrue(handler.scheduleDiscovery(DEVICE_URL.getDeviceAddress(), discovery));
+        // a discovery of the same device is pending, hence it is not scheduled again
+        assertFalse(handler.scheduleDiscovery(DEVICE_URL.getDeviceAddress(), discovery));
+        // discoveries of other devices are scheduled
+        assertTrue(handler.scheduleDiscovery("11:22:33:44:55:77", discovery));
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+
+        // the device can be discovered again once its previous discovery has finished
+        CountDownLatch rediscovered = new CountDownLatch(1);
+        while (!handler.scheduleDiscovery(DEVICE_URL.getDeviceAddress(), rediscovered::countDown)) {
+            Thread.sleep(10);
+        }
+        assertTrue(rediscovered.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testScheduleDiscoveryQueueFull() throws Exception {
+        handler.setDiscoveryConcurrency(1);
+        handler.setDiscoveryQueueSize(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable discovery = () -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        assertTrue(handler.scheduleDiscovery("11:22:33:44:55:01", discovery));
+        assertTrue(handler.scheduleDiscovery("11:22:33:44:55:02", discovery));
+        // neither a worker nor the queue is available
+        assertFalse(handler.scheduleDiscovery("11:22:33:44:55:03", discovery));
+        release.countDown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetDiscoveryQueueSizeInvalid() {
+        handler.setDiscoveryQueueSize(0);
+    }
+
+    @Test
+    public void testDiscoveryLatency() {
+        assertEquals(-1, handler.getDiscoveryLatency(0.5));
+        handler.recordDiscoveryLatency(100);
+        handler.recordDiscoveryLatency(2000);
+        assertTrue(handler.getDiscoveryLatency(0.5) >= 100);
+        assertTrue(handler.getDiscoveryLatency(0.5) < 2000);
+        assertTrue(handler.getDiscoveryLatency(1) >= 2000);
+    }
+
     @Test
     public void testDispose() throws Exception {
         when(bgHandler.isAlive()).thenReturn(true);
@@ -360,12 +877,31 @@ public class BluegigaHandlerTest {
 
     @Test(expected = BluegigaException.class)
     public void testSyncCallExceptionTimeout() throws Exception {
-        Whitebox.setInternalState(handler, "eventWaitTimeout", 10L);
+        Whitebox.setInternalState(handler, "procedureTimeoutCeiling", 10L);
         mockSyncProcedure(BlueGigaDisconnectCommand.class, BlueGigaDisconnectResponse.class,
             BgApiResponse.SUCCESS, CONNECTION_HANDLE);
         handler.disconnect(CONNECTION_HANDLE);
     }
 
+    @Test
+    public void testProcedureTimeoutsDoNotAffectTransactions() throws Exception {
+        handler.setProcedureTimeouts(10, 50);
+        assertEquals(50, handler.getProcedureTimeout(BluegigaTimeouts.Type.READ));
+        assertEquals(BluegigaHandler.DEFAULT_WAIT_TIME, handler.getEventWaitTimeout());
+
+        mockSyncProcedure(BlueGigaDisconnectCommand.class, BlueGigaDisconnectResponse.class,
+            BgApiResponse.SUCCESS, CONNECTION_HANDLE);
+        try {
+            handler.disconnect(CONNECTION_HANDLE);
+            fail();
+        } catch (BluegigaTimeoutException ignore) {
+            // the procedure times out after the ceiling, but the command is sent with the transaction timeout
+        }
+        verify(bgHandler, atLeastOnce()).sendTransaction(isA(BlueGigaDisconnectCommand.class),
+            eq(BlueGigaDisconnectResponse.class), eq(BluegigaHandler.DEFAULT_WAIT_TIME));
+        verify(bgHandler, never()).sendTransaction(any(), any(), eq(50L));
+    }
+
     @Test(expected = BluegigaException.class)
     public void testSyncCallInterruptException() throws Exception {
         mockSyncProcedure(BlueGigaDisconnectCommand.class, BlueGigaDisconnectResponse.class,
@@ -393,7 +929,7 @@ public class BluegigaHandlerTest {
 
     @Test(expected = BluegigaException.class)
     public void testSyncProcedureCallExceptionTimeout() throws Exception {
-        Whitebox.setInternalState(handler, "eventWaitTimeout", 10L);
+        Whitebox.setInternalState(handler, "procedureTimeoutCeiling", 10L);
         mockAsyncMultiEventProcedure(BlueGigaReadByGroupTypeCommand.class, BlueGigaReadByGroupTypeResponse.class,
             mockEvent(BlueGigaGroupFoundEvent.class, CONNECTION_HANDLE)
         //    mockEvent(BlueGigaProcedureCompletedEvent.class, CONNECTION_HANDLE)
@@ -497,6 +1033,13 @@ public class BluegigaHandlerTest {
         return event;
     }
 
+    private BlueGigaAttributeValueEvent mockDeclarationEvent(int attributeHandle) {
+        BlueGigaAttributeValueEvent event = mockEvent(BlueGigaAttributeValueEvent.class, CONNECTION_HANDLE,
+            AttributeValueType.ATTCLIENT_ATTRIBUTE_VALUE_TYPE_READ_BY_TYPE);
+        when(event.getAttHandle()).thenReturn(attributeHandle);
+        return event;
+    }
+
     private void tryMock(Object obj, String methodName, Object response) {
         try {
             when(Whitebox.invokeMethod(obj, methodName)).thenReturn(response);
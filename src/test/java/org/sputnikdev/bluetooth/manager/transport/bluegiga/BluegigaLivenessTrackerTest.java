@@ -0,0 +1,78 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BluegigaLivenessTrackerTest {
+
+    private final AtomicInteger heartbeats = new AtomicInteger();
+    private final AtomicBoolean responding = new AtomicBoolean(true);
+    private final BluegigaLivenessTracker tracker = new BluegigaLivenessTracker(() -> {
+        heartbeats.incrementAndGet();
+        return responding.get();
+    });
+
+    @Test
+    public void testActivity() {
+        assertFalse(tracker.isAlive());
+        tracker.activity();
+        assertTrue(tracker.isAlive());
+        tracker.failed();
+        assertFalse(tracker.isAlive());
+    }
+
+    @Test
+    public void testHeartbeatOnlyWhenIdle() throws Exception {
+        tracker.setIdleTime(100);
+        tracker.activity();
+
+        tracker.check();
+        assertEquals(0, heartbeats.get());
+
+        Thread.sleep(150);
+        tracker.check();
+        assertEquals(1, heartbeats.get());
+        assertTrue(tracker.isAlive());
+
+        // the heartbeat counts as activity
+        tracker.check();
+        assertEquals(1, heartbeats.get());
+
+        Thread.sleep(150);
+        responding.set(false);
+        tracker.check();
+        assertEquals(2, heartbeats.get());
+        assertFalse(tracker.isAlive());
+    }
+
+    @Test
+    public void testHeartbeatError() throws Exception {
+        BluegigaLivenessTracker failing = new BluegigaLivenessTracker(() -> {
+            throw new BluegigaException("no response");
+        });
+        failing.setIdleTime(0);
+        failing.activity();
+        failing.check();
+        assertFalse(failing.isAlive());
+    }
+
+    @Test
+    public void testStartStop() throws Exception {
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+        tracker.setIdleTime(0);
+        tracker.start(scheduler, Runnable::run);
+        Thread.sleep(1500);
+        tracker.stop();
+        assertTrue(heartbeats.get() > 0);
+        scheduler.shutdownNow();
+    }
+
+}
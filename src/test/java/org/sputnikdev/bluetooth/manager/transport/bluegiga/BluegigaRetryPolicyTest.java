@@ -0,0 +1,44 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BluegigaRetryPolicyTest {
+
+    @Test
+    public void testCanRetry() {
+        BluegigaRetryPolicy policy = new BluegigaRetryPolicy(3, 100, 1000, 0);
+        assertTrue(policy.canRetry(1));
+        assertTrue(policy.canRetry(2));
+        assertFalse(policy.canRetry(3));
+    }
+
+    @Test
+    public void testExponentialBackoff() {
+        BluegigaRetryPolicy policy = new BluegigaRetryPolicy(10, 100, 1000, 0);
+        assertEquals(100, policy.getDelay(1));
+        assertEquals(200, policy.getDelay(2));
+        assertEquals(400, policy.getDelay(3));
+        assertEquals(800, policy.getDelay(4));
+        assertEquals(1000, policy.getDelay(5));
+        assertEquals(1000, policy.getDelay(9));
+    }
+
+    @Test
+    public void testJitter() {
+        BluegigaRetryPolicy policy = new BluegigaRetryPolicy(10, 100, 1000, 0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(2);
+            assertTrue(delay > 100 && delay <= 200);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPolicy() {
+        new BluegigaRetryPolicy(1, 1000, 100, 0);
+    }
+
+}
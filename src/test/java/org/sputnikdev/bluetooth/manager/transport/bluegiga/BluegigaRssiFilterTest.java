@@ -0,0 +1,84 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Test;
+
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class BluegigaRssiFilterTest {
+
+    @Test
+    public void testEma() {
+        BluegigaRssiFilter filter = new BluegigaRssiFilter.Ema(0.5);
+        assertEquals(-80, filter.update((short) -80));
+        assertEquals(-70, filter.update((short) -60));
+        assertEquals(-75, filter.update((short) -80));
+
+        filter.reset();
+        assertEquals(-90, filter.update((short) -90));
+    }
+
+    @Test
+    public void testMedian() {
+        BluegigaRssiFilter filter = new BluegigaRssiFilter.Median(3);
+        assertEquals(-80, filter.update((short) -80));
+        // average of two middle values
+        assertEquals(-81, filter.update((short) -82));
+        // spikes are removed
+        assertEquals(-80, filter.update((short) -40));
+        assertEquals(-82, filter.update((short) -90));
+        assertEquals(-90, filter.update((short) -95));
+
+        filter.reset();
+        assertEquals(-70, filter.update((short) -70));
+    }
+
+    @Test
+    public void testKalman() {
+        BluegigaRssiFilter filter = new BluegigaRssiFilter.Kalman(0.01, 4);
+        assertEquals(-80, filter.update((short) -80));
+        short value = filter.update((short) -60);
+        assertTrue(value < -69 && value > -80);
+        for (int i = 0; i < 50; i++) {
+            value = filter.update((short) -70);
+        }
+        assertEquals(-70, value);
+
+        filter.reset();
+        assertEquals(-50, filter.update((short) -50));
+    }
+
+    @Test
+    public void testParse() {
+        Supplier<BluegigaRssiFilter> factory = BluegigaRssiFilter.parse("ema:0.3");
+        assertTrue(factory.get() instanceof BluegigaRssiFilter.Ema);
+        // each device gets its own filter
+        assertNotSame(factory.get(), factory.get());
+        assertTrue(BluegigaRssiFilter.parse(" Median:5 ").get() instanceof BluegigaRssiFilter.Median);
+        assertTrue(BluegigaRssiFilter.parse("kalman:0.05:4").get() instanceof BluegigaRssiFilter.Kalman);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknown() {
+        BluegigaRssiFilter.parse("mean:5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidParameter() {
+        BluegigaRssiFilter.parse("ema:1.5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingParameter() {
+        BluegigaRssiFilter.parse("kalman:0.05");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseNotNumber() {
+        BluegigaRssiFilter.parse("median:five");
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BluegigaRssiPolicyTest {
+
+    private final BluegigaRssiPolicy.Tracker tracker = new BluegigaRssiPolicy.Tracker();
+
+    @Test
+    public void testAll() {
+        assertTrue(tracker.offer(BluegigaRssiPolicy.ALL, (short) -80, 0));
+        assertEquals(-80, tracker.getValue());
+        assertTrue(tracker.offer(BluegigaRssiPolicy.ALL, (short) -80, 0));
+        assertTrue(tracker.offer(BluegigaRssiPolicy.ALL, (short) -81, 1));
+        assertEquals(-81, tracker.getValue());
+    }
+
+    @Test
+    public void testMinDelta() {
+        BluegigaRssiPolicy policy = new BluegigaRssiPolicy(5, 0, 0);
+        assertTrue(tracker.offer(policy, (short) -80, 0));
+        assertFalse(tracker.offer(policy, (short) -84, 1));
+        assertFalse(tracker.offer(policy, (short) -76, 2));
+        assertTrue(tracker.offer(policy, (short) -75, 3));
+        assertEquals(-75, tracker.getValue());
+        // delta is measured from the last notified value
+        assertFalse(tracker.offer(policy, (short) -79, 4));
+        assertTrue(tracker.offer(policy, (short) -80, 5));
+    }
+
+    @Test
+    public void testMinInterval() {
+        BluegigaRssiPolicy policy = new BluegigaRssiPolicy(0, 1000, 0);
+        assertTrue(tracker.offer(policy, (short) -80, 10000));
+        assertFalse(tracker.offer(policy, (short) -60, 10500));
+        assertFalse(tracker.offer(policy, (short) -70, 10999));
+        assertTrue(tracker.offer(policy, (short) -70, 11000));
+        assertEquals(-70, tracker.getValue());
+    }
+
+    @Test
+    public void testMinDeltaAndInterval() {
+        BluegigaRssiPolicy policy = new BluegigaRssiPolicy(3, 1000, 0);
+        assertTrue(tracker.offer(policy, (short) -80, 0));
+        assertFalse(tracker.offer(policy, (short) -81, 2000));
+        assertFalse(tracker.offer(policy, (short) -70, 500));
+        assertTrue(tracker.offer(policy, (short) -70, 2500));
+    }
+
+    @Test
+    public void testSummary() {
+        BluegigaRssiPolicy policy = new BluegigaRssiPolicy(10, 10000, 1000);
+        assertFalse(tracker.offer(policy, (short) -80, 0));
+        assertFalse(tracker.offer(policy, (short) -70, 400));
+        assertTrue(tracker.offer(policy, (short) -75, 1000));
+        assertEquals(-75, tracker.getValue());
+
+        assertFalse(tracker.offer(policy, (short) -60, 1500));
+        assertTrue(tracker.offer(policy, (short) -62, 2100));
+        assertEquals(-61, tracker.getValue());
+    }
+
+    @Test
+    public void testReset() {
+        BluegigaRssiPolicy policy = new BluegigaRssiPolicy(0, 1000, 0);
+        assertTrue(tracker.offer(policy, (short) -80, 0));
+        assertFalse(tracker.offer(policy, (short) -80, 1));
+        tracker.reset();
+        assertTrue(tracker.offer(policy, (short) -80, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        new BluegigaRssiPolicy(-1, 0, 0);
+    }
+
+}
@@ -10,9 +10,17 @@ import org.sputnikdev.bluetooth.URL;
 import org.sputnikdev.bluetooth.manager.transport.Characteristic;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -64,6 +72,40 @@ public class BluegigaServiceTest {
         assertEquals(CHARACTERISTIC_URL, bluegigaService.findCharacteristicByShortUUID("2a19").getURL());
     }
 
+    @Test
+    public void testLazyDiscovery() throws Exception {
+        Consumer<BluegigaService> resolver = mock(Consumer.class);
+        doAnswer(invocation -> {
+            bluegigaService.addCharacteristic(characteristic);
+            return null;
+        }).when(resolver).accept(bluegigaService);
+        bluegigaService.setResolver(resolver);
+        assertFalse(bluegigaService.isResolved());
+        assertTrue(bluegigaService.getDiscoveredCharacteristics().isEmpty());
+
+        assertEquals(1, bluegigaService.getCharacteristics().size());
+        assertTrue(bluegigaService.isResolved());
+        assertEquals(CHARACTERISTIC_URL, bluegigaService.getCharacteristic(CHARACTERISTIC_URL).getURL());
+        verify(resolver, times(1)).accept(bluegigaService);
+    }
+
+    @Test
+    public void testLazyDiscoveryError() throws Exception {
+        Consumer<BluegigaService> resolver = mock(Consumer.class);
+        doThrow(BluegigaException.class).doNothing().when(resolver).accept(bluegigaService);
+        bluegigaService.setResolver(resolver);
+
+        try {
+            bluegigaService.getCharacteristics();
+            fail();
+        } catch (BluegigaException ex) {
+            assertFalse(bluegigaService.isResolved());
+        }
+        bluegigaService.getCharacteristics();
+        assertTrue(bluegigaService.isResolved());
+        verify(resolver, times(2)).accept(bluegigaService);
+    }
+
     @Test
     public void testGetHandleStart() throws Exception {
         assertEquals(HANDLE_START, bluegigaService.getHandleStart());
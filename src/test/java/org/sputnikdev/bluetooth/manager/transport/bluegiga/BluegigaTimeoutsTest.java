@@ -0,0 +1,61 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BluegigaTimeoutsTest {
+
+    private final BluegigaTimeouts timeouts = new BluegigaTimeouts();
+
+    @Test
+    public void testNotEnoughSamples() {
+        for (int i = 0; i < 9; i++) {
+            timeouts.record(BluegigaTimeouts.Type.READ, 100);
+        }
+        assertEquals(10000, timeouts.getTimeout(BluegigaTimeouts.Type.READ, 10000));
+    }
+
+    @Test
+    public void testAdaptiveTimeout() {
+        for (int i = 0; i < 100; i++) {
+            timeouts.record(BluegigaTimeouts.Type.READ, 200);
+        }
+        long percentile = timeouts.getPercentile(BluegigaTimeouts.Type.READ, 0.99);
+        assertTrue(percentile >= 200 && percentile < 240);
+        assertEquals(percentile * 3, timeouts.getTimeout(BluegigaTimeouts.Type.READ, 10000));
+        // other procedure types are not affected
+        assertEquals(10000, timeouts.getTimeout(BluegigaTimeouts.Type.WRITE, 10000));
+        // ceiling
+        assertEquals(300, timeouts.getTimeout(BluegigaTimeouts.Type.READ, 300));
+    }
+
+    @Test
+    public void testFloor() {
+        for (int i = 0; i < 100; i++) {
+            timeouts.record(BluegigaTimeouts.Type.STATUS, 5);
+        }
+        assertEquals(BluegigaTimeouts.DEFAULT_FLOOR, timeouts.getTimeout(BluegigaTimeouts.Type.STATUS, 10000));
+        timeouts.setFloor(50);
+        assertEquals(50, timeouts.getTimeout(BluegigaTimeouts.Type.STATUS, 10000));
+    }
+
+    @Test
+    public void testHistogramDecay() {
+        BluegigaLatencyHistogram histogram = new BluegigaLatencyHistogram(100);
+        assertEquals(-1, histogram.getPercentile(0.5));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10);
+        }
+        assertEquals(99, histogram.getCount());
+        histogram.record(10);
+        assertEquals(50, histogram.getCount());
+        // new latencies outweigh old ones
+        for (int i = 0; i < 60; i++) {
+            histogram.record(1000);
+        }
+        assertTrue(histogram.getPercentile(0.5) >= 1000);
+    }
+
+}
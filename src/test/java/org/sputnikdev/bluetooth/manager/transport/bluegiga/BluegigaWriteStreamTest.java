@@ -0,0 +1,74 @@
+package org.sputnikdev.bluetooth.manager.transport.bluegiga;
+
+import com.zsmartsystems.bluetooth.bluegiga.enumeration.BgApiResponse;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BluegigaWriteStreamTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicInteger writes = new AtomicInteger();
+
+        BluegigaWriteStream stream = new BluegigaWriteStream(new ByteArrayInputStream(payload), 20, chunk -> {
+            // every 10th packet does not fit into the dongle buffers
+            if (writes.incrementAndGet() % 10 == 0) {
+                return BgApiResponse.BUFFERS_FULL;
+            }
+            for (int value : chunk) {
+                received.write(value);
+            }
+            return BgApiResponse.SUCCESS;
+        }, scheduler, executor);
+
+        assertEquals(stream, stream.start().get());
+        assertArrayEquals(payload, received.toByteArray());
+        assertEquals(1000, stream.getBytesWritten());
+        assertEquals(50, stream.getPackets());
+        assertEquals(5, stream.getBuffersFull());
+        assertTrue(stream.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void testStreamError() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        BluegigaWriteStream stream = new BluegigaWriteStream(new ByteArrayInputStream(new byte[100]), 20,
+            chunk -> writes.incrementAndGet() < 3 ? BgApiResponse.SUCCESS : BgApiResponse.NOT_CONNECTED,
+            scheduler, executor);
+        try {
+            stream.start().get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertEquals(BgApiResponse.NOT_CONNECTED, ((BluegigaProcedureException) ex.getCause()).getResponse());
+        }
+        assertEquals(40, stream.getBytesWritten());
+    }
+
+}